@@ -166,7 +166,7 @@ public class BackgroundDelete extends Thread {
       entry.parent.insert(newEntry, displayBlockSize);
       diskUsage.fileSystemState.restore(newEntry);
       Log.d("DiskUsage", "restoring undeleted: "
-              + newEntry.name + " " + newEntry.sizeString());
+              + newEntry.getName() + " " + newEntry.sizeString());
     } catch (IOException e) {
       Log.d("diskusage", "Failed to restore");
     }
@@ -66,10 +66,11 @@ public class Cursor {
   }
 
   void right(FileSystemState state) {
-    if (position.children == null) return;
-    if (position.children.length == 0) return;
+    FileSystemEntry[] children = position.getChildren();
+    if (children == null) return;
+    if (children.length == 0) return;
     state.invalidate(this);
-    position = position.children[0];
+    position = children[0];
     depth++;
     // Log.d("Sample", "position depth = " + depth);
     state.invalidate(this);
@@ -27,6 +27,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -36,6 +37,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.FileUriExposedException;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.Settings;
 import android.util.Log;
@@ -51,6 +53,7 @@ import com.google.android.diskusage.entity.FileSystemEntrySmall;
 import com.google.android.diskusage.entity.FileSystemFreeSpace;
 import com.google.android.diskusage.entity.FileSystemPackage;
 import com.google.android.diskusage.entity.FileSystemRoot;
+import com.google.android.diskusage.entity.FileSystemSpecial;
 import com.google.android.diskusage.entity.FileSystemSuperRoot;
 import com.google.android.diskusage.entity.FileSystemSystemSpace;
 import com.google.android.diskusage.utils.MimeTypes;
@@ -61,6 +64,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 public class DiskUsage extends LoadableActivity {
 
@@ -74,6 +78,22 @@ public class DiskUsage extends LoadableActivity {
 
   public static final String DELETE_PATH_KEY = "path";
   public static final String DELETE_ABSOLUTE_PATH_KEY = "absolute_path";
+  static final String SCAN_THREADS_KEY = "scan_threads";
+  private static final long MAX_INCREMENTAL_SCAN_AGE = 24 * 60 * 60 * 1000;
+  static final String PROGRESSIVE_SCAN_KEY = "progressive_scan";
+  static final String SCAN_BUDGET_KEY = "scan_budget";
+  static final String SCAN_URING_DEPTH_KEY = "scan_uring_depth";
+  static final String SCAN_IN_BACKGROUND_KEY = "scan_in_background";
+  static final String SCAN_LOWER_PATH_AS_ROOT_KEY = "scan_lower_path_as_root";
+  // Values the menu sets for the scan settings which are not on or off.
+  private static final long MENU_SCAN_BUDGET = 3000;
+  private static final int MENU_SCAN_URING_DEPTH = 32;
+  // Prefix of keys of the last time of native scan of a path.
+  private static final String SCAN_TIME_KEY = "scan_time:";
+  // Depth listed by the first pass of progressive scan.
+  private static final int SHALLOW_DEPTH = 2;
+  // Snapshot is written this long after the last change of the tree.
+  private static final long SNAPSHOT_DELAY = 10 * 1000;
   String key;
 
   private String pathToDelete;
@@ -81,6 +101,9 @@ public class DiskUsage extends LoadableActivity {
   private static final MimeTypes mimeTypes = new MimeTypes();
   DiskUsageMenu menu = DiskUsageMenu.getInstance(this);
   RendererManager rendererManager = new RendererManager(this);
+  LiveUpdater liveUpdater = new LiveUpdater(this);
+  LazyScanner lazyScanner = new LazyScanner(this);
+  ProgressiveScanner progressiveScanner = new ProgressiveScanner(this);
 
   @Override
   protected void onCreate(Bundle icicle) {
@@ -118,6 +141,7 @@ public class DiskUsage extends LoadableActivity {
   protected void onResume() {
     super.onResume();
     rendererManager.onResume();
+    liveUpdater.onResume();
     if (pkg_removed != null) {
       // Check if package removed
       String pkg_name = pkg_removed.pkg;
@@ -136,6 +160,8 @@ public class DiskUsage extends LoadableActivity {
         fileSystemState = new FileSystemState(DiskUsage.this, root);
         rendererManager.makeView(fileSystemState, root);
         fileSystemState.startZoomAnimationInRenderThread(null, !isCached, false);
+        liveUpdater.start(root);
+        progressiveScanner.start(root);
 
         for (Runnable r : afterLoadAction) {
           r.run();
@@ -153,7 +179,14 @@ public class DiskUsage extends LoadableActivity {
   @Override
   protected void onPause() {
     rendererManager.onPause();
+    liveUpdater.onPause();
+    lazyScanner.stop();
+    progressiveScanner.stop();
     super.onPause();
+    if (snapshotPending) {
+      handler.removeCallbacks(snapshotSaver);
+      snapshotSaver.run();
+    }
     if (fileSystemState != null) {
       fileSystemState.killRenderThread();
       final Bundle savedState = new Bundle();
@@ -234,14 +267,26 @@ public class DiskUsage extends LoadableActivity {
     pkg_removed = pkg;
   }
 
-  void continueDelete(String path) {
-    FileSystemEntry entry = fileSystemState.masterRoot.getEntryByName(path, true);
-    if (entry != null) {
-      BackgroundDelete.startDelete(this, entry);
-    } else {
-      Toast.makeText(this,
-          "Oops. Can't find directory to be deleted.", Toast.LENGTH_SHORT);
-    }
+  void continueDelete(final String path) {
+    final FileSystemState state = fileSystemState;
+    // Lookup creates children of packed entries, it is done in render thread.
+    state.updateInRenderThread(new Runnable() {
+      @Override
+      public void run() {
+        final FileSystemEntry entry = state.masterRoot.getEntryByName(path, true);
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (entry != null) {
+              BackgroundDelete.startDelete(DiskUsage.this, entry);
+            } else {
+              Toast.makeText(DiskUsage.this,
+                  "Oops. Can't find directory to be deleted.", Toast.LENGTH_SHORT);
+            }
+          }
+        });
+      }
+    });
   }
 
   public void askForDeletion(final FileSystemEntry entry) {
@@ -255,7 +300,7 @@ public class DiskUsage extends LoadableActivity {
 
       return;
     }
-    if (entry.children == null || entry.children.length == 0) {
+    if (!entry.hasChildren()) {
       if (entry instanceof FileSystemPackage) {
         this.pkg_removed = (FileSystemPackage) entry;
         BackgroundDelete.startDelete(this, entry);
@@ -404,7 +449,7 @@ public class DiskUsage extends LoadableActivity {
       return;
     }
 
-    String fileName = entry.name;
+    String fileName = entry.getName();
     int dot = fileName.lastIndexOf(".");
     if (dot != -1) {
       String extension = fileName.substring(dot + 1).toLowerCase();
@@ -425,14 +470,21 @@ public class DiskUsage extends LoadableActivity {
   }
 
   public void rescan() {
+    progressiveScanner.stop();
     LoadFiles(DiskUsage.this, new AfterLoad() {
       @Override
       public void run(FileSystemSuperRoot newRoot, boolean isCached) {
-        fileSystemState.startZoomAnimationInRenderThread(newRoot, !isCached, false);
+        fileSystemState.replaceRootKeepCursor(newRoot, null);
+        liveUpdater.start(newRoot);
+        progressiveScanner.start(newRoot);
       }
     }, true);
   }
 
+  public void toggleLiveUpdate() {
+    liveUpdater.toggle(ScanService.getResult(getKey()));
+  }
+
   public void finishOnBack() {
     if (!menu.readyToFinish()) {
       return;
@@ -494,6 +546,34 @@ public class DiskUsage extends LoadableActivity {
 
   Handler handler = new Handler();
 
+  private volatile boolean snapshotPending;
+  private final Runnable snapshotSaver = new Runnable() {
+    @Override
+    public void run() {
+      snapshotPending = false;
+      final FileSystemState state = fileSystemState;
+      if (state == null) return;
+      state.updateInRenderThread(new Runnable() {
+        @Override
+        public void run() {
+          FileSystemSuperRoot root = state.masterRoot;
+          if (root.partial || root.children[0].children == null) return;
+          saveSnapshot(root);
+        }
+      });
+    }
+  };
+
+  /**
+   * Saves snapshot of the tree after deletes and live updates, once the
+   * tree stops changing. Can be called from any thread.
+   */
+  void snapshotChanged() {
+    snapshotPending = true;
+    handler.removeCallbacks(snapshotSaver);
+    handler.postDelayed(snapshotSaver, SNAPSHOT_DELAY);
+  }
+
   private Runnable progressUpdater;
 
   static abstract class MemoryClass {
@@ -525,7 +605,105 @@ public class DiskUsage extends LoadableActivity {
   }
   MemoryClass memoryClass = MemoryClass.getInstance(this);
 
-  private int getMemoryQuota() {
+  /**
+   * Number of threads used by the scanners, 1 selects serial scan.
+   */
+  private int getScanThreads() {
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getInt(
+        SCAN_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Time in ms after which the scan shows what it has got, the rest is
+   * scanned in background. 0 means no limit.
+   */
+  private long getScanBudget() {
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getLong(
+        SCAN_BUDGET_KEY, 0);
+  }
+
+  /**
+   * io_uring queue depth of the native scanner, 0 means stat syscall per
+   * entry. Off by default, as io_uring can be blocked by seccomp or
+   * selinux, the scanner falls back to stat then.
+   */
+  private int getScanQueueDepth() {
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getInt(
+        SCAN_URING_DEPTH_KEY, 0);
+  }
+
+  /**
+   * Runs scans at idle priority, throttled while storage is busy, so that
+   * other apps don't get janky. Scans take longer then.
+   */
+  boolean isScanInBackground() {
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getBoolean(
+        SCAN_IN_BACKGROUND_KEY, false);
+  }
+
+  /**
+   * Scans the path below FUSE with su when the app cannot read it. Off by
+   * default, it brings up the su prompt for a mount point which does not
+   * need root.
+   */
+  private boolean isLowerPathAsRoot() {
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getBoolean(
+        SCAN_LOWER_PATH_AS_ROOT_KEY, false);
+  }
+
+  /**
+   * Shows the tree after the top levels are listed, the rest is scanned
+   * while it is shown. Only the java scanner does it, so it is used when
+   * the native scanner is not.
+   */
+  private boolean isProgressiveScan() {
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getBoolean(
+        PROGRESSIVE_SCAN_KEY, false);
+  }
+
+  /**
+   * Whether a scan setting of the menu is on, see toggleScanSetting().
+   */
+  boolean isScanSettingOn(String key) {
+    if (SCAN_THREADS_KEY.equals(key)) return getScanThreads() > 1;
+    if (SCAN_BUDGET_KEY.equals(key)) return getScanBudget() > 0;
+    if (SCAN_URING_DEPTH_KEY.equals(key)) return getScanQueueDepth() > 0;
+    return getSharedPreferences("settings", Context.MODE_PRIVATE).getBoolean(
+        key, false);
+  }
+
+  /**
+   * Turns a scan setting on or off, the next scan uses it.
+   * @return whether it is on now
+   */
+  boolean toggleScanSetting(String key) {
+    boolean on = !isScanSettingOn(key);
+    SharedPreferences.Editor editor =
+        getSharedPreferences("settings", Context.MODE_PRIVATE).edit();
+    if (SCAN_THREADS_KEY.equals(key)) {
+      editor.putInt(key,
+          on ? Math.max(2, Runtime.getRuntime().availableProcessors()) : 1);
+    } else if (SCAN_BUDGET_KEY.equals(key)) {
+      editor.putLong(key, on ? MENU_SCAN_BUDGET : 0);
+    } else if (SCAN_URING_DEPTH_KEY.equals(key)) {
+      editor.putInt(key, on ? MENU_SCAN_URING_DEPTH : 0);
+    } else {
+      editor.putBoolean(key, on);
+    }
+    editor.commit();
+    return on;
+  }
+
+  Scanner makeScanner(int maxdepth, FileSystemStats stats, int heap) {
+    int numThreads = getScanThreads();
+    Scanner scanner = numThreads > 1
+        ? new ParallelScanner(maxdepth, stats.blockSize, stats.busyBlocks, heap, numThreads)
+        : new Scanner(maxdepth, stats.blockSize, stats.busyBlocks, heap);
+    scanner.setCacheDir(getCacheDir());
+    return scanner;
+  }
+
+  int getMemoryQuota() {
     int totalMem = memoryClass.maxHeap();
     int numMountPoints = MountPoint.getMountPoints(this).size();
     return totalMem / (numMountPoints + 1);
@@ -589,26 +767,188 @@ public class DiskUsage extends LoadableActivity {
     };
   }
 
+  /**
+   * Finds node of the previous tree for the scanned directory, it is
+   * wrapped into "media" root when apps are shown.
+   */
+  static FileSystemEntry findScannedRoot(FileSystemSuperRoot root, String path) {
+    FileSystemEntry top = root.children[0];
+    if (top.children == null) return null;
+    for (FileSystemEntry e : top.children) {
+      if (e instanceof FileSystemRoot && e.absolutePath().equals(path)) return e;
+    }
+    return top;
+  }
+
+  /**
+   * Runs native scanner on the path, reports the time together with the
+   * last time of scan of the mount point through the other path.
+   * @return null if the scan failed
+   */
+  private FileSystemEntry scanNative(MountPoint mountPoint, String path,
+      boolean rootRequired, FileSystemStats stats, int heap,
+      ScanCancellation cancellation) throws IOException, InterruptedException {
+    final NativeScanner scanner = new NativeScanner(
+        this, stats.blockSize, stats.busyBlocks, heap, getScanThreads());
+    scanner.setCancellation(cancellation);
+    scanner.setQueueDepth(getScanQueueDepth());
+    scanner.setBackground(isScanInBackground());
+    progressUpdater = makeProgressUpdater(scanner, stats);
+    handler.post(progressUpdater);
+    long start = SystemClock.uptimeMillis();
+    FileSystemEntry rootElement;
+    try {
+      rootElement = scanner.scan(path, rootRequired);
+    } catch (CancellationException e) {
+      throw e;
+    } catch (IOException|RuntimeException e) {
+      Log.d("diskusage", "native scan of " + path + " failed", e);
+      return null;
+    } finally {
+      handler.removeCallbacks(progressUpdater);
+    }
+    long time = SystemClock.uptimeMillis() - start;
+    SharedPreferences prefs = getSharedPreferences("settings", Context.MODE_PRIVATE);
+    String lowerPath = mountPoint.getLowerPath();
+    if (lowerPath != null) {
+      String otherPath = path.equals(lowerPath) ? mountPoint.getRoot() : lowerPath;
+      long otherTime = prefs.getLong(SCAN_TIME_KEY + otherPath, 0);
+      Log.d("diskusage", "native scan: " + path + " in " + time + " ms, "
+          + otherPath + (otherTime != 0 ? " in " + otherTime + " ms" : " not scanned")
+          + " last time");
+      prefs.edit().putLong(SCAN_TIME_KEY + path, time).commit();
+    }
+    return rootElement;
+  }
+
+  /**
+   * Finds the entry of the path in the tree of the root path. The tree
+   * may be shown meanwhile, children of packed entries are not created in
+   * it.
+   * @return null if there is no such entry
+   */
+  private static FileSystemEntry findInTree(FileSystemEntry top,
+      String rootPath, String path) {
+    if (path.equals(rootPath)) return top;
+    String prefix = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+    if (!path.startsWith(prefix)) return null;
+    FileSystemEntry e = top;
+    for (String name : path.substring(prefix.length()).split("/")) {
+      FileSystemEntry[] children = e.listChildren();
+      if (children == null) return null;
+      e = null;
+      for (FileSystemEntry c : children) {
+        if (c instanceof FileSystemSpecial || c instanceof FileSystemEntrySmall) continue;
+        if (c.getName().equals(name)) {
+          e = c;
+          break;
+        }
+      }
+      if (e == null) return null;
+    }
+    return e;
+  }
+
+  /**
+   * Copies the tree of the same files from another mount point of the
+   * same device, e.g. /data/media/0 for a bind mount of it, if that one
+   * is already scanned.
+   */
+  private FileSystemEntry copyBindMount(RootMountPoint mountPoint) {
+    for (MountPoint m : RootMountPoint.getRootedMountPoints(this)) {
+      if (m == mountPoint) continue;
+      String path = mountPoint.getPathIn((RootMountPoint) m);
+      if (path == null) continue;
+      FileSystemSuperRoot scanned = ScanService.getResult(m.getKey());
+      if (scanned == null) continue;
+      FileSystemEntry e = findInTree(scanned.children[0], m.getRoot(), path);
+      if (e == null || !e.isDirectory()) continue;
+      Log.d("diskusage", "bind mount: copied tree of " + path
+          + " for " + mountPoint.getRoot());
+      FileSystemEntry copy = e.copy();
+      // free and system space are calculated again for this mount point
+      ArrayList<FileSystemEntry> children = new ArrayList<FileSystemEntry>();
+      for (FileSystemEntry c : copy.listChildren()) {
+        if (!(c instanceof FileSystemSpecial)) children.add(c);
+      }
+      copy.children = children.toArray(new FileSystemEntry[children.size()]);
+      return copy;
+    }
+    return null;
+  }
+
   @Override
-  FileSystemSuperRoot scan() throws IOException, InterruptedException {
+  FileSystemSuperRoot scan(FileSystemSuperRoot previous,
+      ScanCancellation cancellation) throws IOException, InterruptedException {
     final MountPoint mountPoint = MountPoint.getForKey(this, key);
     final MountPoint realMountPoint = mountPoint;
     final FileSystemStats stats = new FileSystemStats(mountPoint);
     int heap = getMemoryQuota();
+    long scanStartTime = System.currentTimeMillis();
+
+    // Only the java scanner can rescan incrementally, it cannot see
+    // directories readable by root only. Times of directories may miss a
+    // change, e.g. on FAT, so from time to time it makes a full scan.
+    FileSystemEntry previousRoot = null;
+    if (previous != null && previous.scanStartTime != 0 && !previous.partial
+        && scanStartTime - previous.fullScanStartTime < MAX_INCREMENTAL_SCAN_AGE
+        && !mountPoint.isRootRequired()) {
+      previousRoot = findScannedRoot(previous, mountPoint.getRoot());
+    }
 
-    FileSystemEntry rootElement;
-    try {
-      final NativeScanner scanner = new NativeScanner(this, stats.blockSize, stats.busyBlocks, heap);
-      progressUpdater = makeProgressUpdater(scanner, stats);
-      handler.post(progressUpdater);
-      rootElement = scanner.scan(mountPoint);
-      handler.removeCallbacks(progressUpdater);
-    } catch (RuntimeException e) {
-      final Scanner scanner = new Scanner(20, stats.blockSize, stats.busyBlocks, heap);
+    // Only the java scanner can leave directories unscanned when the time
+    // budget runs out.
+    cancellation.setBudget(getScanBudget());
+    boolean useNative = previousRoot == null
+        && (mountPoint.isRootRequired() || !cancellation.hasBudget());
+    boolean partial = false;
+
+    FileSystemEntry rootElement = null;
+    if (useNative && mountPoint instanceof RootMountPoint) {
+      rootElement = copyBindMount((RootMountPoint) mountPoint);
+    }
+    if (useNative && rootElement == null) {
+      // The same files below FUSE, stat of them doesn't go through
+      // userspace. The tree is put under the mount point all the same.
+      String lowerPath = mountPoint.getLowerPath();
+      if (lowerPath != null) {
+        boolean readable = new File(lowerPath).list() != null;
+        if (readable || (isLowerPathAsRoot() && DataSource.get().isDeviceRooted())) {
+          rootElement = scanNative(mountPoint, lowerPath, !readable,
+              stats, heap, cancellation);
+        }
+      }
+    }
+    if (useNative && rootElement == null) {
+      rootElement = scanNative(mountPoint, mountPoint.getRoot(),
+          mountPoint.isRootRequired(), stats, heap, cancellation);
+    }
+    if (rootElement == null) {
+      // Native scan is faster than showing the top levels first, which
+      // is kept for when the native scanner is not there or failed.
+      boolean progressive = previousRoot == null
+          && !mountPoint.isRootRequired() && isProgressiveScan();
+      partial = progressive;
+      final Scanner scanner = makeScanner(progressive ? SHALLOW_DEPTH : 20, stats, heap);
+      scanner.setShallow(progressive);
+      if (previousRoot != null) {
+        scanner.setPrevious(previousRoot, previous.scanStartTime);
+      } else if (previous != null) {
+        scanner.setSizeHints(findScannedRoot(previous, mountPoint.getRoot()));
+      }
+      scanner.setCancellation(cancellation);
+      // Timing every stat costs, only background scans are throttled.
+      ScanThrottle throttle = isScanInBackground() ? new ScanThrottle() : null;
+      scanner.setThrottle(throttle);
       progressUpdater = makeProgressUpdater(scanner, stats);
       handler.post(progressUpdater);
-      rootElement = scanner.scan(DataSource.get().createLegacyScanFile(mountPoint.getRoot()));
-      handler.removeCallbacks(progressUpdater);
+      try {
+        rootElement = scanner.scan(DataSource.get().createLegacyScanFile(mountPoint.getRoot()));
+      } finally {
+        handler.removeCallbacks(progressUpdater);
+      }
+      if (throttle != null) throttle.log("scan");
+      if (scanner.isOverBudget()) partial = true;
     }
 
     ArrayList<FileSystemEntry> entries = new ArrayList<FileSystemEntry>();
@@ -655,6 +995,10 @@ public class DiskUsage extends LoadableActivity {
         .setChildren(entries.toArray(new FileSystemEntry[0]), stats.blockSize);
     FileSystemSuperRoot newRoot = new FileSystemSuperRoot(stats.blockSize);
     newRoot.setChildren(new FileSystemEntry[] { rootElement }, stats.blockSize);
+    newRoot.scanStartTime = scanStartTime;
+    newRoot.fullScanStartTime =
+        previousRoot != null ? previous.fullScanStartTime : scanStartTime;
+    newRoot.partial = partial;
     return newRoot;
   }
 
@@ -672,7 +1016,7 @@ public class DiskUsage extends LoadableActivity {
     if (e != null) {
       e.remove(blockSize);
       FileSystemRoot newRoot = FileSystemRoot.makeNode(newName, path, true);
-      newRoot.setChildren(e.children, blockSize);
+      newRoot.setChildren(e.getChildren(), blockSize);
       pkg.addPublicChild(newRoot, type, blockSize);
     }
   }
@@ -4,6 +4,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.View;
 import android.view.MenuItem.OnMenuItemClickListener;
 
@@ -25,6 +26,17 @@ public abstract class DiskUsageMenu {
   protected MenuItem rescanMenuItem;
   protected MenuItem deleteMenuItem;
   protected MenuItem rendererMenuItem;
+  protected MenuItem liveUpdateMenuItem;
+
+  // Titles and keys of the settings in the scan settings submenu.
+  private static final String[][] SCAN_SETTINGS = {
+    { "Parallel Scan", DiskUsage.SCAN_THREADS_KEY },
+    { "Progressive Scan", DiskUsage.PROGRESSIVE_SCAN_KEY },
+    { "Show Tree After 3 s", DiskUsage.SCAN_BUDGET_KEY },
+    { "Scan in Background", DiskUsage.SCAN_IN_BACKGROUND_KEY },
+    { "Stat with io_uring", DiskUsage.SCAN_URING_DEPTH_KEY },
+    { "Scan Lower Path as Root", DiskUsage.SCAN_LOWER_PATH_AS_ROOT_KEY },
+  };
 
   public DiskUsageMenu(DiskUsage diskusage) {
     this.diskusage = diskusage;
@@ -136,6 +148,28 @@ public abstract class DiskUsageMenu {
       }
     });
 
+    liveUpdateMenuItem = menu.add("Live Update");
+    liveUpdateMenuItem.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+      public boolean onMenuItemClick(MenuItem item) {
+        diskusage.toggleLiveUpdate();
+        return true;
+      }
+    });
+
+    SubMenu scanSettings = menu.addSubMenu("Scan Settings");
+    for (String[] setting : SCAN_SETTINGS) {
+      final String key = setting[1];
+      MenuItem item = scanSettings.add(setting[0]);
+      item.setCheckable(true);
+      item.setChecked(diskusage.isScanSettingOn(key));
+      item.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+        public boolean onMenuItemClick(MenuItem item) {
+          item.setChecked(diskusage.toggleScanSetting(key));
+          return true;
+        }
+      });
+    }
+
     updateMenu();
     return true;
   }
@@ -149,6 +183,7 @@ public abstract class DiskUsageMenu {
       rescanMenuItem.setEnabled(false);
       deleteMenuItem.setEnabled(false);
       rendererMenuItem.setEnabled(false);
+      liveUpdateMenuItem.setEnabled(false);
       return;
     }
 
@@ -163,6 +198,11 @@ public abstract class DiskUsageMenu {
     rendererMenuItem.setEnabled(true);
     final boolean isGPU = diskusage.fileSystemState.isGPU();
     rendererMenuItem.setTitle(isGPU ? "Software Renderer" : "Hardware Renderer");
+    liveUpdateMenuItem.setEnabled(true);
+    int numUnwatched = diskusage.liveUpdater.getNumUnwatched();
+    liveUpdateMenuItem.setTitle(!diskusage.liveUpdater.isEnabled()
+        ? "Start Live Update" : numUnwatched == 0 ? "Stop Live Update"
+        : "Stop Live Update (" + numUnwatched + " directories not watched)");
 
     rescanMenuItem.setEnabled(true);
     searchMenuItem.setEnabled(true);
@@ -172,7 +212,7 @@ public abstract class DiskUsageMenu {
                 || selectedEntity instanceof FileSystemSpecial);
     showMenuItem.setEnabled(view);
 
-    boolean fileOrNotSearching = searchPattern == null || selectedEntity.children == null;
+    boolean fileOrNotSearching = searchPattern == null || !selectedEntity.isDirectory();
     MountPoint mountPoint = MountPoint.getForKey(diskusage, diskusage.getKey());
     deleteMenuItem.setEnabled(view && selectedEntity.isDeletable()
         && fileOrNotSearching && mountPoint.isDeleteSupported());
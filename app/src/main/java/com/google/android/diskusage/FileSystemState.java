@@ -21,6 +21,7 @@ package com.google.android.diskusage;
 
 import com.google.android.diskusage.datasource.DataSource;
 import com.google.android.diskusage.entity.FileSystemEntry;
+import com.google.android.diskusage.entity.FileSystemEntrySmall;
 import com.google.android.diskusage.entity.FileSystemFreeSpace;
 import com.google.android.diskusage.entity.FileSystemSuperRoot;
 import com.google.android.diskusage.entity.FileSystemSystemSpace;
@@ -43,6 +44,8 @@ import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 
 public class FileSystemState {
 
@@ -82,6 +85,13 @@ public class FileSystemState {
     public void searchRequest() {
       context.searchRequest();
     }
+    public void lazyScan(FileSystemEntry entry) {
+      context.lazyScanner.request(entry);
+    }
+    /** Can be called from any thread. */
+    public void treeChanged() {
+      context.snapshotChanged();
+    }
 
     public MainThreadAction indirect() {
       return new MainThreadActionIndirect(context);
@@ -145,6 +155,16 @@ public class FileSystemState {
         }
       });
     }
+
+    @Override
+    public void lazyScan(final FileSystemEntry entry) {
+      context.handler.post(new Runnable() {
+        @Override
+        public void run() {
+          context.lazyScanner.request(entry);
+        }
+      });
+    }
   }
 
   private FileSystemView view;
@@ -159,6 +179,12 @@ public class FileSystemState {
   private FileSystemSystemSpace systemSpace;
   private long freeSpaceZoom = 0;
 
+  // "<N files>" entries with children loaded from mapped file, least
+  // recently expanded first.
+  private static final int MAX_EXPANDED_SMALL = 16;
+  private final LinkedHashSet<FileSystemEntrySmall> expandedSmall =
+      new LinkedHashSet<FileSystemEntrySmall>();
+
   private float targetViewDepth;
   private long  targetViewTop;
   private long  targetViewBottom;
@@ -604,6 +630,7 @@ public class FileSystemState {
 
   private void rescanFinished(FileSystemSuperRoot newRoot) {
     masterRoot = newRoot;
+    expandedSmall.clear();
     updateSpecialEntries();
     cursor = new Cursor(this, masterRoot);
     requestRepaint();
@@ -846,6 +873,10 @@ public class FileSystemState {
    * Fling works bad on eclair, use 10ms approximation for last movement
    */
   private void touchSelect(FileSystemEntry entry, long eventTime) {
+    expandSmall(entry);
+    if (LazyScanner.needsScan(entry)) {
+      mainThreadAction.lazyScan(entry);
+    }
     FileSystemEntry prevCursor = cursor.position;
     int prevDepth = cursor.depth;
     cursor.set(this, entry);
@@ -862,7 +893,7 @@ public class FileSystemState {
 
     zoomFitLabelMoveUp(eventTime);
     zoomFitToScreen(eventTime);
-    boolean has_children = entry.children != null && entry.children.length != 0;
+    boolean has_children = entry.hasChildren();
     if (!has_children) {
 //      Log.d("diskusage", "zoom file");
       fullZoom = false;
@@ -1065,6 +1096,35 @@ public class FileSystemState {
     requestRepaint();
   }
 
+  private static boolean isInside(FileSystemEntry e, FileSystemEntry dir) {
+    for (; e != null; e = e.parent) {
+      if (e == dir) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Creates children of "<N files>" entry which the scan moved to mapped
+   * file. The least recently expanded entries are collapsed when there are
+   * too many of them, unless cursor is inside.
+   */
+  private void expandSmall(FileSystemEntry entry) {
+    if (!(entry instanceof FileSystemEntrySmall)) return;
+    FileSystemEntrySmall small = (FileSystemEntrySmall) entry;
+    if (!small.isSpilled()) return;
+    expandedSmall.remove(small);
+    expandedSmall.add(small);
+    small.expand();
+    Iterator<FileSystemEntrySmall> it = expandedSmall.iterator();
+    while (expandedSmall.size() > MAX_EXPANDED_SMALL && it.hasNext()) {
+      FileSystemEntrySmall e = it.next();
+      if (e == small || isInside(cursor.position, e)
+          || isInside(deletingEntry, e)) continue;
+      e.collapse();
+      it.remove();
+    }
+  }
+
   private FileSystemEntry deletingEntry = null;
   private long deletingAnimationStartTime = 0;
   private long deletingInitialSize;
@@ -1087,6 +1147,10 @@ public class FileSystemState {
 
     FileSystemEntry.deletedEntry = null;
     FileSystemEntry parent = deletingEntry.parent;
+    // Collapsing would bring the deleted entry back.
+    for (FileSystemEntry p = parent; p != null; p = p.parent) {
+      expandedSmall.remove(p);
+    }
 
     long freeSpaceEncoded = 0, systemSpaceEncoded = 0;
     if (freeSpace != null) {
@@ -1105,7 +1169,7 @@ public class FileSystemState {
     }
 
     for (FileSystemEntry e : masterRoot.children[0].children) {
-      Log.d("diskusage", "entry = " + e.name + " " + e.getSizeInBlocks());
+      Log.d("diskusage", "entry = " + e.getName() + " " + e.getSizeInBlocks());
     }
 
     if (freeSpace != null) {
@@ -1116,6 +1180,7 @@ public class FileSystemState {
     }
     deletingEntry = null;
     cursor.set(this, cursor.position);
+    mainThreadAction.treeChanged();
   }
 
   private final void fadeAwayEntryStart(FileSystemEntry entry, FileSystemState view) {
@@ -1195,9 +1260,9 @@ public class FileSystemState {
       long deltaBlocks = newBlocks - entry.getSizeInBlocks();
       if (deltaBlocks == 0) return;
       entry.setSizeInBlocks(entry.getSizeInBlocks() + deltaBlocks, displayBlockSize);
-      if (entry.children == null || entry.children.length == 0)
+      FileSystemEntry[] children = entry.getChildren();
+      if (children == null || children.length == 0)
         return;
-      FileSystemEntry[] children = entry.children;
       long blocks = 0;
       FileSystemEntry prevEntry = entry;
       for (int i = 0; i < children.length; i++) {
@@ -1235,6 +1300,86 @@ public class FileSystemState {
     });
   }
 
+  /**
+   * Applies changes of the tree found by live update in render thread.
+   */
+  final void updateInRenderThread(final Runnable update) {
+    view.runInRenderThread(new Runnable() {
+      @Override
+      public void run() {
+        update.run();
+      }
+    });
+    requestRepaintGPU();
+    requestRepaint();
+  }
+
+  /**
+   * Puts entry scanned in background in place of the one without
+   * children, cursor moves to it.
+   */
+  final void replaceScanned(FileSystemEntry entry, FileSystemEntry newEntry) {
+    int displayBlockSize = masterRoot.getDisplayBlockSize();
+    long blocks = newEntry.getSizeInBlocks() - entry.getSizeInBlocks();
+    entry.replace(newEntry, displayBlockSize);
+    FileSystemEntry root = masterRoot.children[0];
+    if (masterRoot.partial && systemSpace != null) {
+      // Space of directories not scanned yet is shown as system data.
+      blocks = Math.min(blocks, systemSpace.getSizeInBlocks());
+      systemSpace.setSizeInBlocks(systemSpace.getSizeInBlocks() - blocks, displayBlockSize);
+      root.setSizeInBlocks(root.getSizeInBlocks() - blocks, displayBlockSize);
+      masterRoot.setSizeInBlocks(masterRoot.getSizeInBlocks() - blocks, displayBlockSize);
+      systemSpace.clearDrawingCache();
+      root.clearDrawingCache();
+    }
+    sortKeepingSpecialLast(root);
+    if (cursor.position == entry) {
+      cursor.set(this, newEntry);
+    }
+  }
+
+  /**
+   * All directories of the tree are scanned.
+   */
+  final void scanCompleted() {
+    masterRoot.partial = false;
+  }
+
+  private void sortKeepingSpecialLast(FileSystemEntry root) {
+    long freeSpaceEncoded = 0, systemSpaceEncoded = 0;
+    if (freeSpace != null) {
+      freeSpaceEncoded = freeSpace.encodedSize;
+      freeSpace.encodedSize = -2;
+    }
+    if (systemSpace != null) {
+      systemSpaceEncoded = systemSpace.encodedSize;
+      systemSpace.encodedSize = -1;
+    }
+    Arrays.sort(root.children, FileSystemEntry.COMPARE);
+    if (freeSpace != null) {
+      freeSpace.encodedSize = freeSpaceEncoded;
+    }
+    if (systemSpace != null) {
+      systemSpace.encodedSize = systemSpaceEncoded;
+    }
+  }
+
+  /**
+   * Removes entry which disappeared from the disk, without animation.
+   * Should be called in render thread.
+   */
+  final void removeDisappeared(FileSystemEntry entry) {
+    if (entry == deletingEntry) return;
+    for (FileSystemEntry e = cursor.position; e != null; e = e.parent) {
+      if (e == entry) {
+        cursor.set(this, entry);
+        break;
+      }
+    }
+    moveAwayCursor(entry);
+    entry.remove(masterRoot.getDisplayBlockSize());
+  }
+
   public final boolean sdcardIsEmpty() {
     return cursor.position == masterRoot;
   }
@@ -1287,10 +1432,14 @@ public class FileSystemState {
     }
 
     if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT) {
+      expandSmall(cursor.position);
+      if (LazyScanner.needsScan(cursor.position)) {
+        mainThreadAction.lazyScan(cursor.position);
+      }
       cursor.right(this);
       zoomFitLabelMoveUp(event.getEventTime());
 
-      float requiredDepth = cursor.depth + 1 + (cursor.position.children == null ? 0 : 1) - maxLevels;
+      float requiredDepth = cursor.depth + 1 + (cursor.position.isDirectory() ? 1 : 0) - maxLevels;
       if (viewDepth < requiredDepth) {
         prepareMotion(event.getEventTime());
         targetViewDepth = requiredDepth;
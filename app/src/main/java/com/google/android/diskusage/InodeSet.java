@@ -0,0 +1,68 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+/**
+ * Set of (st_dev, st_ino) pairs, open addressing with linear probing over
+ * plain long arrays. Zero inode marks a free slot, it is never a valid one.
+ */
+class InodeSet {
+  private long[] devs = new long[1024];
+  private long[] inos = new long[1024];
+  private int size;
+
+  private static int hash(long dev, long ino) {
+    long h = (ino * 0x9E3779B97F4A7C15L) ^ dev;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return true if the pair was not in the set yet
+   */
+  synchronized boolean add(long dev, long ino) {
+    if (ino == 0) return true;
+    if (size * 2 >= inos.length) grow();
+    int mask = inos.length - 1;
+    for (int i = hash(dev, ino) & mask; ; i = (i + 1) & mask) {
+      if (inos[i] == 0) {
+        devs[i] = dev;
+        inos[i] = ino;
+        size++;
+        return true;
+      }
+      if (inos[i] == ino && devs[i] == dev) return false;
+    }
+  }
+
+  private void grow() {
+    long[] oldDevs = devs;
+    long[] oldInos = inos;
+    devs = new long[oldInos.length * 2];
+    inos = new long[oldInos.length * 2];
+    int mask = inos.length - 1;
+    for (int j = 0; j < oldInos.length; j++) {
+      if (oldInos[j] == 0) continue;
+      int i = hash(oldDevs[j], oldInos[j]) & mask;
+      while (inos[i] != 0) i = (i + 1) & mask;
+      devs[i] = oldDevs[j];
+      inos[i] = oldInos[j];
+    }
+  }
+}
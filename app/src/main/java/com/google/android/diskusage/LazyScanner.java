@@ -0,0 +1,135 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.util.Log;
+
+import com.google.android.diskusage.entity.FileSystemEntry;
+import com.google.android.diskusage.entity.FileSystemEntrySmall;
+import com.google.android.diskusage.entity.FileSystemSuperRoot;
+import com.google.android.diskusage.entity.FileSystemUnscanned;
+
+/**
+ * Scans parts of the tree which the full scan left without children, when
+ * the user zooms into them. Directories below the depth limit are scanned
+ * as a whole, "<N files>" entries dropped for lack of heap by rescanning
+ * their directory. Scan runs in its own thread, the result is put into
+ * the tree in render thread.
+ */
+public class LazyScanner {
+  private final DiskUsage diskusage;
+  private final WorkerThread worker = new WorkerThread("diskusage-lazy");
+  private final HashSet<FileSystemEntry> requested = new HashSet<FileSystemEntry>();
+
+  public LazyScanner(DiskUsage diskusage) {
+    this.diskusage = diskusage;
+  }
+
+  /**
+   * The entry has no children only because the scan skipped them.
+   */
+  static boolean needsScan(FileSystemEntry entry) {
+    if (entry instanceof FileSystemUnscanned) return true;
+    return entry instanceof FileSystemEntrySmall
+        && !((FileSystemEntrySmall) entry).isSpilled()
+        && entry.children == null;
+  }
+
+  /**
+   * Starts scan of the entry, if it is not scanned yet.
+   */
+  public synchronized void request(final FileSystemEntry entry) {
+    final FileSystemState state = diskusage.fileSystemState;
+    if (state == null || !needsScan(entry) || !requested.add(entry)) return;
+    final FileSystemSuperRoot root = state.masterRoot;
+    final int blockSize = root.getDisplayBlockSize();
+    final String path = entry instanceof FileSystemEntrySmall
+        ? entry.parent.absolutePath() : entry.absolutePath();
+    worker.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        final FileSystemEntry scanned = scan(path, blockSize);
+        if (scanned == null) return;
+        state.updateInRenderThread(new Runnable() {
+          @Override
+          public void run() {
+            graft(state, root, entry, scanned, blockSize);
+          }
+        });
+      }
+    });
+  }
+
+  public synchronized void stop() {
+    requested.clear();
+    worker.quit();
+  }
+
+  private static FileSystemEntry scan(String path, int blockSize) {
+    long start = System.currentTimeMillis();
+    try {
+      FileSystemEntry scanned = Scanner.scanSubtree(path, blockSize);
+      Log.d("diskusage", "lazy scan: " + path + " in "
+          + (System.currentTimeMillis() - start) + " ms");
+      return scanned;
+    } catch (IOException e) {
+      Log.d("diskusage", "lazy scan failed: " + path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Runs in render thread, puts scanned entries in place of the entry.
+   */
+  private void graft(FileSystemState state, FileSystemSuperRoot root,
+      FileSystemEntry entry, FileSystemEntry scanned, int blockSize) {
+    synchronized (this) {
+      requested.remove(entry);
+    }
+    if (state.masterRoot != root || !entry.isAttachedTo(root)) return;
+    FileSystemEntry newEntry;
+    if (entry instanceof FileSystemEntrySmall) {
+      // Files of the directory which are not in the tree are the ones
+      // hidden behind "<N files>", show them as its children.
+      HashSet<String> shown = new HashSet<String>();
+      for (FileSystemEntry c : entry.parent.children) {
+        if (c != entry) shown.add(c.getName());
+      }
+      ArrayList<FileSystemEntry> hidden = new ArrayList<FileSystemEntry>();
+      if (scanned.children != null) {
+        for (FileSystemEntry c : scanned.children) {
+          if (!shown.contains(c.getName())) hidden.add(c);
+        }
+      }
+      FileSystemEntry[] children = hidden.toArray(new FileSystemEntry[hidden.size()]);
+      java.util.Arrays.sort(children, FileSystemEntry.COMPARE);
+      newEntry = FileSystemEntrySmall.makeNode(null, entry.getName(), children.length)
+          .setChildren(children, blockSize);
+    } else {
+      newEntry = scanned;
+    }
+    state.replaceScanned(entry, newEntry);
+    Log.d("diskusage", "lazy scan: grafted " + newEntry.getNumFiles() + " files");
+  }
+}
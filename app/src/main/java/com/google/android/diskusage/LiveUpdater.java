@@ -0,0 +1,423 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.google.android.diskusage.entity.FileSystemEntry;
+import com.google.android.diskusage.entity.FileSystemEntrySmall;
+import com.google.android.diskusage.entity.FileSystemFile;
+import com.google.android.diskusage.entity.FileSystemPackage;
+import com.google.android.diskusage.entity.FileSystemSpecial;
+import com.google.android.diskusage.entity.FileSystemSuperRoot;
+
+/**
+ * Keeps the tree up to date after the scan. Watches directories with
+ * FileObserver, collects events for a while and applies them to the tree
+ * as one batch in render thread.
+ */
+public class LiveUpdater {
+  private static final String LIVE_UPDATE = "live_update";
+  // inotify watches are shared by all apps of the user, 8192 by default.
+  // Only the largest directories are watched when there are more.
+  private static final int MAX_WATCHES = 2048;
+  private static final long BATCH_DELAY = 1000;
+  // MODIFY for files which grow while they stay open, e.g. downloads and
+  // logs. Events of a name are merged into one change per batch.
+  private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE
+      | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+      | FileObserver.MODIFY;
+
+  private final DiskUsage diskusage;
+  private boolean enabled;
+  private boolean enabledChanged;
+
+  private FileSystemSuperRoot root;
+  private int blockSize;
+  private final WorkerThread worker = new WorkerThread("diskusage-live");
+  private final HashMap<FileSystemEntry, DirObserver> observers =
+      new HashMap<FileSystemEntry, DirObserver>();
+  // Changed names of directories, true if the name was created.
+  private HashMap<FileSystemEntry, HashMap<String, Boolean>> pending =
+      new HashMap<FileSystemEntry, HashMap<String, Boolean>>();
+  private boolean flushScheduled;
+  // Lower of MAX_WATCHES and the inotify limit of the kernel.
+  private int maxWatches = MAX_WATCHES;
+  // Directories of the tree left without a watch by the limit.
+  private int numUnwatched;
+
+  private class DirObserver extends FileObserver {
+    final FileSystemEntry dir;
+
+    DirObserver(String path, FileSystemEntry dir) {
+      super(path, EVENTS);
+      this.dir = dir;
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      if (path == null) return;
+      addPending(dir, path,
+          (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0);
+    }
+  }
+
+  /**
+   * New state of a child of watched directory, entry is null if it is gone.
+   */
+  private static class Change {
+    final FileSystemEntry dir;
+    final String name;
+    // not in the tree before, even if it is not found there
+    final boolean created;
+    FileSystemEntry entry;
+
+    Change(FileSystemEntry dir, String name, boolean created) {
+      this.dir = dir;
+      this.name = name;
+      this.created = created;
+    }
+  }
+
+  private SharedPreferences getPrefs() {
+    return diskusage.getSharedPreferences("settings", Context.MODE_PRIVATE);
+  }
+
+  public LiveUpdater(DiskUsage diskusage) {
+    this.diskusage = diskusage;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Number of directories whose changes are not seen, as there are more
+   * of them than watches.
+   */
+  public synchronized int getNumUnwatched() {
+    return numUnwatched;
+  }
+
+  /**
+   * @return max_user_watches of inotify, or MAX_VALUE if it is not known
+   */
+  private static int readWatchLimit() {
+    try {
+      BufferedReader reader = new BufferedReader(
+          new FileReader("/proc/sys/fs/inotify/max_user_watches"));
+      try {
+        return Integer.parseInt(reader.readLine().trim());
+      } finally {
+        reader.close();
+      }
+    } catch (IOException|RuntimeException e) {
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  public void toggle(FileSystemSuperRoot root) {
+    enabled = !enabled;
+    enabledChanged = true;
+    if (enabled) {
+      start(root);
+    } else {
+      stop();
+    }
+  }
+
+  public void onResume() {
+    enabled = getPrefs().getBoolean(LIVE_UPDATE, false);
+  }
+
+  public void onPause() {
+    stop();
+    if (enabledChanged) {
+      getPrefs().edit().putBoolean(LIVE_UPDATE, enabled).commit();
+    }
+  }
+
+  private static boolean isWatchable(FileSystemEntry e) {
+    return e.children != null
+        && !(e instanceof FileSystemEntrySmall)
+        && !(e instanceof FileSystemSpecial)
+        && !(e instanceof FileSystemPackage);
+  }
+
+  private static void collectDirectories(
+      FileSystemEntry e, ArrayList<FileSystemEntry> out) {
+    if (e.children == null) return;
+    for (FileSystemEntry c : e.children) {
+      if (!isWatchable(c)) continue;
+      out.add(c);
+      collectDirectories(c, out);
+    }
+  }
+
+  /**
+   * Starts watching directories of the tree, if enabled.
+   */
+  public void start(FileSystemSuperRoot root) {
+    stop();
+    if (!enabled || root == null) return;
+    FileSystemEntry scannedRoot =
+        DiskUsage.findScannedRoot(root, root.children[0].absolutePath());
+    if (scannedRoot == null) return;
+    this.root = root;
+    this.blockSize = root.getDisplayBlockSize();
+
+    ArrayList<FileSystemEntry> dirs = new ArrayList<FileSystemEntry>();
+    dirs.add(scannedRoot);
+    collectDirectories(scannedRoot, dirs);
+    int watchLimit = readWatchLimit();
+    maxWatches = Math.min(MAX_WATCHES, watchLimit);
+    if (dirs.size() > maxWatches) {
+      Collections.sort(dirs, new Comparator<FileSystemEntry>() {
+        @Override
+        public int compare(FileSystemEntry a, FileSystemEntry b) {
+          return Long.compare(b.encodedSize, a.encodedSize);
+        }
+      });
+      Log.d("diskusage", "live update: watching " + maxWatches
+          + " largest of " + dirs.size() + " directories, limit is "
+          + MAX_WATCHES + ", inotify limit of the kernel " + watchLimit);
+    }
+    synchronized (this) {
+      for (FileSystemEntry dir : dirs) watch(dir);
+    }
+  }
+
+  public void stop() {
+    synchronized (this) {
+      for (DirObserver observer : observers.values()) {
+        observer.stopWatching();
+      }
+      observers.clear();
+      pending.clear();
+      flushScheduled = false;
+      numUnwatched = 0;
+      root = null;
+    }
+    worker.quit();
+  }
+
+  private void watch(FileSystemEntry dir) {
+    if (observers.containsKey(dir)) return;
+    if (observers.size() >= maxWatches) {
+      numUnwatched++;
+      return;
+    }
+    DirObserver observer = new DirObserver(dir.absolutePath(), dir);
+    observers.put(dir, observer);
+    observer.startWatching();
+  }
+
+  private void unwatch(FileSystemEntry entry) {
+    Iterator<Map.Entry<FileSystemEntry, DirObserver>> it =
+        observers.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<FileSystemEntry, DirObserver> e = it.next();
+      for (FileSystemEntry p = e.getKey(); p != null; p = p.parent) {
+        if (p == entry) {
+          e.getValue().stopWatching();
+          it.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  private synchronized void addPending(FileSystemEntry dir, String name,
+      boolean created) {
+    if (root == null) return;
+    HashMap<String, Boolean> names = pending.get(dir);
+    if (names == null) {
+      names = new HashMap<String, Boolean>();
+      pending.put(dir, names);
+    }
+    Boolean wasCreated = names.get(name);
+    names.put(name, created || (wasCreated != null && wasCreated));
+    if (!flushScheduled) {
+      flushScheduled = true;
+      worker.getHandler().postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, BATCH_DELAY);
+    }
+  }
+
+  private FileSystemEntry makeEntry(String path, String name) {
+    StructStat stat;
+    try {
+      stat = Os.lstat(path);
+    } catch (ErrnoException e) {
+      return null;
+    }
+    if (OsConstants.S_ISDIR(stat.st_mode)) {
+      try {
+        return Scanner.scanSubtree(path, blockSize);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    return FileSystemFile.makeNode(null, name).initSizeInBytesAndBlocks(
+        stat.st_size, stat.st_blocks / (blockSize / 512), blockSize);
+  }
+
+  /**
+   * Runs in live update thread, stats or scans changed entries and
+   * passes them to render thread.
+   */
+  private void flush() {
+    HashMap<FileSystemEntry, HashMap<String, Boolean>> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new HashMap<FileSystemEntry, HashMap<String, Boolean>>();
+      flushScheduled = false;
+    }
+    final ArrayList<Change> changes = new ArrayList<Change>();
+    for (Map.Entry<FileSystemEntry, HashMap<String, Boolean>> e : batch.entrySet()) {
+      FileSystemEntry dir = e.getKey();
+      String dirPath = dir.absolutePath();
+      for (Map.Entry<String, Boolean> name : e.getValue().entrySet()) {
+        Change change = new Change(dir, name.getKey(), name.getValue());
+        change.entry = makeEntry(dirPath + "/" + name.getKey(), name.getKey());
+        changes.add(change);
+      }
+    }
+    if (changes.isEmpty()) return;
+    final FileSystemState state = diskusage.fileSystemState;
+    if (state == null) return;
+    state.updateInRenderThread(new Runnable() {
+      @Override
+      public void run() {
+        apply(state, changes);
+      }
+    });
+  }
+
+  private static FileSystemEntry findChild(FileSystemEntry dir, String name) {
+    for (FileSystemEntry c : dir.children) {
+      if (c instanceof FileSystemEntrySmall) {
+        // Files of expanded "<N files>" entry.
+        if (c.children == null) continue;
+        FileSystemEntry e = findChild(c, name);
+        if (e != null) return e;
+        continue;
+      }
+      if (c instanceof FileSystemSpecial) continue;
+      if (c.getName().equals(name)) return c;
+    }
+    return null;
+  }
+
+  /**
+   * @return "<N files>" entry of the directory, the scan folds small files
+   * into it without their names
+   */
+  private static FileSystemEntrySmall findSmall(FileSystemEntry dir) {
+    for (FileSystemEntry c : dir.children) {
+      if (c instanceof FileSystemEntrySmall && c.children == null) {
+        return (FileSystemEntrySmall) c;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void apply(FileSystemState state, ArrayList<Change> changes) {
+    if (root == null || state.masterRoot != root) return;
+    int numChanges = 0;
+    for (Change change : changes) {
+      FileSystemEntry dir = change.dir;
+      if (!dir.isAttachedTo(root)) continue;
+      FileSystemEntry old = findChild(dir, change.name);
+      FileSystemEntry entry = change.entry;
+      FileSystemEntrySmall small =
+          old == null && !change.created ? findSmall(dir) : null;
+      if (small != null) {
+        // The entry is in "<N files>", it is counted there already. Size of
+        // a changed file there is not known, only removal is applied.
+        if (entry != null) continue;
+        if (small.getNumFiles() <= 1) {
+          state.removeDisappeared(small);
+        } else {
+          long delta = small.removeFile(blockSize);
+          small.clearDrawingCache();
+          for (FileSystemEntry p = dir; p != null; p = p.parent) {
+            p.setSizeInBlocks(p.getSizeInBlocks() - delta, blockSize);
+            p.clearDrawingCache();
+            Arrays.sort(p.children, FileSystemEntry.COMPARE);
+          }
+        }
+      } else if (entry == null) {
+        if (old == null) continue;
+        unwatch(old);
+        state.removeDisappeared(old);
+      } else if (old != null && !old.isDirectory() && !entry.isDirectory()) {
+        long delta = entry.getSizeInBlocks() - old.getSizeInBlocks();
+        if (delta == 0) continue;
+        old.encodedSize = entry.encodedSize;
+        old.clearDrawingCache();
+        for (FileSystemEntry p = old.parent; p != null; p = p.parent) {
+          p.setSizeInBlocks(p.getSizeInBlocks() + delta, blockSize);
+          p.clearDrawingCache();
+          Arrays.sort(p.children, FileSystemEntry.COMPARE);
+        }
+      } else {
+        if (old != null) {
+          unwatch(old);
+          state.removeDisappeared(old);
+        }
+        dir.insert(entry, blockSize);
+        if (isWatchable(entry)) {
+          ArrayList<FileSystemEntry> dirs = new ArrayList<FileSystemEntry>();
+          dirs.add(entry);
+          collectDirectories(entry, dirs);
+          for (FileSystemEntry d : dirs) watch(d);
+        }
+      }
+      numChanges++;
+    }
+    Log.d("diskusage", "live update: applied " + numChanges + " of "
+        + changes.size() + " changes, " + numUnwatched
+        + " directories are not watched");
+    if (numChanges != 0) state.mainThreadAction.treeChanged();
+  }
+}
@@ -19,6 +19,7 @@
 
 package com.google.android.diskusage;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.TreeMap;
@@ -29,13 +30,13 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnClickListener;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.google.android.diskusage.DiskUsage.AfterLoad;
 import com.google.android.diskusage.entity.FileSystemEntry;
 import com.google.android.diskusage.entity.FileSystemPackage;
+import com.google.android.diskusage.entity.FileSystemSnapshot;
 import com.google.android.diskusage.entity.FileSystemSuperRoot;
 
 public abstract class LoadableActivity extends Activity {
@@ -49,10 +50,14 @@ public abstract class LoadableActivity extends Activity {
 
   public abstract String getKey();
 
-  abstract FileSystemSuperRoot scan() throws IOException, InterruptedException;
+  /**
+   * @param previous tree of the previous scan on rescan, null otherwise
+   * @param cancellation cancelled when the progress dialog is cancelled
+   */
+  abstract FileSystemSuperRoot scan(FileSystemSuperRoot previous,
+      ScanCancellation cancellation) throws IOException, InterruptedException;
 
   class PersistantActivityState {
-    FileSystemSuperRoot root;
     AfterLoad afterLoad;
     MyProgressDialog loading;
   };
@@ -62,21 +67,9 @@ public abstract class LoadableActivity extends Activity {
 
   public static void resetStoredStates() {
     persistantActivityState.clear();
+    ScanService.reset();
   }
 
-
-  // FIXME: use it wisely
- static boolean forceCleanup() {
-   boolean success = false;
-   for (PersistantActivityState state : persistantActivityState.values()) {
-     if (state.afterLoad == null && state.root != null) {
-       state.root = null;
-       success = true;
-     }
-   }
-   return success;
- }
-
   protected PersistantActivityState getPersistantState() {
     String key = getKey();
 
@@ -87,18 +80,52 @@ public abstract class LoadableActivity extends Activity {
     return state;
   }
 
+  File getSnapshotFile() {
+    return new File(getCacheDir(),
+        "snapshot-" + getKey().replaceAll("[^a-zA-Z0-9]", "_"));
+  }
+
+  /**
+   * Writes the tree which no other thread uses yet.
+   */
+  void writeSnapshot(FileSystemSuperRoot root) {
+    try {
+      FileSystemSnapshot.write(root, getSnapshotFile());
+    } catch (IOException|RuntimeException e) {
+      // A broken snapshot must not fail the scan which wrote it.
+      Log.e("diskusage", "failed to save snapshot", e);
+    }
+  }
+
+  /**
+   * Copies the tree and writes the copy in background. Should be called
+   * in the thread which changes the tree, render thread once it is shown.
+   */
+  void saveSnapshot(FileSystemSuperRoot root) {
+    final FileSystemSuperRoot copy = (FileSystemSuperRoot) root.copy();
+    new Thread() {
+      @Override
+      public void run() {
+        writeSnapshot(copy);
+      }
+    }.start();
+  }
+
   void LoadFiles(final LoadableActivity activity,
-      final AfterLoad runAfterLoad, boolean force) {
+      final AfterLoad runAfterLoad, final boolean force) {
     boolean scanRunning = false;
     final PersistantActivityState state = getPersistantState();
+    final String key = getKey();
     Log.d("diskusage", "LoadFiles, afterLoad = " + runAfterLoad);
 
+    final FileSystemSuperRoot previousRoot = force ? ScanService.getResult(key) : null;
     if (force) {
-      state.root = null;
+      ScanService.forgetResult(key);
     }
 
-    if (state.root != null) {
-      runAfterLoad.run(state.root, true);
+    FileSystemSuperRoot root = ScanService.getResult(key);
+    if (root != null) {
+      runAfterLoad.run(root, true);
       return;
     }
 
@@ -112,6 +139,10 @@ public abstract class LoadableActivity extends Activity {
       @Override
       public void onCancel(DialogInterface dialog) {
         state.loading = null;
+        // Stops the scan, so that it doesn't slow down the next one, which
+        // starts from scratch.
+        state.afterLoad = null;
+        ScanService.cancel(key);
         activity.finish();
       }
     });
@@ -122,89 +153,87 @@ public abstract class LoadableActivity extends Activity {
     thisLoading.show();
 
     if (scanRunning) return;
-    final Handler handler = new Handler();
 
-    new Thread() {
+    MountPoint mountPoint = MountPoint.getForKey(activity, key);
+    String path = mountPoint != null ? mountPoint.getRoot() : "/";
+    // FUSE hides the disk, the files below it are on it.
+    String lowerPath = mountPoint != null ? mountPoint.getLowerPath() : null;
+    if (lowerPath != null) path = lowerPath;
+    ScanService.scan(key, path, new ScanService.Task() {
       @Override
-      public void run() {
-        String error;
-        try {
-          Log.d("diskusage", "running scan for " + getKey());
-          final FileSystemSuperRoot newRoot = scan();
-
-          handler.post(new Runnable() {
-            public void run() {
-              if (state.loading == null) {
-                Log.d("diskusage", "no dialog, doesn't run afterLoad");
-                state.afterLoad = null;
-                if (newRoot.children[0].children != null) {
-                  Log.d("diskusage", "no dialog, updating root still");
-                  state.root = newRoot;
-                }
-                return;
-              }
-              if (state.loading.isShowing()) state.loading.dismiss();
-              state.loading = null;
-              AfterLoad afterLoadCopy = state.afterLoad;
-              state.afterLoad = null;
-              Log.d("diskusage", "dismissed dialog");
-
-              if (newRoot.children[0].children == null) {
-                Log.d("diskusage", "empty card");
-                handleEmptySDCard(activity, runAfterLoad);
-                return;
-              }
-              state.root = newRoot;
-              pkg_removed = null;
-              Log.d("diskusage", "run afterLoad = " + afterLoadCopy);
-              afterLoadCopy.run(state.root, false);
-            }
-          });
+      public FileSystemSuperRoot run(ScanCancellation cancellation)
+          throws IOException, InterruptedException {
+        FileSystemSuperRoot root = null;
+        if (!force) {
+          // Show the tree of the last scan right away, rescan refreshes it.
+          root = FileSystemSnapshot.read(getSnapshotFile());
+        }
+        if (root == null) {
+          Log.d("diskusage", "running scan for " + key);
+          root = scan(previousRoot, cancellation);
+          if (root.children[0].children != null && !root.partial) {
+            writeSnapshot(root);
+          }
+        }
+        return root;
+      }
+    }, new ScanService.Listener() {
+      @Override
+      public void onScanned(FileSystemSuperRoot newRoot, Throwable error) {
+        if (error != null) {
+          handleError(activity, state, error);
           return;
-        } catch (final OutOfMemoryError e) {
-          state.root = null;
+        }
+        if (state.loading == null) {
+          Log.d("diskusage", "no dialog, doesn't run afterLoad");
           state.afterLoad = null;
-          Log.d("DiskUsage", "out of memory!");
-          handler.post(new Runnable() {
-            public void run() {
-              if (state.loading == null) return;
-              state.loading.dismiss();
-              handleOutOfMemory(activity);
-            }
-          });
           return;
-        } catch (InterruptedException e) {
-          error = e.getClass().getName() + ":" + e.getMessage();
-          Log.e("diskusage", "native error", e);
-        } catch (IOException e) {
-          error = e.getClass().getName() + ":" + e.getMessage();
-          Log.e("diskusage", "native error", e);
-        } catch (final RuntimeException e) {
-          error = e.getClass().getName() + ":" + e.getMessage();
-          Log.e("diskusage", "native error", e);
-        } catch (final StackOverflowError e) {
-          error = "Filesystem is damaged.";
         }
-        final String finalError = error;
-        state.root = null;
+        if (state.loading.isShowing()) state.loading.dismiss();
+        state.loading = null;
+        AfterLoad afterLoadCopy = state.afterLoad;
         state.afterLoad = null;
-        Log.d("DiskUsage", "exception in scan!");
-        handler.post(new Runnable() {
-          public void run() {
-            if (state.loading == null) return;
-            state.loading.dismiss();
-            new AlertDialog.Builder(activity)
-            .setTitle(finalError)
-            .setOnCancelListener(new OnCancelListener() {
-              public void onCancel(DialogInterface dialog) {
-                activity.finish();
-              }
-            }).create().show();
+        Log.d("diskusage", "dismissed dialog");
 
-          }
-        });
+        if (newRoot.children[0].children == null) {
+          Log.d("diskusage", "empty card");
+          handleEmptySDCard(activity, runAfterLoad);
+          return;
+        }
+        pkg_removed = null;
+        Log.d("diskusage", "run afterLoad = " + afterLoadCopy);
+        afterLoadCopy.run(newRoot, false);
       }
-    }.start();
+    });
+  }
+
+  private static void handleError(final LoadableActivity activity,
+      PersistantActivityState state, Throwable e) {
+    state.afterLoad = null;
+    if (e instanceof OutOfMemoryError) {
+      Log.d("DiskUsage", "out of memory!");
+      if (state.loading == null) return;
+      state.loading.dismiss();
+      handleOutOfMemory(activity);
+      return;
+    }
+    String error;
+    if (e instanceof StackOverflowError) {
+      error = "Filesystem is damaged.";
+    } else {
+      error = e.getClass().getName() + ":" + e.getMessage();
+      Log.e("diskusage", "native error", e);
+    }
+    Log.d("DiskUsage", "exception in scan!");
+    if (state.loading == null) return;
+    state.loading.dismiss();
+    new AlertDialog.Builder(activity)
+    .setTitle(error)
+    .setOnCancelListener(new OnCancelListener() {
+      public void onCancel(DialogInterface dialog) {
+        activity.finish();
+      }
+    }).create().show();
   }
 
   @Override
@@ -30,8 +30,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MountPoint {
+  private static final Pattern EMULATED = Pattern.compile("/storage/emulated/(\\d+)/?");
+
   private String title;
   private final String root;
   private final boolean forceHasApps;
@@ -68,6 +72,17 @@ public class MountPoint {
     return forceHasApps;
   }
 
+  /**
+   * Directory of the same files below FUSE or sdcardfs, e.g. /data/media/0
+   * for /storage/emulated/0. It may need root to read.
+   * @return null if there is none
+   */
+  public String getLowerPath() {
+    if (isRootRequired()) return null;
+    Matcher m = EMULATED.matcher(root);
+    return m.matches() ? "/data/media/" + m.group(1) : null;
+  }
+
   private static List<MountPoint> mountPoints = new ArrayList<>();
   private static Map<String,MountPoint> mountPointForKey = new HashMap<>();
 
@@ -63,7 +63,7 @@ public class MyProgressDialog extends AlertDialog {
     ArrayList<String> pathElements = new ArrayList<String>();
     FileSystemEntry current = entry;
     while (current != null) {
-      pathElements.add(current.name);
+      pathElements.add(current.getName());
       current = current.parent;
     }
 
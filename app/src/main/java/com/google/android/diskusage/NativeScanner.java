@@ -19,19 +19,26 @@
 
 package com.google.android.diskusage;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.diskusage.DiskUsage.ProgressGenerator;
 import com.google.android.diskusage.datasource.DataSource;
+import com.google.android.diskusage.datasource.fast.InProcessScannerStream;
 import com.google.android.diskusage.entity.FileSystemEntry;
 import com.google.android.diskusage.entity.FileSystemEntrySmall;
 import com.google.android.diskusage.entity.FileSystemFile;
+import com.google.android.diskusage.entity.NameArena;
 
 public class NativeScanner implements ProgressGenerator {
   private final int blockSize;
@@ -45,7 +52,7 @@ public class NativeScanner implements ProgressGenerator {
 
   private int heapSize;
   private final int maxHeapSize;
-  private final PriorityQueue<SmallList> smallLists = new PriorityQueue<SmallList>();
+  private final SmallLists smallLists = new SmallLists();
   long pos;
   FileSystemEntry lastCreatedFile;
   private volatile int deepDepth = 0;
@@ -57,32 +64,41 @@ public class NativeScanner implements ProgressGenerator {
     return pos;
   }
 
-  private class SmallList implements Comparable<SmallList> {
-    FileSystemEntry parent;
-    FileSystemEntry[] children;
-    int heapSize;
-    float spaceEfficiency;
-
-    SmallList(FileSystemEntry parent, FileSystemEntry[] children, int heapSize, long blocks) {
-      this.parent = parent;
-      this.children = children;
-      this.heapSize = heapSize;
-      this.spaceEfficiency = blocks / (float) heapSize;
-    }
-
-    @Override
-    public int compareTo(SmallList that) {
-      return spaceEfficiency < that.spaceEfficiency ? -1 : (spaceEfficiency == that.spaceEfficiency ? 0 : 1);
-    }
-  };
+  /**
+   * Version of binary protocol of native scanner, see jni/scan.c.
+   * Older binaries ignore the request and produce text output.
+   */
+  public static final int BINARY_PROTOCOL = 2;
+  /**
+   * Binary protocol, with subtrees scanned by several threads and written
+   * as separate shards.
+   */
+  public static final int SHARDED_PROTOCOL = 3;
+  private final int numThreads;
+  private boolean binaryProtocol;
+  private long numEntries;
+  // Blocks of hardlinks to files which were already counted.
+  private long dedupBlocks;
 
   private InputStream is;
   private final Context context;
+  private final File cacheDir;
+  private ScanCancellation cancellation;
+  private int queueDepth;
+  private boolean background;
+  // Scanner runs in this process and writes into a ring read directly,
+  // instead of writing into a pipe.
+  private boolean inProcess;
+  private long startTime;
+  private long bytesRead;
 
   private static final int bufsize = 65536;
   private int offset = 0;
   private int allocated = 0;
   private final byte[] buffer = new byte[bufsize];
+  private int nameOffset;
+  private int nameLength;
+  private final NameArena names = new NameArena();
 
   private void move() {
 //    Log.d("diskusage", "MOVE!");
@@ -97,11 +113,24 @@ public class NativeScanner implements ProgressGenerator {
     if (allocated == bufsize) {
       move();
     }
-    int res = is.read(buffer, allocated, Math.min(bufsize - allocated, 256));
+    if (cancellation != null) cancellation.throwIfCancelled();
+    int res;
+    try {
+      res = is.read(buffer, allocated, bufsize - allocated);
+    } catch (IOException e) {
+      // Reading from killed scanner fails, it is not an error then.
+      if (cancellation != null && cancellation.isCancelled()) {
+        throw new CancellationException();
+      }
+      throw e;
+    }
+    // killed scanner looks like end of data
+    if (cancellation != null) cancellation.throwIfCancelled();
     if (res <= 0) {
       throw new RuntimeException("Error: no more data");
     }
     allocated += res;
+    bytesRead += res;
   }
 
   public byte getByte() throws IOException {
@@ -114,6 +143,7 @@ public class NativeScanner implements ProgressGenerator {
   }
 
   public long getLong() throws IOException {
+    if (binaryProtocol) return getVarLong();
     long res = 0;
     byte b;
     while ((b = getByte()) != 0) {
@@ -124,7 +154,46 @@ public class NativeScanner implements ProgressGenerator {
     return res;
   }
 
-  public String getString() throws IOException {
+  private long getVarLong() throws IOException {
+    long res = 0;
+    if (allocated - offset >= 10) {
+      // Whole number is in the buffer, skip per byte checks.
+      byte[] buffer = this.buffer;
+      int pos = offset;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = buffer[pos++];
+        res |= (long) (b & 0x7f) << shift;
+        if (b >= 0) {
+          offset = pos;
+          return res;
+        }
+      }
+    } else {
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = getByte();
+        res |= (long) (b & 0x7f) << shift;
+        if (b >= 0) return res;
+      }
+    }
+    throw new RuntimeException("Error: number format error");
+  }
+
+  /**
+   * Reads a name without decoding it, it stays in the buffer at nameOffset
+   * until the next read.
+   */
+  private void readName() throws IOException {
+    if (binaryProtocol) {
+      int len = (int) getVarLong();
+      if (len < 0 || len > bufsize) throw new RuntimeException("Error: too large entity size");
+      while (allocated - offset < len) {
+        read();
+      }
+      nameOffset = offset;
+      nameLength = len;
+      offset += len;
+      return;
+    }
     byte[] buffer = this.buffer;
     int startPos = offset;
 
@@ -132,10 +201,10 @@ public class NativeScanner implements ProgressGenerator {
     while (true) {
       for (int i = startPos; i < allocated; i++) {
         if (buffer[i] == 0) {
-          String res = new String(buffer, offset, i - offset, "UTF-8");
+          nameOffset = offset;
+          nameLength = i - offset;
           offset = i + 1;
-//          Log.d("diskusage", "string = " + res);
-          return res;
+          return;
         }
       }
       int startOffset = startPos - offset;
@@ -147,26 +216,42 @@ public class NativeScanner implements ProgressGenerator {
   enum Type {
     NONE,
     DIR,
-    FILE
+    FILE,
+    HARDLINK
   };
 
   public Type getType() throws IOException {
     int c = getByte();
 //    Log.d("diskusage", "type = " + (char)c);
     switch (c) {
-    case 'D': return Type.DIR;
-    case 'F': return Type.FILE;
+    case 'D': numEntries++; return Type.DIR;
+    case 'F': numEntries++; return Type.FILE;
+    case 'H': numEntries++; return Type.HARDLINK;
     case 'Z': return Type.NONE;
     default: throw new RuntimeException("Error: incorrect entity type");
     }
   }
 
-  NativeScanner(Context context, int blockSize, long allocatedBlocks, int maxHeap) {
+  NativeScanner(Context context, int blockSize, long allocatedBlocks, int maxHeap,
+      int numThreads) {
+    this(context, context.getCacheDir(), blockSize, allocatedBlocks, maxHeap,
+        numThreads);
+  }
+
+  /**
+   * @param context null if the scanner output is passed to scan(InputStream)
+   * @param cacheDir where small lists and shards are spilled to
+   */
+  NativeScanner(Context context, File cacheDir, int blockSize,
+      long allocatedBlocks, int maxHeap, int numThreads) {
     this.blockSize = blockSize;
+    this.numThreads = numThreads;
     this.blockSizeIn512Bytes = blockSize / 512;
     this.sizeThreshold = (allocatedBlocks << FileSystemEntry.blockOffset) / (maxHeap / 2);
     this.maxHeapSize = maxHeap;
     this.context = context;
+    this.cacheDir = cacheDir;
+    smallLists.setCacheDir(cacheDir);
 //    this.blockAllowance = (allocatedBlocks << FileSystemEntry.blockOffset) / 2;
 //    this.blockAllowance = (maxHeap / 2) * sizeThreshold;
     Log.d("diskusage", "allocatedBlocks " + allocatedBlocks);
@@ -174,53 +259,114 @@ public class NativeScanner implements ProgressGenerator {
     Log.d("diskusage", "sizeThreshold = " + sizeThreshold / (float) (1 << FileSystemEntry.blockOffset));
   }
 
-  private void print(String msg, SmallList list) {
-    String hidden_path = "";
-    // FIXME: this is debug
-    for(FileSystemEntry p = list.parent; p != null; p = p.parent) {
-      hidden_path = p.name + "/" + hidden_path;
+  /**
+   * Makes the scan stop and the scanner process exit when cancelled.
+   */
+  void setCancellation(ScanCancellation cancellation) {
+    this.cancellation = cancellation;
+  }
+
+  /**
+   * Makes the scanner stat entries in batches through io_uring, 0 (the
+   * default) for one stat syscall per entry.
+   */
+  void setQueueDepth(int queueDepth) {
+    this.queueDepth = queueDepth;
+  }
+
+  /**
+   * Makes the scanner run at idle I/O priority and pause while storage is
+   * busy.
+   */
+  void setBackground(boolean background) {
+    this.background = background;
+  }
+
+  /**
+   * @param root directory to scan, mount point or the directory below it
+   * @param rootRequired the scanner is run with su
+   */
+  FileSystemEntry scan(String root, boolean rootRequired)
+      throws IOException, InterruptedException {
+    startTime = SystemClock.uptimeMillis();
+    InputStream source = DataSource.get().createNativeScanner(
+        context, root, rootRequired, numThreads, queueDepth, background,
+        cancellation);
+    // Ring is filled by the scanner thread, it is pipelined already.
+    inProcess = source instanceof InProcessScannerStream;
+    return scan(inProcess ? source : new PipelinedInputStream(source));
+  }
+
+  /**
+   * Builds the tree from the scanner output and closes it.
+   */
+  FileSystemEntry scan(InputStream output) throws IOException {
+    is = output;
+    try {
+      return scanStream();
+    } catch (IOException|RuntimeException e) {
+      smallLists.release();
+      throw e;
+    } finally {
+      // Also releases the in-process scanner, which otherwise blocks on a
+      // full ring and keeps later scans from running in process.
+      try {
+        is.close();
+      } catch (IOException e) {
+        Log.d("diskusage", "native scan: failed to close scanner", e);
+      }
     }
-    Log.d("diskusage", msg + " " + hidden_path + " = " + list.heapSize + " " + list.spaceEfficiency);
   }
 
-  FileSystemEntry scan(MountPoint mountPoint) throws IOException, InterruptedException {
-    is = DataSource.get().createNativeScanner(
-        context, mountPoint.getRoot(), mountPoint.isRootRequired());
+  private FileSystemEntry scanStream() throws IOException {
     while (getByte() != 0);
+    long start = SystemClock.uptimeMillis();
+    negotiateProtocol();
 
     Type type = getType();
     if (type != Type.DIR) throw new RuntimeException("Error: no mount point");
-    scanDirectory(null, getString(), 0);
+    Log.d("diskusage", "native scan: first entry after "
+        + (SystemClock.uptimeMillis() - startTime) + " ms "
+        + (inProcess ? "in process" : "from scanner process"));
+    makeNode(null);
+    scanDirectory(0);
     Log.d("diskusage", "allocated " + createdNodeSize + " B of heap");
 
-    int extraHeap = 0;
-
-    // Restoring blocks
-    for (SmallList list : smallLists) {
-      print("restored", list);
-
-      FileSystemEntry[] oldChildren = list.parent.children;
-      FileSystemEntry[] addChildren = list.children;
-      FileSystemEntry[] newChildren =
-        new FileSystemEntry[oldChildren.length - 1 + addChildren.length];
-      System.arraycopy(addChildren, 0, newChildren, 0, addChildren.length);
-      for(int pos = addChildren.length, i = 0; i < oldChildren.length; i++) {
-        FileSystemEntry c = oldChildren[i];
-        if (! (c instanceof FileSystemEntrySmall)) {
-          newChildren[pos++] = c;
-        }
-      }
-      java.util.Arrays.sort(newChildren, FileSystemEntry.COMPARE);
-      list.parent.children = newChildren;
-      extraHeap += list.heapSize;
-    }
+    int extraHeap = smallLists.restore();
     Log.d("diskusage", "allocated " + extraHeap + " B of extra heap");
     Log.d("diskusage", "allocated " + (extraHeap + createdNodeSize) + " B total");
     if (offset != allocated) throw new RuntimeException("Error: extra data, " + (allocated - offset) + " bytes");
-    is.close();
+    Log.d("diskusage", "native scan: " + numEntries + " entries in "
+        + (SystemClock.uptimeMillis() - start) + " ms using "
+        + (binaryProtocol ? "binary" : "text") + " protocol");
+    Log.d("diskusage", "native scan: deduplicated " + dedupBlocks * 512
+        + " bytes of hardlinks");
+    Log.d("diskusage", "native scan: " + names.getSize() + " bytes of names");
+    Log.d("diskusage", "native scan: " + bytesRead / Math.max(numEntries, 1)
+        + " bytes/entry " + (inProcess ? "in process" : "through pipe"));
     return createdNode;
   }
 
+  private void negotiateProtocol() throws IOException {
+    byte b = getByte();
+    if (b != 'V') {
+      // legacy text output
+      offset--;
+      return;
+    }
+    int version = getByte();
+    if (version == SHARDED_PROTOCOL) {
+      // Rest of the stream is framed, pass already read part to the joiner.
+      is = new ShardedInputStream(new SequenceInputStream(
+          new ByteArrayInputStream(Arrays.copyOfRange(buffer, offset, allocated)), is),
+          cacheDir);
+      offset = allocated = 0;
+    } else if (version != BINARY_PROTOCOL) {
+      throw new RuntimeException("Error: unsupported protocol " + version);
+    }
+    binaryProtocol = true;
+  }
+
 
   private static class SoftStack {
     private static enum State {
@@ -230,8 +376,6 @@ public class NativeScanner implements ProgressGenerator {
     }
     State state;
 
-    FileSystemEntry parent;
-    String name;
     int depth;
 
     long dirBlockSize;
@@ -256,11 +400,8 @@ public class NativeScanner implements ProgressGenerator {
 
   // Very complicated version of scanDirectory() which uses soft stack instead
   // of real one.
-  private void scanDirectorySoftStack(FileSystemEntry parent_, String name_,
-      int depth_) throws IOException {
+  private void scanDirectorySoftStack(int depth_) throws IOException {
     SoftStack s = new SoftStack();
-    s.parent = parent_;
-    s.name = name_;
     s.depth = depth_;
     s.state = SoftStack.State.PRE_LOOP;
 
@@ -270,7 +411,6 @@ public class NativeScanner implements ProgressGenerator {
         deepDepth = s.depth;
         s.dirBlockSize = getLong() / blockSizeIn512Bytes;
         /*long dirBytesSize =*/ getLong();  // side-effects
-        makeNode(s.parent, s.name);
         createdNodeNumDirs = 1;
         createdNodeNumFiles = 0;
 
@@ -302,8 +442,15 @@ public class NativeScanner implements ProgressGenerator {
 
           s.dirs = 0;
           s.files = 1;
+          if (s.childType == Type.HARDLINK) {
+            // Another link to a file seen before, its blocks are counted once.
+            readName();
+            dedupBlocks += getLong();
+            getLong();
+            continue;
+          }
           if (s.childType == Type.FILE) {
-            makeNode(s.thisNode, getString());
+            makeNode(s.thisNode);
             long childBlocks = getLong() / blockSizeIn512Bytes;
             long childBytes = getLong();
             if (childBlocks == 0) continue;
@@ -315,8 +462,7 @@ public class NativeScanner implements ProgressGenerator {
             // directory
             SoftStack new_s = new SoftStack();
             new_s.prev = s;
-            new_s.parent = s.thisNode;
-            new_s.name = getString();
+            makeNode(s.thisNode);
             new_s.depth = s.depth + 1;
             new_s.state = SoftStack.State.PRE_LOOP;
             s = new_s;
@@ -371,12 +517,8 @@ public class NativeScanner implements ProgressGenerator {
           smallFilesEntry = createdNode;
           s.children.add(createdNode);
           s.thisNodeSize += createdNodeSize;
-          SmallList list = new SmallList(
-              s.thisNode,
-              s.smallChildren.toArray(new FileSystemEntry[s.smallChildren.size()]),
-              s.thisNodeSizeSmall,
-              s.smallBlocks);
-          smallLists.add(list);
+          heapSize += smallLists.add(s.thisNode, (FileSystemEntrySmall) createdNode,
+              s.smallChildren, s.thisNodeSizeSmall, s.smallBlocks);
         }
 
         // Magic to sort children and keep small files last in the array.
@@ -391,6 +533,8 @@ public class NativeScanner implements ProgressGenerator {
           if (smallFilesEntry != null) {
             smallFilesEntry.encodedSize = smallFilesEntrySize;
           }
+        } else {
+          s.thisNode.children = FileSystemEntry.NO_CHILDREN;
         }
         createdNode = s.thisNode;
         createdNodeSize = s.thisNodeSize;
@@ -424,21 +568,18 @@ public class NativeScanner implements ProgressGenerator {
   /**
    * Scan directory object.
    * This constructor starts recursive scan to find all descendent files and directories.
-   * Stores parent into field, name obtained from file, size of this directory
+   * Node of the directory is the last created one, size of this directory
    * is calculated as a sum of all children.
-   * @param parent parent directory object.
    * @param depth current directory tree depth
    * @throws IOException
    */
-  private void scanDirectory(FileSystemEntry parent, String name,
-                             int depth) throws IOException {
+  private void scanDirectory(int depth) throws IOException {
     if (depth > 10) {
-      scanDirectorySoftStack(parent, name, depth);
+      scanDirectorySoftStack(depth);
       return;
     }
     long dirBlockSize = getLong() / blockSizeIn512Bytes;
     /*long dirBytesSize =*/ getLong();
-    makeNode(parent, name);
     createdNodeNumDirs = 1;
     createdNodeNumFiles = 0;
 
@@ -466,8 +607,14 @@ public class NativeScanner implements ProgressGenerator {
 //      if (isSpecial(child)) continue;
 
       int dirs = 0, files = 1;
+      if (childType == Type.HARDLINK) {
+        readName();
+        dedupBlocks += getLong();
+        getLong();
+        continue;
+      }
       if (childType == Type.FILE) {
-        makeNode(thisNode, getString());
+        makeNode(thisNode);
         long childBlocks = getLong() / blockSizeIn512Bytes;
         long childBytes = getLong();
         if (childBlocks == 0) continue;
@@ -477,7 +624,8 @@ public class NativeScanner implements ProgressGenerator {
 //        Log.d("diskusage", createdNode.path2());
       } else {
         // directory
-        scanDirectory(thisNode, getString(), depth + 1);
+        makeNode(thisNode);
+        scanDirectory(depth + 1);
         dirs = createdNodeNumDirs;
         files = createdNodeNumFiles;
       }
@@ -535,12 +683,8 @@ public class NativeScanner implements ProgressGenerator {
       smallFilesEntry = createdNode;
       children.add(createdNode);
       thisNodeSize += createdNodeSize;
-      SmallList list = new SmallList(
-          thisNode,
-          smallChildren.toArray(new FileSystemEntry[smallChildren.size()]),
-          thisNodeSizeSmall,
-          smallBlocks);
-      smallLists.add(list);
+      heapSize += smallLists.add(thisNode, (FileSystemEntrySmall) createdNode,
+          smallChildren, thisNodeSizeSmall, smallBlocks);
     }
 
     // Magic to sort children and keep small files last in the array.
@@ -555,6 +699,8 @@ public class NativeScanner implements ProgressGenerator {
       if (smallFilesEntry != null) {
         smallFilesEntry.encodedSize = smallFilesEntrySize;
       }
+    } else {
+      thisNode.children = FileSystemEntry.NO_CHILDREN;
     }
     createdNode = thisNode;
     createdNodeSize = thisNodeSize;
@@ -568,19 +714,33 @@ public class NativeScanner implements ProgressGenerator {
 //    } catch (Throwable t) {}
 
     createdNode = FileSystemFile.makeNode(parent, name);
+    countNode(8    /* name header */
+        + name.length() * 2); /* name length */
+  }
+
+  /**
+   * Makes node with the name read from the stream. The name is kept in the
+   * arena as UTF-8 and decoded only if it is needed.
+   */
+  private void makeNode(FileSystemEntry parent) throws IOException {
+    readName();
+    createdNode = names.makeNode(parent, buffer, nameOffset, nameLength);
+    countNode(8    /* arena chunk and slice */
+        + nameLength);
+  }
+
+  private void countNode(int nameSize) {
     createdNodeSize =
       4 /* ref in FileSystemEntry[] */
       + 16 /* FileSystemEntry */
 //      + 10000 /* dummy in FileSystemEntry */
       + 8 + 10 /* aproximation of size string */
-      + 8    /* name header */
-      + name.length() * 2; /* name length */
+      + nameSize;
     heapSize += createdNodeSize;
-    while (heapSize > maxHeapSize && !smallLists.isEmpty()) {
-      SmallList removed = smallLists.remove();
-      heapSize -= removed.heapSize;
-      print("killed", removed);
-
+    while (heapSize > maxHeapSize) {
+      int freed = smallLists.drop();
+      if (freed < 0) break;
+      heapSize -= freed;
     }
   }
 }
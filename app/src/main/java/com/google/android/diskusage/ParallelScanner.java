@@ -0,0 +1,135 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.diskusage.datasource.LegacyFile;
+import com.google.android.diskusage.entity.FileSystemEntry;
+
+/**
+ * Scanner which lists and stats directories on a work-stealing pool.
+ * Tree is still built on the calling thread in the same order as by
+ * Scanner, so the result, including collapsing of small files and which
+ * link of a hardlinked file is counted, is identical.
+ */
+public class ParallelScanner extends Scanner {
+  // Limits how far listing can run ahead of tree building.
+  private static final int MAX_PREFETCHED_ENTRIES = 65536;
+
+  private final int numThreads;
+  private final ForkJoinPool pool;
+  private final AtomicInteger prefetched = new AtomicInteger();
+  private long numEntries;
+
+  private static class ParallelListing extends Listing {
+    ListTask[] subtasks;
+  }
+
+  private class ListTask extends RecursiveTask<Listing> {
+    private static final long serialVersionUID = 1L;
+    private final LegacyFile file;
+    private final int depth;
+    private final FileSystemEntry previous;
+    private final boolean unchanged;
+
+    ListTask(LegacyFile file, int depth, FileSystemEntry previous, boolean unchanged) {
+      this.file = file;
+      this.depth = depth;
+      this.previous = previous;
+      this.unchanged = unchanged;
+    }
+
+    @Override
+    protected Listing compute() {
+      ParallelListing listing = (ParallelListing) list(file, depth, previous, unchanged);
+      if (listing.files == null) return listing;
+      prefetched.addAndGet(listing.count);
+      ListTask[] subtasks = new ListTask[listing.count];
+      for (int i = 0; i < listing.count; i++) {
+        if (listing.isFile[i]) continue;
+        if (prefetched.get() > MAX_PREFETCHED_ENTRIES) break;
+        subtasks[i] = new ListTask(listing.files[i], depth + 1,
+            listing.previous(i), listing.unchanged(i));
+        subtasks[i].fork();
+      }
+      listing.subtasks = subtasks;
+      return listing;
+    }
+  }
+
+  ParallelScanner(int maxdepth, int blockSize, long allocatedBlocks, int maxHeap,
+      int numThreads) {
+    super(maxdepth, blockSize, allocatedBlocks, maxHeap);
+    this.numThreads = numThreads;
+    this.pool = new ForkJoinPool(numThreads);
+  }
+
+  @Override
+  public FileSystemEntry scan(LegacyFile file) throws IOException {
+    long start = SystemClock.uptimeMillis();
+    try {
+      return super.scan(file);
+    } finally {
+      pool.shutdownNow();
+      long time = SystemClock.uptimeMillis() - start;
+      Log.d("diskusage", "parallel scan: " + numEntries + " entries in " + time
+          + " ms with " + numThreads + " threads, "
+          + (numEntries * 1000 / Math.max(time, 1)) + " entries/s");
+    }
+  }
+
+  @Override
+  Listing newListing() {
+    return new ParallelListing();
+  }
+
+  @Override
+  Listing listRoot(LegacyFile file) {
+    return consume(pool.invoke(new ListTask(file, 0, previousRoot, rootUnchanged)));
+  }
+
+  @Override
+  Listing childListing(Listing listing, int index, int depth) {
+    ListTask[] subtasks = ((ParallelListing) listing).subtasks;
+    ListTask task = subtasks[index];
+    if (task == null) {
+      // Not prefetched, list it on the pool now together with its subtree.
+      return consume(pool.invoke(new ListTask(listing.files[index], depth,
+          listing.previous(index), listing.unchanged(index))));
+    }
+    subtasks[index] = null;
+    return consume(task.join());
+  }
+
+  private Listing consume(Listing listing) {
+    if (listing.files != null) {
+      prefetched.addAndGet(-listing.count);
+      numEntries += listing.count;
+    }
+    return listing;
+  }
+}
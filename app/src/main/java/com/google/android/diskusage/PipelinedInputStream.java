@@ -0,0 +1,157 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Reads the wrapped stream on a separate thread into a bounded ring of
+ * reusable chunks, so that pipe reads overlap with parsing of the data.
+ * Closing the wrapped stream must release a read blocked in it, e.g. by
+ * killing the process which writes into the pipe.
+ */
+class PipelinedInputStream extends InputStream {
+  private static final int CHUNK_SIZE = 65536;
+  private static final int NUM_CHUNKS = 4;
+
+  private static class Chunk {
+    final byte[] data = new byte[CHUNK_SIZE];
+    // -1 marks end of stream or error
+    int length;
+  }
+
+  private final InputStream is;
+  private final ArrayBlockingQueue<Chunk> free =
+      new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+  private final ArrayBlockingQueue<Chunk> filled =
+      new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+  private final Thread reader;
+  private volatile IOException error;
+
+  private Chunk current;
+  private int pos;
+  private boolean finished;
+
+  // Time the reader waited for a free chunk, i.e. parser is too slow.
+  private volatile long readerStallNanos;
+  // Time the parser waited for data, i.e. the scanner is too slow.
+  private long parserStallNanos;
+  private volatile long bytesRead;
+
+  PipelinedInputStream(InputStream is) {
+    this.is = is;
+    for (int i = 0; i < NUM_CHUNKS; i++) {
+      free.add(new Chunk());
+    }
+    reader = new Thread("diskusage-reader") {
+      @Override
+      public void run() {
+        readLoop();
+      }
+    };
+    reader.start();
+  }
+
+  private void readLoop() {
+    try {
+      while (true) {
+        long start = System.nanoTime();
+        Chunk chunk = free.take();
+        readerStallNanos += System.nanoTime() - start;
+        try {
+          chunk.length = is.read(chunk.data, 0, CHUNK_SIZE);
+        } catch (IOException e) {
+          error = e;
+          chunk.length = -1;
+        }
+        if (chunk.length > 0) bytesRead += chunk.length;
+        filled.put(chunk);
+        if (chunk.length < 0) return;
+      }
+    } catch (InterruptedException e) {
+      // closed
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int res = read(b, 0, 1);
+    return res < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int byteOffset, int byteCount)
+      throws IOException {
+    while (current == null) {
+      if (finished) return -1;
+      long start = System.nanoTime();
+      try {
+        current = filled.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      parserStallNanos += System.nanoTime() - start;
+      pos = 0;
+      if (current.length < 0) {
+        current = null;
+        finished = true;
+        if (error != null) throw error;
+        return -1;
+      }
+      if (current.length == 0) {
+        free.add(current);
+        current = null;
+      }
+    }
+    int len = Math.min(byteCount, current.length - pos);
+    System.arraycopy(current.data, pos, buffer, byteOffset, len);
+    pos += len;
+    if (pos == current.length) {
+      free.add(current);
+      current = null;
+    }
+    return len;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // Unblocks the reader if it waits for a free chunk.
+    reader.interrupt();
+    try {
+      // Unblocks the reader if it waits for data.
+      is.close();
+    } finally {
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      Log.d("diskusage", "pipelined read: " + bytesRead + " bytes, reader stalled "
+          + readerStallNanos / 1000000 + " ms, parser stalled "
+          + parserStallNanos / 1000000 + " ms");
+    }
+  }
+}
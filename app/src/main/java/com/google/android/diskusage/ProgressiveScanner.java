@@ -0,0 +1,186 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.diskusage.DiskUsage.FileSystemStats;
+import com.google.android.diskusage.datasource.DataSource;
+import com.google.android.diskusage.entity.FileSystemEntry;
+import com.google.android.diskusage.entity.FileSystemSuperRoot;
+import com.google.android.diskusage.entity.FileSystemUnscanned;
+
+/**
+ * Second pass of progressive scan. The first one lists only top levels
+ * and leaves {@link FileSystemUnscanned} entries below them, the tree is
+ * shown right away. This one scans the unscanned directories, largest
+ * first, and puts the results into the tree shown in batches.
+ */
+public class ProgressiveScanner {
+  // Scanned directories are collected for a while and put into the tree
+  // as one batch.
+  private static final long PUBLISH_INTERVAL = 500;
+  // Heap given to a scan when the shared one is used up, small lists of
+  // it are then dropped or mapped early.
+  private static final int MIN_HEAP = 256 * 1024;
+
+  private static final Comparator<FileSystemUnscanned> LARGEST_FIRST =
+      new Comparator<FileSystemUnscanned>() {
+    @Override
+    public int compare(FileSystemUnscanned a, FileSystemUnscanned b) {
+      return Long.compare(b.getEstimatedBlocks(), a.getEstimatedBlocks());
+    }
+  };
+
+  private final DiskUsage diskusage;
+  private Thread thread;
+  private ScanCancellation cancellation;
+
+  public ProgressiveScanner(DiskUsage diskusage) {
+    this.diskusage = diskusage;
+  }
+
+  private static void collectUnscanned(
+      FileSystemEntry e, ArrayList<FileSystemUnscanned> out) {
+    if (e.children == null) return;
+    for (FileSystemEntry c : e.children) {
+      if (c instanceof FileSystemUnscanned) {
+        out.add((FileSystemUnscanned) c);
+      } else {
+        collectUnscanned(c, out);
+      }
+    }
+  }
+
+  /**
+   * Starts scanning directories left by the first pass, if there are any.
+   * Called in main thread.
+   */
+  public void start(final FileSystemSuperRoot root) {
+    stop();
+    if (root == null || !root.partial) return;
+    final ArrayList<FileSystemUnscanned> pending = new ArrayList<FileSystemUnscanned>();
+    collectUnscanned(root, pending);
+    MountPoint mountPoint = MountPoint.getForKey(diskusage, diskusage.key);
+    if (mountPoint == null) return;
+    final FileSystemStats stats = new FileSystemStats(mountPoint);
+    final int heap = diskusage.getMemoryQuota();
+    final ScanCancellation cancellation = new ScanCancellation();
+    this.cancellation = cancellation;
+    thread = new Thread("diskusage-progressive") {
+      @Override
+      public void run() {
+        try {
+          refine(root, pending, stats, heap, cancellation);
+        } catch (CancellationException e) {
+          Log.d("diskusage", "progressive scan: stopped in "
+              + cancellation.getLatency() + " ms");
+        }
+      }
+    };
+    thread.start();
+  }
+
+  public void stop() {
+    if (thread != null) {
+      // Stops the directory being scanned too, it would slow down rescan.
+      cancellation.cancel();
+      thread.interrupt();
+      thread = null;
+      cancellation = null;
+    }
+  }
+
+  private void refine(FileSystemSuperRoot root, ArrayList<FileSystemUnscanned> pending,
+      FileSystemStats stats, int heap, ScanCancellation cancellation) {
+    long start = SystemClock.uptimeMillis();
+    PriorityQueue<FileSystemUnscanned> queue = new PriorityQueue<FileSystemUnscanned>(
+        Math.max(1, pending.size()), LARGEST_FIRST);
+    queue.addAll(pending);
+    ArrayList<FileSystemEntry> entries = new ArrayList<FileSystemEntry>();
+    ArrayList<FileSystemEntry> scanned = new ArrayList<FileSystemEntry>();
+    // Runs while the tree is shown, it should not slow down the app.
+    ScanThrottle throttle = new ScanThrottle();
+    // Directories are scanned one by one, but all of them go to one tree:
+    // they share the heap and a file linked from several is counted once.
+    InodeSet hardlinks = new InodeSet();
+    long publishTime = start + PUBLISH_INTERVAL;
+    while (!queue.isEmpty()) {
+      if (Thread.currentThread().isInterrupted()) return;
+      FileSystemEntry entry = queue.remove();
+      String path = entry.absolutePath();
+      try {
+        Scanner scanner = diskusage.makeScanner(20, stats, Math.max(heap, MIN_HEAP));
+        scanner.setCancellation(cancellation);
+        scanner.setThrottle(throttle);
+        scanner.setHardlinks(hardlinks);
+        scanned.add(scanner.scan(DataSource.get().createLegacyScanFile(path)));
+        entries.add(entry);
+        heap -= scanner.getHeapSize();
+      } catch (IOException e) {
+        Log.d("diskusage", "progressive scan failed: " + path, e);
+      }
+      long now = SystemClock.uptimeMillis();
+      if (queue.isEmpty() || now >= publishTime) {
+        publish(root, entries, scanned, queue.isEmpty());
+        entries = new ArrayList<FileSystemEntry>();
+        scanned = new ArrayList<FileSystemEntry>();
+        publishTime = now + PUBLISH_INTERVAL;
+      }
+    }
+    Log.d("diskusage", "progressive scan: " + pending.size() + " directories in "
+        + (SystemClock.uptimeMillis() - start) + " ms");
+    throttle.log("progressive scan");
+  }
+
+  private void publish(final FileSystemSuperRoot root,
+      final ArrayList<FileSystemEntry> entries,
+      final ArrayList<FileSystemEntry> scanned, final boolean last) {
+    diskusage.handler.post(new Runnable() {
+      @Override
+      public void run() {
+        final FileSystemState state = diskusage.fileSystemState;
+        if (state == null) return;
+        state.updateInRenderThread(new Runnable() {
+          @Override
+          public void run() {
+            if (state.masterRoot != root) return;
+            for (int i = 0; i < entries.size(); i++) {
+              FileSystemEntry entry = entries.get(i);
+              if (!entry.isAttachedTo(root)) continue;
+              state.replaceScanned(entry, scanned.get(i));
+            }
+            if (last) {
+              state.scanCompleted();
+              diskusage.saveSnapshot(root);
+            }
+          }
+        });
+      }
+    });
+  }
+}
@@ -21,6 +21,8 @@ package com.google.android.diskusage;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -42,6 +44,10 @@ import com.google.android.diskusage.entity.FileSystemRoot;
 
 public class RootMountPoint extends MountPoint {
   private final String fsType;
+  // Device and the directory of its filesystem mounted here, from
+  // mountinfo. Bind mounts of the same files have the same ones.
+  private String device;
+  private String deviceRoot;
 
   RootMountPoint(String root, String fsType) {
     super(root, root, false);
@@ -68,6 +74,23 @@ public class RootMountPoint extends MountPoint {
       return "rooted:" + getRoot();
   }
 
+  /**
+   * Path of the directory mounted here inside the other mount point, if
+   * it is a bind mount of the same device which includes the directory.
+   * @return null if the mounts show different files
+   */
+  String getPathIn(RootMountPoint other) {
+    if (device == null || !device.equals(other.device)) return null;
+    String root = deviceRoot.endsWith("/") ? deviceRoot : deviceRoot + "/";
+    String otherRoot = other.deviceRoot.endsWith("/")
+        ? other.deviceRoot : other.deviceRoot + "/";
+    if (!root.startsWith(otherRoot)) return null;
+    String path = other.getRoot() + "/" + root.substring(otherRoot.length());
+    path = path.replaceAll("/+", "/");
+    return path.length() > 1 && path.endsWith("/")
+        ? path.substring(0, path.length() - 1) : path;
+  }
+
   private static List<MountPoint> rootedMountPoints = new ArrayList<>();
   private static Map<String, MountPoint> rootedMountPointForKey = new HashMap<>();
   private static boolean init = false;
@@ -111,6 +134,36 @@ public class RootMountPoint extends MountPoint {
     } catch (Exception e) {
       Log.e("diskusage", "Failed to get mount points", e);
     }
+    try {
+      readMountInfo();
+    } catch (IOException e) {
+      Log.d("diskusage", "Failed to read mountinfo", e);
+    }
+  }
+
+  /**
+   * Reads devices of the mount points, lines of mountinfo are like
+   * "36 35 98:0 /mnt1 /mnt/parent rw,noatime master:1 - ext3 /dev/root rw".
+   */
+  private static void readMountInfo() throws IOException {
+    BufferedReader reader = new BufferedReader(
+        new FileReader("/proc/self/mountinfo"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" +");
+        if (parts.length < 5) continue;
+        // paths stay escaped, as in /proc/mounts
+        RootMountPoint m = (RootMountPoint) rootedMountPointForKey.get(
+            "rooted:" + parts[4]);
+        if (m == null) continue;
+        // the last mount over the same path is the visible one
+        m.device = parts[2];
+        m.deviceRoot = parts[3];
+      }
+    } finally {
+      reader.close();
+    }
   }
 
 //  private static final String file =
@@ -0,0 +1,91 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.util.concurrent.CancellationException;
+
+import android.os.SystemClock;
+
+/**
+ * Stops a running scan. Scanners check it for every entry and throw
+ * {@link CancellationException} once it is cancelled, the native scanner
+ * process is killed by the cancel listener. Optional time budget makes
+ * the java scanner leave the directories it has not got to unscanned.
+ */
+public class ScanCancellation {
+  private volatile boolean cancelled;
+  private volatile long cancelTime;
+  // uptime millis, 0 if there is no budget
+  private volatile long deadline;
+  private Runnable onCancel;
+
+  public void cancel() {
+    Runnable listener;
+    synchronized (this) {
+      if (cancelled) return;
+      cancelTime = SystemClock.uptimeMillis();
+      cancelled = true;
+      listener = onCancel;
+    }
+    if (listener != null) listener.run();
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public void throwIfCancelled() {
+    if (cancelled) throw new CancellationException();
+  }
+
+  /**
+   * Runs the listener on cancel, or right away if it is already cancelled.
+   */
+  public void setOnCancelListener(Runnable listener) {
+    synchronized (this) {
+      onCancel = listener;
+      if (!cancelled) return;
+    }
+    if (listener != null) listener.run();
+  }
+
+  /**
+   * Time since cancel, to see how fast the scan stops.
+   */
+  public long getLatency() {
+    return SystemClock.uptimeMillis() - cancelTime;
+  }
+
+  /**
+   * @param budget time in ms from now, 0 for no budget
+   */
+  public void setBudget(long budget) {
+    deadline = budget > 0 ? SystemClock.uptimeMillis() + budget : 0;
+  }
+
+  public boolean hasBudget() {
+    return deadline != 0;
+  }
+
+  public boolean isOverBudget() {
+    long deadline = this.deadline;
+    return deadline != 0 && SystemClock.uptimeMillis() >= deadline;
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.diskusage.entity.FileSystemSuperRoot;
+
+/**
+ * Runs scans of mount points and keeps their results by
+ * {@link MountPoint#getKey()}, so that everything showing a mount point
+ * shares one tree. Each scan runs on its own thread, scans of different
+ * disks go in parallel, while scans of mount points on the same disk wait
+ * for each other.
+ * Called in main thread.
+ */
+class ScanService {
+  private static final int MAX_SCANS_PER_DEVICE = 1;
+  // How often a scan waiting for its device checks for cancel.
+  private static final long DEVICE_POLL_INTERVAL = 50;
+  // Mounts of directories of other mounts followed to find the disk.
+  private static final int MAX_MOUNT_DEPTH = 4;
+
+  interface Task {
+    FileSystemSuperRoot run(ScanCancellation cancellation) throws Exception;
+  }
+
+  interface Listener {
+    /**
+     * Called in main thread, exactly one of root and error is null.
+     */
+    void onScanned(FileSystemSuperRoot root, Throwable error);
+  }
+
+  private static class Job {
+    final ScanCancellation cancellation = new ScanCancellation();
+    final Listener listener;
+
+    Job(Listener listener) {
+      this.listener = listener;
+    }
+  }
+
+  private static final Handler handler = new Handler(Looper.getMainLooper());
+  private static final HashMap<String, FileSystemSuperRoot> results =
+      new HashMap<String, FileSystemSuperRoot>();
+  private static final HashMap<String, Job> jobs = new HashMap<String, Job>();
+  private static final HashMap<String, Semaphore> devices = new HashMap<String, Semaphore>();
+
+  /**
+   * Tree of the last finished scan of the mount point, null if there is
+   * none or it was empty. Can be called from scan threads.
+   */
+  static FileSystemSuperRoot getResult(String key) {
+    synchronized (results) {
+      return results.get(key);
+    }
+  }
+
+  static void forgetResult(String key) {
+    synchronized (results) {
+      results.remove(key);
+    }
+  }
+
+  /**
+   * Starts the task. Callers wait for the running scan of the mount point
+   * instead of starting another one, if there is still one it is cancelled.
+   * @param path directory with the files of the mount point, to find its disk
+   */
+  static void scan(final String key, final String path, final Task task,
+      Listener listener) {
+    cancel(key);
+    final Job job = new Job(listener);
+    jobs.put(key, job);
+    new Thread("diskusage-scan " + key) {
+      @Override
+      public void run() {
+        FileSystemSuperRoot root = null;
+        Throwable error = null;
+        Semaphore device = getDevice(path);
+        boolean acquired = false;
+        try {
+          while (!device.tryAcquire(DEVICE_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+            job.cancellation.throwIfCancelled();
+          }
+          acquired = true;
+          root = task.run(job.cancellation);
+          // Before the device is released, a scan waiting for it may reuse
+          // the tree.
+          if (root.children[0].children != null && !job.cancellation.isCancelled()) {
+            synchronized (results) {
+              results.put(key, root);
+            }
+          }
+        } catch (Exception e) {
+          error = e;
+        } catch (OutOfMemoryError e) {
+          error = e;
+        } catch (StackOverflowError e) {
+          error = e;
+        } finally {
+          if (acquired) device.release();
+        }
+        finish(key, job, root, error);
+      }
+    }.start();
+  }
+
+  private static Semaphore getDevice(String path) {
+    String dev = null;
+    try {
+      dev = getDisk(path, MAX_MOUNT_DEPTH);
+    } catch (IOException e) {
+      Log.d("diskusage", "Failed to read mountinfo", e);
+    }
+    if (dev == null) {
+      // Unknown ones don't wait for each other.
+      Log.d("diskusage", "no disk for " + path);
+      dev = "path:" + path;
+    }
+    synchronized (devices) {
+      Semaphore device = devices.get(dev);
+      if (device == null) {
+        device = new Semaphore(MAX_SCANS_PER_DEVICE);
+        devices.put(dev, device);
+      }
+      return device;
+    }
+  }
+
+  /**
+   * Finds the disk the directory is on: the mount holding it in mountinfo,
+   * which may be a mount of a directory of another one (sdcardfs), its
+   * block device, and through device mapper and partitions the whole disk,
+   * from /sys. Lines of mountinfo are like
+   * "36 35 98:0 /mnt1 /mnt/parent rw,noatime master:1 - ext3 /dev/root rw".
+   * @return null if there is no mount for the path
+   */
+  static String getDisk(String path, int depth) throws IOException {
+    String[] mount = null;
+    BufferedReader reader = new BufferedReader(
+        new FileReader("/proc/self/mountinfo"));
+    try {
+      String line;
+      int longest = -1;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" +");
+        if (parts.length < 5) continue;
+        String mountPoint = parts[4];
+        boolean holds = path.equals(mountPoint) || mountPoint.equals("/")
+            || path.startsWith(mountPoint + "/");
+        // the last mount over the same path is the visible one
+        if (holds && mountPoint.length() >= longest) {
+          longest = mountPoint.length();
+          mount = parts;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (mount == null) return null;
+    String source = null;
+    for (int i = 5; i < mount.length - 2; i++) {
+      if (mount[i].equals("-")) {
+        source = mount[i + 2];
+        break;
+      }
+    }
+    if (source != null && source.startsWith("/") && !source.startsWith("/dev/")
+        && depth > 0) {
+      String disk = getDisk(source, depth - 1);
+      if (disk != null) return disk;
+    }
+    String dev = mount[2];
+    String disk = getBlockDisk(new File("/sys/dev/block/" + dev));
+    // Not a block device, e.g. FUSE, or /sys is not readable.
+    return disk != null ? disk : dev;
+  }
+
+  private static String getBlockDisk(File sysDevice) {
+    File dir;
+    try {
+      dir = sysDevice.getCanonicalFile();
+    } catch (IOException e) {
+      return null;
+    }
+    if (!dir.isDirectory()) return null;
+    // device mapper, e.g. dm-crypt, is on the devices in slaves
+    String[] slaves;
+    while ((slaves = new File(dir, "slaves").list()) != null && slaves.length != 0) {
+      try {
+        dir = new File(dir, "slaves/" + slaves[0]).getCanonicalFile();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    if (new File(dir, "partition").exists()) dir = dir.getParentFile();
+    return dir.getName();
+  }
+
+  private static void finish(final String key, final Job job,
+      final FileSystemSuperRoot root, final Throwable error) {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (job.cancellation.isCancelled()) {
+          Log.d("diskusage", "scan of " + key + " cancelled, stopped in "
+              + job.cancellation.getLatency() + " ms");
+          return;
+        }
+        jobs.remove(key);
+        job.listener.onScanned(root, error);
+      }
+    });
+  }
+
+  /**
+   * Stops the scan of the mount point, its listeners are not called.
+   */
+  static void cancel(String key) {
+    Job job = jobs.remove(key);
+    if (job != null) job.cancellation.cancel();
+  }
+
+  /**
+   * Stops all scans and drops all results, e.g. when data source changes.
+   */
+  static void reset() {
+    for (Job job : jobs.values()) {
+      job.cancellation.cancel();
+    }
+    jobs.clear();
+    synchronized (results) {
+      results.clear();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs a background scan: lowers priority of the scanning threads and
+ * pauses the scan while stat latency is well above its usual level, i.e.
+ * while something else keeps the storage busy. Same policy as in
+ * jni/scan.c. Also collects stat latency and scan rate histograms.
+ * Can be used by several scanning threads at once.
+ */
+public class ScanThrottle {
+  private static final int NUM_BUCKETS = 24;
+  // Scan rate is measured over windows of this length.
+  private static final long RATE_WINDOW = 250 * 1000 * 1000L;
+  // Pause is considered after this many stats.
+  private static final int CHECK_INTERVAL = 32;
+  // Stats before the usual latency is known.
+  private static final int WARMUP = 256;
+  // Storage is busy when recent latency is this many times the usual one.
+  private static final int BUSY_RATIO = 4;
+  private static final long MAX_PAUSE = 100;
+
+  private final ThreadLocal<Boolean> lowered = new ThreadLocal<Boolean>();
+
+  // Latencies in us, bucket i has the ones below 2^i.
+  private final AtomicLongArray latencies = new AtomicLongArray(NUM_BUCKETS);
+  // Entries/s, bucket i has the rates below 2^i.
+  private final AtomicLongArray rates = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong numStats = new AtomicLong();
+  private volatile long windowStart;
+  private long windowStats;
+
+  // Moving averages of latency in ns. Updates from several threads may get
+  // lost, which does not matter for a heuristic.
+  private volatile long recent;
+  private volatile long usual;
+  private volatile long pause;
+  private final AtomicLong numPauses = new AtomicLong();
+  private final AtomicLong pausedTime = new AtomicLong();
+
+  /**
+   * Called by a scanning thread before it starts, lowers its priority.
+   */
+  void enter() {
+    if (lowered.get() != null) return;
+    lowered.set(Boolean.TRUE);
+    // Background group also gets lower I/O weight, there is no java API
+    // for I/O priority itself.
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+  }
+
+  /**
+   * Records latency of one stat, may pause the calling thread.
+   * @param start System.nanoTime() before the stat
+   */
+  void onStat(long start) {
+    long now = System.nanoTime();
+    long latency = now - start;
+    latencies.incrementAndGet(bucket(latency / 1000));
+    long n = numStats.incrementAndGet();
+    long average = recent += (latency - recent) >> 3;
+    boolean busy = n > WARMUP && average > usual * BUSY_RATIO;
+    // Usual latency follows slowly while busy, so that the throttle gives
+    // up on storage which is just slow.
+    usual += (latency - usual) >> (n < WARMUP ? 4 : busy ? 12 : 9);
+    if (now - windowStart >= RATE_WINDOW) closeWindow(now, n);
+    if (n % CHECK_INTERVAL == 0) throttle(busy);
+  }
+
+  private synchronized void closeWindow(long now, long n) {
+    if (now - windowStart < RATE_WINDOW) return;
+    if (windowStart != 0) {
+      rates.incrementAndGet(bucket((n - windowStats) * 1000000000L / (now - windowStart)));
+    }
+    windowStart = now;
+    windowStats = n;
+  }
+
+  private void throttle(boolean busy) {
+    if (!busy) {
+      pause /= 2;
+      return;
+    }
+    long time = Math.min(Math.max(pause * 2, 1), MAX_PAUSE);
+    pause = time;
+    numPauses.incrementAndGet();
+    pausedTime.addAndGet(time);
+    try {
+      Thread.sleep(time);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static int bucket(long value) {
+    return Math.min(64 - Long.numberOfLeadingZeros(value), NUM_BUCKETS - 1);
+  }
+
+  /**
+   * Logs the histograms and time spent in pauses.
+   */
+  void log(String name) {
+    Log.d("diskusage", name + ": " + numStats.get() + " stats, paused "
+        + numPauses.get() + " times for " + pausedTime.get() + " ms");
+    Log.d("diskusage", name + ": stat latency us " + format(latencies));
+    Log.d("diskusage", name + ": entries/s " + format(rates));
+  }
+
+  private static String format(AtomicLongArray histogram) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long count = histogram.get(i);
+      if (count == 0) continue;
+      builder.append(" <").append(1L << i).append(':').append(count);
+    }
+    return builder.toString();
+  }
+}
@@ -20,27 +20,31 @@
 package com.google.android.diskusage;
 
 import java.util.ArrayList;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 
 import android.os.StatFs;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.system.StructStat;
 import android.util.Log;
 
+import com.google.android.diskusage.datasource.DataSource;
 import com.google.android.diskusage.datasource.LegacyFile;
 import com.google.android.diskusage.entity.FileSystemEntry;
 import com.google.android.diskusage.entity.FileSystemEntry.ExcludeFilter;
 import com.google.android.diskusage.entity.FileSystemEntrySmall;
 import com.google.android.diskusage.entity.FileSystemFile;
+import com.google.android.diskusage.entity.FileSystemSpecial;
+import com.google.android.diskusage.entity.FileSystemUnscanned;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.PriorityQueue;
 
 public class Scanner implements DiskUsage.ProgressGenerator {
-  private final int maxdepth;
+  final int maxdepth;
   private final int blockSize;
   private final int blockSizeIn512Bytes;
   private final long sizeThreshold;
@@ -52,11 +56,32 @@ public class Scanner implements DiskUsage.ProgressGenerator {
 
   private int heapSize;
   private final int maxHeapSize;
-  private final PriorityQueue<SmallList> smallLists = new PriorityQueue<SmallList>();
+  private final SmallLists smallLists = new SmallLists();
   long pos;
   FileSystemEntry lastCreatedFile;
   private long dev;
 
+  // Tree of the previous scan, sizes of files in directories not changed
+  // since it are taken from there.
+  FileSystemEntry previousRoot;
+  boolean rootUnchanged;
+  private long changedSince;
+  private long numReused;
+
+  // Directories at maxdepth are left for ProgressiveScanner.
+  private boolean shallow;
+
+  private ScanCancellation cancellation;
+  private ScanThrottle throttle;
+  // Directories left unscanned when the time budget ran out.
+  private int numOverBudget;
+
+  // Files with several links, only the first one seen is counted.
+  private InodeSet hardlinks = new InodeSet();
+  private long dedupBlocks;
+  // Heap taken by the result, known after the scan.
+  private int resultHeapSize;
+
   public FileSystemEntry lastCreatedFile() {
     return lastCreatedFile;
   }
@@ -64,25 +89,6 @@ public class Scanner implements DiskUsage.ProgressGenerator {
     return pos;
   }
 
-  private class SmallList implements Comparable<SmallList> {
-    FileSystemEntry parent;
-    FileSystemEntry[] children;
-    int heapSize;
-    float spaceEfficiency;
-
-    SmallList(FileSystemEntry parent, FileSystemEntry[] children, int heapSize, long blocks) {
-      this.parent = parent;
-      this.children = children;
-      this.heapSize = heapSize;
-      this.spaceEfficiency = blocks / (float) heapSize;
-    }
-
-    @Override
-    public int compareTo(SmallList that) {
-      return spaceEfficiency < that.spaceEfficiency ? -1 : (spaceEfficiency == that.spaceEfficiency ? 0 : 1);
-    }
-  };
-
   Scanner(int maxdepth, int blockSize, long allocatedBlocks, int maxHeap) {
     this.maxdepth = maxdepth;
     this.blockSize = blockSize;
@@ -96,42 +102,389 @@ public class Scanner implements DiskUsage.ProgressGenerator {
     Log.d("diskusage", "sizeThreshold = " + sizeThreshold / (float) (1 << FileSystemEntry.blockOffset));
   }
 
+  /**
+   * Makes the scan incremental. Directories whose mtime and ctime are older
+   * than the previous scan are not listed again, names of their entries
+   * are taken from the previous tree. The entries are still stat'ed, a
+   * file rewritten in place changes only its own times.
+   * @param previousRoot node of the previous tree for the scanned directory
+   * @param scanStartTime wall clock time the previous scan started at
+   */
+  public void setPrevious(FileSystemEntry previousRoot, long scanStartTime) {
+    this.previousRoot = previousRoot;
+    // allow for coarse timestamps, 2 seconds on FAT
+    this.changedSince = scanStartTime / 1000 - 2;
+  }
+
+  /**
+   * Leaves directories at maxdepth unscanned, with only their own size,
+   * instead of calculating their total size.
+   */
+  public void setShallow(boolean shallow) {
+    this.shallow = shallow;
+  }
+
+  /**
+   * Small lists which don't fit into heap are kept in memory mapped files
+   * in the dir instead of being dropped.
+   */
+  public void setCacheDir(File cacheDir) {
+    smallLists.setCacheDir(cacheDir);
+  }
+
+  /**
+   * Makes the scan stop when cancelled. Once its budget runs out, the
+   * directories not listed yet are left unscanned, as in shallow scan.
+   */
+  public void setCancellation(ScanCancellation cancellation) {
+    this.cancellation = cancellation;
+  }
+
+  /**
+   * Lowers priority of the scanning threads, pauses when storage is busy
+   * and records stat latencies. Background scans only, null by default.
+   */
+  public void setThrottle(ScanThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  /**
+   * Shares the set of seen hardlinks with other scans of the same tree, so
+   * that a file linked from several of their directories is counted once.
+   */
+  void setHardlinks(InodeSet hardlinks) {
+    this.hardlinks = hardlinks;
+  }
+
+  /**
+   * @return heap taken by the tree of the finished scan
+   */
+  int getHeapSize() {
+    return resultHeapSize;
+  }
+
+  /**
+   * Some directories are left unscanned because the time budget ran out.
+   */
+  public boolean isOverBudget() {
+    return numOverBudget != 0;
+  }
+
+  /**
+   * Takes the sizes of directories in the previous tree as estimates, to
+   * scan the largest ones first. Nothing is reused from it.
+   */
+  public void setSizeHints(FileSystemEntry previousRoot) {
+    this.previousRoot = previousRoot;
+    this.changedSince = Long.MIN_VALUE;
+  }
+
+  final boolean isUnchanged(FileStat stat) {
+    return stat.changeTime < changedSince;
+  }
+
+  /**
+   * What the scan uses of a stat result.
+   */
+  static class FileStat {
+    long dev;
+    long ino;
+    long nlink;
+    long blocks;
+    long size;
+    // later of mtime and ctime, in seconds
+    long changeTime;
+    boolean isDirectory;
+    boolean isLink;
+  }
+
+  private static FileStat toFileStat(StructStat res) {
+    FileStat stat = new FileStat();
+    stat.dev = res.st_dev;
+    stat.ino = res.st_ino;
+    stat.nlink = res.st_nlink;
+    stat.blocks = res.st_blocks;
+    stat.size = res.st_size;
+    stat.changeTime = Math.max(res.st_mtime, res.st_ctime);
+    stat.isDirectory = OsConstants.S_ISDIR(res.st_mode);
+    stat.isLink = OsConstants.S_ISLNK(res.st_mode);
+    return stat;
+  }
+
+  /**
+   * Stats the file without following links. Tests override it and stat(),
+   * android.system is not there on the JVM.
+   */
+  FileStat lstat(String path) throws ErrnoException {
+    return toFileStat(Os.lstat(path));
+  }
+
+  FileStat stat(String path) throws ErrnoException {
+    return toFileStat(Os.stat(path));
+  }
+
+  /**
+   * Scans a directory to put into the shown tree after the full scan.
+   * Without allocated blocks the size threshold is 0, nothing is folded
+   * into "<N files>" and the heap limit doesn't matter.
+   */
+  static FileSystemEntry scanSubtree(String path, int blockSize) throws IOException {
+    return new Scanner(20, blockSize, 0, 4).scan(
+        DataSource.get().createLegacyScanFile(path));
+  }
+
   public FileSystemEntry scan(LegacyFile file) throws IOException {
     long st_blocks;
     try {
-      StructStat stat = Os.stat(file.getCannonicalPath());
-      dev = stat.st_dev;
-      st_blocks = stat.st_blocks;
+      FileStat stat = stat(file.getCannonicalPath());
+      dev = stat.dev;
+      st_blocks = stat.blocks;
+      rootUnchanged = previousRoot != null && isUnchanged(stat);
     } catch (ErrnoException e) {
       throw new IOException("Failed to find root folder", e);
     }
-    scanDirectory(null, file, 0, st_blocks / blockSizeIn512Bytes);
-    int extraHeap = 0;
-
-    // Restoring blocks
-    for (SmallList list : smallLists) {
-//      print("restored", list);
-
-      FileSystemEntry[] oldChildren = list.parent.children;
-      FileSystemEntry[] addChildren = list.children;
-      FileSystemEntry[] newChildren =
-        new FileSystemEntry[oldChildren.length - 1 + addChildren.length];
-      System.arraycopy(addChildren, 0, newChildren, 0, addChildren.length);
-      for(int pos = addChildren.length, i = 0; i < oldChildren.length; i++) {
-        FileSystemEntry c = oldChildren[i];
-        if (! (c instanceof FileSystemEntrySmall)) {
-          newChildren[pos++] = c;
-        }
-      }
-      java.util.Arrays.sort(newChildren, FileSystemEntry.COMPARE);
-      list.parent.children = newChildren;
-      extraHeap += list.heapSize;
+    try {
+      scanDirectory(null, file, listRoot(file), 0, st_blocks / blockSizeIn512Bytes);
+    } catch (RuntimeException e) {
+      smallLists.release();
+      throw e;
+    }
+    if (previousRoot != null && changedSince != Long.MIN_VALUE) {
+      Log.d("diskusage", "incremental scan: reused listings of " + numReused
+          + " directories");
     }
+    if (numOverBudget != 0) {
+      Log.d("diskusage", "scan: out of time budget, left " + numOverBudget
+          + " directories unscanned");
+    }
+    Log.d("diskusage", "scan: deduplicated " + dedupBlocks * 512 + " bytes of hardlinks");
+    int extraHeap = smallLists.restore();
+    resultHeapSize = extraHeap + createdNodeSize;
     Log.d("diskusage", "allocated " + extraHeap + " B of extra heap");
-    Log.d("diskusage", "allocated " + (extraHeap + createdNodeSize) + " B total");
+    Log.d("diskusage", "allocated " + resultHeapSize + " B total");
     return createdNode;
   }
 
+  /**
+   * Stat results for the children of one directory. Collected before any
+   * node is created for them, so that listing can run ahead of tree building.
+   */
+  static class Listing {
+    LegacyFile[] files;
+    long[] blocks;
+    long[] bytes;
+    boolean[] isFile;
+    int count;
+    long calculatedSize;
+    // Not listed because the time budget ran out.
+    boolean overBudget;
+    // Size of the directory in the previous tree, in 512 byte blocks.
+    long estimate;
+    // Nodes of child directories in the previous tree and whether they are
+    // unchanged since it, null unless the scan is incremental.
+    FileSystemEntry[] previous;
+    boolean[] unchanged;
+    // Names are taken from the previous tree.
+    boolean reused;
+    // Device and inode of files with other links, null if there are none.
+    // Counted when the tree is built, so the first link in tree order owns
+    // the blocks whichever thread listed it.
+    long[] devs;
+    long[] inos;
+
+    FileSystemEntry previous(int index) {
+      return previous == null ? null : previous[index];
+    }
+
+    boolean unchanged(int index) {
+      return unchanged != null && unchanged[index];
+    }
+  }
+
+  Listing newListing() {
+    return new Listing();
+  }
+
+  /**
+   * Lists directory and stats all its children.
+   * @param file directory to list
+   * @param depth depth of the directory, at maxdepth only total size is calculated
+   * @param previous node of the directory in the previous tree or null
+   * @param unchanged the directory is not modified since the previous scan
+   * @return listing, with null files if the directory cannot be read
+   */
+  Listing list(LegacyFile file, int depth,
+      FileSystemEntry previous, boolean unchanged) {
+    Listing listing = newListing();
+    if (throttle != null) throttle.enter();
+    if (cancellation != null) {
+      cancellation.throwIfCancelled();
+      listing.overBudget = depth != 0 && cancellation.isOverBudget();
+    }
+    if (depth == maxdepth || listing.overBudget) {
+      if (!shallow && !listing.overBudget) listing.calculatedSize = calculateSize(file);
+      if (previous != null) {
+        listing.estimate = previous.getSizeInBlocks() * blockSizeIn512Bytes;
+      }
+      return listing;
+    }
+
+    FileSystemEntry[] previousList = previous == null ? null : previous.listChildren();
+    String[] listNames = unchanged ? namesOf(previousList) : null;
+    listing.reused = listNames != null;
+
+    if (listNames == null) {
+      try {
+        listNames = file.list();
+      } catch (SecurityException io) {
+        Log.d("diskusage", "list files", io);
+      }
+    }
+
+    if (listNames == null) return listing;
+    int len = listNames.length;
+    listing.files = new LegacyFile[len];
+    listing.blocks = new long[len];
+    listing.bytes = new long[len];
+    listing.isFile = new boolean[len];
+    long[] estimates = new long[len];
+    int numDirs = 0;
+
+    HashMap<String, FileSystemEntry> previousChildren = null;
+    if (previousList != null) {
+      previousChildren = new HashMap<String, FileSystemEntry>();
+      for (FileSystemEntry c : previousList) {
+        if (c instanceof FileSystemEntrySmall || c instanceof FileSystemSpecial) continue;
+        previousChildren.put(c.getName(), c);
+      }
+      listing.previous = new FileSystemEntry[len];
+      listing.unchanged = new boolean[len];
+    }
+
+    for (int i = 0; i < len; i++) {
+      if (cancellation != null) cancellation.throwIfCancelled();
+      LegacyFile childFile = file.getChild(listNames[i]);
+
+//      if (isLink(child)) continue;
+//      if (isSpecial(child)) continue;
+      int n = listing.count;
+      FileSystemEntry previousChild =
+          previousChildren == null ? null : previousChildren.get(listNames[i]);
+      boolean isFile;
+      long statStart = throttle != null ? System.nanoTime() : 0;
+      try {
+        // Single lstat, the path is parent path plus name, no need to resolve it.
+        FileStat res = lstat(childFile.getPath());
+        if (throttle != null) throttle.onStat(statStart);
+        isFile = !res.isDirectory;
+        // Not regular file and not folder
+//        if ((res.st_mode & 0x0100000) == 0 && (res.st_mode & 0x0040000) == 0) continue;
+        listing.blocks[n] = res.blocks;
+        listing.bytes[n] = res.size;
+        if (res.nlink > 1 && isFile) {
+          if (listing.inos == null) {
+            listing.devs = new long[len];
+            listing.inos = new long[len];
+          }
+          listing.devs[n] = res.dev;
+          listing.inos[n] = res.ino;
+        }
+        if (previousChild != null && previousChild.isDirectory()) {
+          listing.previous[n] = previousChild;
+          listing.unchanged[n] = isUnchanged(res);
+        }
+        if (!isFile) {
+          numDirs++;
+          estimates[n] = previousChild != null
+              ? previousChild.getSizeInBlocks() * blockSizeIn512Bytes
+              : res.blocks;
+        }
+      } catch (ErrnoException e) {
+        continue;
+      }
+      listing.files[n] = childFile;
+      listing.isFile[n] = isFile;
+      listing.count++;
+    }
+    if (numDirs > 1) orderLargestFirst(listing, estimates);
+    return listing;
+  }
+
+  /**
+   * @return names of children in the previous tree, null if some of them
+   *     are not known
+   */
+  private static String[] namesOf(FileSystemEntry[] previousList) {
+    if (previousList == null) return null;
+    String[] names = new String[previousList.length];
+    for (int i = 0; i < previousList.length; i++) {
+      FileSystemEntry c = previousList[i];
+      if (c instanceof FileSystemEntrySmall || c instanceof FileSystemSpecial) return null;
+      names[i] = c.getName();
+    }
+    return names;
+  }
+
+  /**
+   * Puts directories after files, the largest expected first, so that the
+   * scan gets to the bulk of the data early. The estimate is the size in
+   * the previous tree if there is one, or else the size of the directory
+   * itself, which grows with the number of its entries.
+   */
+  private static void orderLargestFirst(Listing listing, final long[] estimates) {
+    int count = listing.count;
+    final boolean[] isFile = listing.isFile;
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) order[i] = i;
+    // stable, files keep their order
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if (isFile[a] != isFile[b]) return isFile[a] ? -1 : 1;
+        if (isFile[a]) return 0;
+        return Long.compare(estimates[b], estimates[a]);
+      }
+    });
+    LegacyFile[] files = new LegacyFile[count];
+    long[] blocks = new long[count];
+    long[] bytes = new long[count];
+    boolean[] newIsFile = new boolean[count];
+    FileSystemEntry[] previous = listing.previous == null ? null : new FileSystemEntry[count];
+    boolean[] unchanged = listing.unchanged == null ? null : new boolean[count];
+    long[] devs = listing.devs == null ? null : new long[count];
+    long[] inos = listing.inos == null ? null : new long[count];
+    for (int i = 0; i < count; i++) {
+      int j = order[i];
+      files[i] = listing.files[j];
+      blocks[i] = listing.blocks[j];
+      bytes[i] = listing.bytes[j];
+      newIsFile[i] = isFile[j];
+      if (previous != null) previous[i] = listing.previous[j];
+      if (unchanged != null) unchanged[i] = listing.unchanged[j];
+      if (inos != null) {
+        devs[i] = listing.devs[j];
+        inos[i] = listing.inos[j];
+      }
+    }
+    listing.files = files;
+    listing.blocks = blocks;
+    listing.bytes = bytes;
+    listing.isFile = newIsFile;
+    listing.previous = previous;
+    listing.unchanged = unchanged;
+    listing.devs = devs;
+    listing.inos = inos;
+  }
+
+  Listing listRoot(LegacyFile file) {
+    return list(file, 0, previousRoot, rootUnchanged);
+  }
+
+  Listing childListing(Listing listing, int index, int depth) {
+    return list(listing.files[index], depth,
+        listing.previous(index), listing.unchanged(index));
+  }
+
   /**
    * Scan directory object.
    * This constructor starts recursive scan to find all descendent files and directories.
@@ -139,29 +492,30 @@ public class Scanner implements DiskUsage.ProgressGenerator {
    * is calculated as a sum of all children.
    * @param parent parent directory object.
    * @param file corresponding File object
+   * @param listing children of the directory
    * @param depth current directory tree depth
    */
-  private void scanDirectory(FileSystemEntry parent, LegacyFile file, int depth, long self_blocks) {
+  private void scanDirectory(FileSystemEntry parent, LegacyFile file,
+      Listing listing, int depth, long self_blocks) {
     String name = file.getName();
     makeNode(parent, name);
     createdNodeNumDirs = 1;
     createdNodeNumFiles = 0;
 
-    if (depth == maxdepth) {
-      createdNode.setSizeInBlocks(calculateSize(file), blockSize);
+    if (depth == maxdepth || listing.overBudget) {
+      // create another one with right type
+      createdNode = FileSystemUnscanned.makeNode(parent, name);
+      createdNode.setSizeInBlocks(shallow || listing.overBudget
+          ? self_blocks : listing.calculatedSize, blockSize);
+      if (listing.overBudget) numOverBudget++;
+      ((FileSystemUnscanned) createdNode).setEstimatedBlocks(
+          Math.max(self_blocks, listing.estimate / blockSizeIn512Bytes));
       // FIXME: get num of dirs and files
       return;
     }
 
-    String[] listNames = null;
-
-    try {
-      listNames = file.list();
-    } catch (SecurityException io) {
-      Log.d("diskusage", "list files", io);
-    }
-
-    if (listNames == null) return;
+    if (listing.files == null) return;
+    if (listing.reused) numReused++;
     FileSystemEntry thisNode = createdNode;
     int thisNodeSize = createdNodeSize;
     int  thisNodeNumDirs = 1;
@@ -178,32 +532,24 @@ public class Scanner implements DiskUsage.ProgressGenerator {
 
     long blocks = self_blocks;
 
-    for (int i = 0; i < listNames.length; i++) {
-      LegacyFile childFile = file.getChild(listNames[i]);
-
-//      if (isLink(child)) continue;
-//      if (isSpecial(child)) continue;
-      long st_blocks;
-      long st_size;
-      try {
-        StructStat res = Os.stat(childFile.getCannonicalPath());
-        // Not regular file and not folder
-//        if ((res.st_mode & 0x0100000) == 0 && (res.st_mode & 0x0040000) == 0) continue;
-        st_blocks = res.st_blocks;
-        st_size = res.st_size;
-      } catch (ErrnoException|IOException e) {
-        continue;
+    for (int i = 0; i < listing.count; i++) {
+      LegacyFile childFile = listing.files[i];
+      long st_blocks = listing.blocks[i];
+      if (listing.inos != null && !hardlinks.add(listing.devs[i], listing.inos[i])) {
+        dedupBlocks += st_blocks;
+        st_blocks = 0;
       }
 
       int dirs = 0, files = 1;
-      if (childFile.isFile()) {
+      if (listing.isFile[i]) {
         makeNode(thisNode, childFile.getName());
-        createdNode.initSizeInBytesAndBlocks(st_size, st_blocks / blockSizeIn512Bytes, blockSize);
+        createdNode.initSizeInBytesAndBlocks(listing.bytes[i], st_blocks / blockSizeIn512Bytes, blockSize);
         pos += createdNode.getSizeInBlocks();
         lastCreatedFile = createdNode;
       } else {
         // directory
-        scanDirectory(thisNode, childFile, depth + 1, st_blocks / blockSizeIn512Bytes);
+        scanDirectory(thisNode, childFile, childListing(listing, i, depth + 1),
+            depth + 1, st_blocks / blockSizeIn512Bytes);
         dirs = createdNodeNumDirs;
         files = createdNodeNumFiles;
       }
@@ -261,12 +607,8 @@ public class Scanner implements DiskUsage.ProgressGenerator {
       smallFilesEntry = createdNode;
       children.add(createdNode);
       thisNodeSize += createdNodeSize;
-      SmallList list = new SmallList(
-          thisNode,
-          smallChildren.toArray(new FileSystemEntry[smallChildren.size()]),
-          thisNodeSizeSmall,
-          smallBlocks);
-      smallLists.add(list);
+      heapSize += smallLists.add(thisNode, (FileSystemEntrySmall) createdNode,
+          smallChildren, thisNodeSizeSmall, smallBlocks);
     }
 
     // Magic to sort children and keep small files last in the array.
@@ -281,6 +623,8 @@ public class Scanner implements DiskUsage.ProgressGenerator {
       if (smallFilesEntry != null) {
         smallFilesEntry.encodedSize = smallFilesEntrySize;
       }
+    } else {
+      thisNode.children = FileSystemEntry.NO_CHILDREN;
     }
     createdNode = thisNode;
     createdNodeSize = thisNodeSize;
@@ -298,10 +642,10 @@ public class Scanner implements DiskUsage.ProgressGenerator {
       + 8    /* name header */
       + name.length() * 2; /* name length */
     heapSize += createdNodeSize;
-    while (heapSize > maxHeapSize && !smallLists.isEmpty()) {
-      SmallList removed = smallLists.remove();
-      heapSize -= removed.heapSize;
-//      print("killed", removed);
+    while (heapSize > maxHeapSize) {
+      int freed = smallLists.drop();
+      if (freed < 0) break;
+      heapSize -= freed;
     }
   }
 
@@ -310,17 +654,17 @@ public class Scanner implements DiskUsage.ProgressGenerator {
    * @param file is file corresponding to this entry
    * @return size of entry in blocks
    */
-  private final long calculateSize(LegacyFile file) {
-    if (file.isLink()) return 0;
-
-    if (file.isFile()) {
-      try {
-        StructStat res = Os.stat(file.getCannonicalPath());
-        return res.st_blocks;
-      } catch (ErrnoException|IOException e) {
-        return 0;
-      }
+  final long calculateSize(LegacyFile file) {
+    FileStat res;
+    long statStart = throttle != null ? System.nanoTime() : 0;
+    try {
+      res = lstat(file.getPath());
+    } catch (ErrnoException e) {
+      return 0;
     }
+    if (throttle != null) throttle.onStat(statStart);
+    if (res.isLink) return 0;
+    if (!res.isDirectory) return res.blocks;
 
     LegacyFile[] list = null;
     try {
@@ -329,6 +673,7 @@ public class Scanner implements DiskUsage.ProgressGenerator {
       Log.e("diskusage", "list files", io);
     }
     if (list == null) return 0;
+    if (cancellation != null) cancellation.throwIfCancelled();
     long size = 1;
 
     for (int i = 0; i < list.length; i++)
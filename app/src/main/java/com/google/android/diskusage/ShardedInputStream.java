@@ -0,0 +1,192 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Joins the shards written by threads of the native scanner back into one
+ * stream, as if it was produced by a single thread. See jni/scan.c for
+ * the frame format. Data of shards which are not read yet is kept in heap
+ * up to a limit, the rest goes to a file.
+ */
+class ShardedInputStream extends InputStream {
+  // Heap taken by buffered shard data.
+  static final int MAX_BUFFERED = 4 * 1024 * 1024;
+
+  private static class Segment {
+    byte[] data;
+    int pos;
+    // data is in the spill file at this offset if data is null and length
+    // is not 0
+    long offset;
+    int length;
+    // shard to insert here if there is no data, 0 for end of shard
+    int child;
+  }
+
+  private final DataInputStream is;
+  private final HashMap<Integer, ArrayDeque<Segment>> shards =
+      new HashMap<Integer, ArrayDeque<Segment>>();
+  private final ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+  private int current = 0;
+  private boolean finished;
+  private int buffered;
+
+  private final File spillDir;
+  private RandomAccessFile spill;
+  private long spillEnd;
+  private int numSpilled;
+
+  /**
+   * @param spillDir directory for data over the heap limit, kept in heap
+   * if null
+   */
+  ShardedInputStream(InputStream is, File spillDir) {
+    this.is = new DataInputStream(new BufferedInputStream(is));
+    this.spillDir = spillDir;
+  }
+
+  private ArrayDeque<Segment> getShard(int id) {
+    ArrayDeque<Segment> shard = shards.get(id);
+    if (shard == null) {
+      shard = new ArrayDeque<Segment>();
+      shards.put(id, shard);
+    }
+    return shard;
+  }
+
+  private int readVarInt() throws IOException {
+    int res = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = is.readByte();
+      res |= (b & 0x7f) << shift;
+      if (b >= 0) return res;
+    }
+    throw new RuntimeException("Error: number format error");
+  }
+
+  private void readFrame() throws IOException {
+    Segment segment = new Segment();
+    int id;
+    int len;
+    try {
+      id = readVarInt();
+      len = readVarInt();
+    } catch (EOFException e) {
+      throw new RuntimeException("Error: no more data");
+    }
+    if (len > 0) {
+      segment.data = new byte[len];
+      is.readFully(segment.data);
+      if (id != current && buffered + len > MAX_BUFFERED && spillDir != null) {
+        spill(segment);
+      } else {
+        buffered += len;
+      }
+    } else {
+      segment.child = readVarInt();
+    }
+    getShard(id).add(segment);
+  }
+
+  private void spill(Segment segment) throws IOException {
+    if (spill == null) {
+      File file = File.createTempFile("shards", null, spillDir);
+      spill = new RandomAccessFile(file, "rw");
+      // Goes away with the descriptor.
+      file.delete();
+    }
+    segment.offset = spillEnd;
+    segment.length = segment.data.length;
+    spill.seek(spillEnd);
+    spill.write(segment.data);
+    spillEnd += segment.length;
+    numSpilled++;
+    segment.data = null;
+  }
+
+  private void unspill(Segment segment) throws IOException {
+    segment.data = new byte[segment.length];
+    spill.seek(segment.offset);
+    spill.readFully(segment.data);
+    buffered += segment.length;
+    // The file is reused once everything in it is read.
+    if (--numSpilled == 0) spillEnd = 0;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int res = read(b, 0, 1);
+    return res < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int byteOffset, int byteCount)
+      throws IOException {
+    while (!finished) {
+      ArrayDeque<Segment> shard = getShard(current);
+      Segment segment = shard.peek();
+      if (segment == null) {
+        readFrame();
+        continue;
+      }
+      if (segment.data == null && segment.length != 0) unspill(segment);
+      if (segment.data != null) {
+        int len = Math.min(byteCount, segment.data.length - segment.pos);
+        System.arraycopy(segment.data, segment.pos, buffer, byteOffset, len);
+        segment.pos += len;
+        if (segment.pos == segment.data.length) {
+          shard.poll();
+          buffered -= segment.data.length;
+        }
+        return len;
+      }
+      shard.poll();
+      if (segment.child != 0) {
+        stack.push(current);
+        current = segment.child;
+      } else {
+        shards.remove(current);
+        if (stack.isEmpty()) {
+          finished = true;
+        } else {
+          current = stack.pop();
+        }
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (spill != null) spill.close();
+    is.close();
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+import android.util.Log;
+
+import com.google.android.diskusage.entity.CompactTree;
+import com.google.android.diskusage.entity.FileSystemEntry;
+import com.google.android.diskusage.entity.FileSystemEntrySmall;
+import com.google.android.diskusage.entity.MappedStore;
+
+/**
+ * Small children of directories, shown as "<N files>" entry while the scan
+ * goes on. The children are packed into {@link CompactTree}, together with
+ * the lists of their descendants. The least space efficient lists are
+ * moved to memory mapped file when the heap limit is reached, or dropped
+ * if there is no such file. After the scan the lists left in heap are put
+ * back into the tree, mapped ones stay behind their entries until the
+ * entries are expanded.
+ */
+class SmallLists implements CompactTree.HiddenChildren {
+  private static class SmallList implements Comparable<SmallList> {
+    final FileSystemEntry parent;
+    final FileSystemEntrySmall entry;
+    // null once packed into the list of an ancestor
+    CompactTree tree;
+    int heapSize;
+    final float spaceEfficiency;
+
+    SmallList(FileSystemEntry parent, FileSystemEntrySmall entry,
+        CompactTree tree, long blocks) {
+      this.parent = parent;
+      this.entry = entry;
+      this.tree = tree;
+      this.heapSize = tree.getHeapSize();
+      this.spaceEfficiency = blocks / (float) heapSize;
+    }
+
+    @Override
+    public int compareTo(SmallList that) {
+      return spaceEfficiency < that.spaceEfficiency ? -1 : (spaceEfficiency == that.spaceEfficiency ? 0 : 1);
+    }
+  }
+
+  private final PriorityQueue<SmallList> lists = new PriorityQueue<SmallList>();
+  private final ArrayList<SmallList> mappedLists = new ArrayList<SmallList>();
+  private final HashMap<FileSystemEntrySmall, SmallList> byEntry =
+      new HashMap<FileSystemEntrySmall, SmallList>();
+  private MappedStore store;
+  private int packedHeapSize;
+  private int numDropped;
+
+  /**
+   * Lists are moved to files in the dir instead of being dropped.
+   */
+  void setCacheDir(File dir) {
+    store = dir != null ? new MappedStore(dir) : null;
+  }
+
+  @Override
+  public CompactTree get(FileSystemEntrySmall entry) {
+    SmallList list = byEntry.remove(entry);
+    if (list == null) return null;
+    packedHeapSize += list.heapSize;
+    CompactTree tree = list.tree;
+    list.tree = null;
+    if (tree.isMapped()) {
+      // Packed with the entry instead of being copied back into heap.
+      entry.setSpilled(tree);
+      return null;
+    }
+    return tree;
+  }
+
+  /**
+   * Packs children hidden behind the entry.
+   * @param heapSize heap taken by the children as objects
+   * @return change of heap size
+   */
+  int add(FileSystemEntry parent, FileSystemEntrySmall entry,
+      ArrayList<FileSystemEntry> children, int heapSize, long blocks) {
+    packedHeapSize = 0;
+    CompactTree tree = CompactTree.pack(
+        children.toArray(new FileSystemEntry[children.size()]), this);
+    SmallList list = new SmallList(parent, entry, tree, blocks);
+    lists.add(list);
+    byEntry.put(entry, list);
+    return list.heapSize - packedHeapSize - heapSize;
+  }
+
+  /**
+   * Moves the least space efficient list out of heap. Without mapped file
+   * the list is dropped, its "<N files>" entry stays.
+   * @return heap freed, or -1 if there is no more lists
+   */
+  int drop() {
+    while (!lists.isEmpty()) {
+      SmallList list = lists.remove();
+      if (list.tree == null) continue;
+      if (store != null) {
+        try {
+          int heapSize = list.heapSize;
+          list.tree = store.map(list.tree);
+          list.heapSize = list.tree.getHeapSize();
+          mappedLists.add(list);
+          return heapSize - list.heapSize;
+        } catch (IOException e) {
+          Log.e("diskusage", "failed to map small list", e);
+          store = null;
+        }
+      }
+      byEntry.remove(list.entry);
+      numDropped++;
+      return list.heapSize;
+    }
+    return -1;
+  }
+
+  /**
+   * Replaces "<N files>" entries with the children, or attaches mapped
+   * children to the entries.
+   * @return heap taken by the children
+   */
+  int restore() {
+    int heapSize = 0;
+    int numEntries = 0;
+    int numMapped = 0;
+    mappedLists.addAll(lists);
+    for (SmallList list : mappedLists) {
+      if (list.tree == null) continue;
+      heapSize += list.heapSize;
+      numEntries += list.tree.getNumEntries();
+      if (list.tree.isMapped()) {
+        list.entry.setSpilled(list.tree);
+        numMapped++;
+        continue;
+      }
+      FileSystemEntry[] oldChildren = list.parent.children;
+      FileSystemEntry[] addChildren = list.tree.makeRootViews(list.parent);
+      FileSystemEntry[] newChildren =
+        new FileSystemEntry[oldChildren.length - 1 + addChildren.length];
+      System.arraycopy(addChildren, 0, newChildren, 0, addChildren.length);
+      for(int pos = addChildren.length, i = 0; i < oldChildren.length; i++) {
+        FileSystemEntry c = oldChildren[i];
+        if (c != list.entry) {
+          newChildren[pos++] = c;
+        }
+      }
+      java.util.Arrays.sort(newChildren, FileSystemEntry.COMPARE);
+      list.parent.children = newChildren;
+    }
+    Log.d("diskusage", "small lists: " + numEntries + " entries packed in "
+        + heapSize + " B, " + numDropped + " lists dropped");
+    if (store != null) {
+      Log.d("diskusage", "small lists: " + numMapped + " lists mapped in "
+          + store.getMappedSize() + " B of files");
+    }
+    lists.clear();
+    mappedLists.clear();
+    byEntry.clear();
+    return heapSize;
+  }
+
+  /**
+   * Drops the lists of a scan which failed, and unmaps their files.
+   */
+  void release() {
+    if (store != null) store.release();
+    lists.clear();
+    mappedLists.clear();
+    byEntry.clear();
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Handler thread for work on the tree outside of main and render threads,
+ * started on first use.
+ */
+class WorkerThread {
+  private final String name;
+  private HandlerThread thread;
+  private Handler handler;
+
+  WorkerThread(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Starts the thread if it is not running.
+   */
+  synchronized Handler getHandler() {
+    if (thread == null) {
+      thread = new HandlerThread(name);
+      thread.start();
+      handler = new Handler(thread.getLooper());
+    }
+    return handler;
+  }
+
+  /**
+   * Quits the thread, posted work which did not start yet is dropped.
+   */
+  synchronized void quit() {
+    if (thread != null) {
+      thread.quit();
+      thread = null;
+      handler = null;
+    }
+  }
+}
@@ -13,6 +13,7 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 
 import com.google.android.diskusage.LoadableActivity;
+import com.google.android.diskusage.ScanCancellation;
 import com.google.android.diskusage.datasource.fast.DefaultDataSource;
 
 public abstract class DataSource {
@@ -40,9 +41,15 @@ public abstract class DataSource {
 
   public abstract PortableFile getExternalStorageDirectory();
 
+  /**
+   * @param queueDepth io_uring queue depth of the scanner, 0 to stat
+   *        synchronously
+   * @param background run at idle I/O priority and throttled
+   * @param cancellation kills the scanner process when cancelled
+   */
   public abstract InputStream createNativeScanner(
-      Context context, String path,
-      boolean rootRequired) throws IOException, InterruptedException;
+      Context context, String path, boolean rootRequired, int numThreads,
+      int queueDepth, boolean background, ScanCancellation cancellation) throws IOException, InterruptedException;
 
   public abstract boolean isDeviceRooted();
 
@@ -5,6 +5,8 @@ import java.io.IOException;
 public interface LegacyFile {
   String getName();
   String getCannonicalPath() throws IOException;
+  /** Path built from the parent path and name, without touching the disk. */
+  String getPath();
 
   boolean isLink();
   boolean isFile();
@@ -20,6 +20,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 
+import com.google.android.diskusage.ScanCancellation;
 import com.google.android.diskusage.datasource.AppStats;
 import com.google.android.diskusage.datasource.AppStatsCallback;
 import com.google.android.diskusage.datasource.DataSource;
@@ -219,7 +220,8 @@ public class DebugDataSource extends DataSource {
 
   @Override
   public InputStream createNativeScanner(Context context, String path,
-      boolean rootRequired) throws IOException, InterruptedException {
+      boolean rootRequired, int numThreads, int queueDepth, boolean background,
+      ScanCancellation cancellation) throws IOException, InterruptedException {
     int emptyPos = -1;
     for (int i = 0; i < dump.nativeScan.length; i++) {
       if (dump.nativeScan[i] == null) {
@@ -239,7 +241,9 @@ public class DebugDataSource extends DataSource {
     proto.path = path;
     proto.rootRequired = rootRequired;
     return PortableStreamProtoWriterImpl.create(
-        delegate.createNativeScanner(context, path, rootRequired), new CloseCallback() {
+        delegate.createNativeScanner(context, path, rootRequired, numThreads,
+            queueDepth, background, cancellation),
+        new CloseCallback() {
           @Override
           public void onClose(PortableStreamProto stream) {
             proto.stream = stream;
@@ -1,5 +1,6 @@
 package com.google.android.diskusage.datasource.fast;
 
+import com.google.android.diskusage.ScanCancellation;
 import com.google.android.diskusage.datasource.AppStatsCallback;
 import com.google.android.diskusage.datasource.DataSource;
 import com.google.android.diskusage.datasource.LegacyFile;
@@ -71,9 +72,11 @@ public class DefaultDataSource extends DataSource {
 
   @Override
   public InputStream createNativeScanner(
-      Context context, String path, boolean rootRequired)
+      Context context, String path, boolean rootRequired, int numThreads,
+      int queueDepth, boolean background, ScanCancellation cancellation)
           throws IOException, InterruptedException {
-    return new NativeScannerStream.Factory(context).create(path, rootRequired);
+    return new NativeScannerStream.Factory(context).create(
+        path, rootRequired, numThreads, queueDepth, background, cancellation);
   }
 
   @Override
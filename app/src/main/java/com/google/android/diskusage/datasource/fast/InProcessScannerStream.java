@@ -0,0 +1,105 @@
+package com.google.android.diskusage.datasource.fast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output of the native scanner run in this process by libscanjni.so, see
+ * SCAN_JNI in jni/scan.c. The scanner thread writes into a ring in a
+ * direct buffer, which is read from here without a pipe in between, and
+ * no binary has to be unpacked and started. The scanner has global state,
+ * only one such scan runs at a time.
+ */
+public class InProcessScannerStream extends InputStream {
+  private static final int RING_SIZE = 256 * 1024;
+  private static final boolean loaded = loadLibrary();
+
+  private final ByteBuffer ring;
+  private final long handle;
+  // Total bytes read, position in the ring modulo its size.
+  private long readPos;
+  private int available;
+  private boolean released;
+
+  private static boolean loadLibrary() {
+    try {
+      System.loadLibrary("scanjni");
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      return false;
+    }
+  }
+
+  private InProcessScannerStream(ByteBuffer ring, long handle) {
+    this.ring = ring;
+    this.handle = handle;
+  }
+
+  /**
+   * Starts the scan, arguments are the same as for the scan binary.
+   * @return null if the library is missing or another scan is running
+   */
+  public static InProcessScannerStream start(String root, int protocol,
+      int numThreads, int queueDepth, boolean background) {
+    if (!loaded) return null;
+    ByteBuffer ring = ByteBuffer.allocateDirect(RING_SIZE);
+    long handle = start(root, protocol, numThreads, queueDepth, background, ring);
+    if (handle == 0) return null;
+    return new InProcessScannerStream(ring, handle);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int res = read(b, 0, 1);
+    return res < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int byteOffset, int byteCount)
+      throws IOException {
+    if (byteCount == 0) return 0;
+    if (available == 0) {
+      if (released) return -1;
+      // Also lets the scanner reuse what is read so far.
+      available = await(handle, readPos);
+      if (available < 0) {
+        available = 0;
+        return -1;
+      }
+    }
+    int pos = (int) (readPos % RING_SIZE);
+    int len = Math.min(byteCount, Math.min(available, RING_SIZE - pos));
+    ring.position(pos);
+    ring.get(buffer, byteOffset, len);
+    readPos += len;
+    available -= len;
+    return len;
+  }
+
+  /**
+   * Makes the scan finish early, can be called from any thread.
+   */
+  public void stop() {
+    synchronized (this) {
+      if (released) return;
+      stop(handle);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (released) return;
+      released = true;
+      release(handle);
+    }
+  }
+
+  private static native long start(String root, int protocol, int numThreads,
+      int queueDepth, boolean background, ByteBuffer ring);
+  private static native int await(long handle, long consumed);
+  private static native void stop(long handle);
+  private static native void release(long handle);
+}
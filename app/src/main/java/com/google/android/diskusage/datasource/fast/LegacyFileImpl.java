@@ -3,6 +3,10 @@ package com.google.android.diskusage.datasource.fast;
 import java.io.File;
 import java.io.IOException;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import com.google.android.diskusage.datasource.LegacyFile;
 
 public class LegacyFileImpl implements LegacyFile {
@@ -27,12 +31,18 @@ public class LegacyFileImpl implements LegacyFile {
     return file.getCanonicalPath();
   }
 
+  @Override
+  public String getPath() {
+    return file.getPath();
+  }
+
   @Override
   public boolean isLink() {
     try {
-      if (file.getCanonicalPath().equals(file.getPath())) return false;
-    } catch(Throwable t) {}
-    return true;
+      return OsConstants.S_ISLNK(Os.lstat(file.getPath()).st_mode);
+    } catch (ErrnoException e) {
+      return false;
+    }
   }
 
   @Override
@@ -5,12 +5,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
+import android.text.TextUtils;
+import android.util.Log;
 
+import com.google.android.diskusage.NativeScanner;
+import com.google.android.diskusage.ScanCancellation;
 import com.google.android.diskusage.datasource.DataSource;
 
 public class NativeScannerStream extends InputStream {
@@ -18,9 +23,31 @@ public class NativeScannerStream extends InputStream {
   private final InputStream is;
   private final Process process;
 
-  public NativeScannerStream(InputStream is, Process process) {
+  public NativeScannerStream(InputStream is, Process process,
+      ScanCancellation cancellation) {
     this.is = is;
     this.process = process;
+    if (cancellation != null) {
+      cancellation.setOnCancelListener(new Runnable() {
+        @Override
+        public void run() {
+          kill();
+        }
+      });
+    }
+  }
+
+  /**
+   * Kills the scanner, pending read gets end of stream. Closing the pipe
+   * also stops the scanner run by su, which is not killed with su itself.
+   */
+  private void kill() {
+    process.destroy();
+    try {
+      is.close();
+    } catch (IOException e) {
+      // already closed
+    }
   }
 
   @Override
@@ -39,9 +66,13 @@ public class NativeScannerStream extends InputStream {
     return is.read(buffer, byteOffset, byteCount);
   }
 
+  /**
+   * Kills the scanner if it still runs, so that a read blocked in another
+   * thread, e.g. in PipelinedInputStream, gets end of stream.
+   */
   @Override
   public void close() throws IOException {
-    is.close();
+    kill();
     try {
       process.waitFor();
     } catch (InterruptedException e) {
@@ -57,13 +88,38 @@ public class NativeScannerStream extends InputStream {
       this.context = context;
     }
 
-    public NativeScannerStream create(String path, boolean rootRequired)
-        throws IOException, InterruptedException {
-      return runScanner(path, rootRequired);
+    /**
+     * Runs the scanner in this process if it can run without su, or else
+     * starts the binary.
+     */
+    public InputStream create(String path, boolean rootRequired,
+        int numThreads, int queueDepth, boolean background,
+        ScanCancellation cancellation) throws IOException, InterruptedException {
+      if (!(rootRequired && DataSource.get().isDeviceRooted())) {
+        final InProcessScannerStream stream = InProcessScannerStream.start(
+            path, numThreads > 1 ? NativeScanner.SHARDED_PROTOCOL
+                : NativeScanner.BINARY_PROTOCOL,
+            numThreads, queueDepth, background);
+        if (stream != null) {
+          if (cancellation != null) {
+            cancellation.setOnCancelListener(new Runnable() {
+              @Override
+              public void run() {
+                stream.stop();
+              }
+            });
+          }
+          return stream;
+        }
+        Log.d("diskusage", "in-process scanner is not available, starting binary");
+      }
+      return runScanner(path, rootRequired, numThreads, queueDepth, background,
+          cancellation);
     }
 
-    private NativeScannerStream runScanner(String root,
-        boolean rootRequired) throws IOException, InterruptedException {
+    private NativeScannerStream runScanner(String root, boolean rootRequired,
+        int numThreads, int queueDepth, boolean background,
+        ScanCancellation cancellation) throws IOException, InterruptedException {
       String binaryName = "scan";
       final int sdkVersion = DataSource.get().getAndroidVersion();
       if (sdkVersion >= 21 /* Lollipop */) {
@@ -72,11 +128,19 @@ public class NativeScannerStream extends InputStream {
       setupBinary(binaryName);
       boolean deviceIsRooted = DataSource.get().isDeviceRooted();
       Process process = null;
-
+      int protocol = numThreads > 1
+          ? NativeScanner.SHARDED_PROTOCOL : NativeScanner.BINARY_PROTOCOL;
+      ArrayList<String> args = new ArrayList<String>();
+      args.add(getScanBinaryPath(binaryName));
+      args.add(root);
+      args.add(String.valueOf(protocol));
+      args.add(String.valueOf(numThreads));
+      // Older binaries ignore the rest.
+      if (queueDepth > 0 || background) args.add(String.valueOf(queueDepth));
+      if (background) args.add("1");
 
       if (!(rootRequired && deviceIsRooted)) {
-        process = Runtime.getRuntime().exec(new String[] {
-            getScanBinaryPath(binaryName), root});
+        process = Runtime.getRuntime().exec(args.toArray(new String[args.size()]));
       } else {
         IOException e = null;
         for (String su : new String[] { "su", "/system/bin/su", "/system/xbin/su" }) {
@@ -93,12 +157,12 @@ public class NativeScannerStream extends InputStream {
         }
 
         OutputStream os = process.getOutputStream();
-        os.write((getScanBinaryPath(binaryName) + " " + root).getBytes("UTF-8"));
+        os.write(TextUtils.join(" ", args).getBytes("UTF-8"));
         os.flush();
         os.close();
       }
       InputStream is = process.getInputStream();
-      return new NativeScannerStream(is, process);
+      return new NativeScannerStream(is, process, cancellation);
     }
 
     public void setupBinary(String binaryName)
@@ -153,9 +217,28 @@ public class NativeScannerStream extends InputStream {
     }
 
     private void unpackScanBinary(String binaryName) throws IOException {
-      InputStream is = context.getAssets().open(binaryName);
+      InputStream is = openAbiAsset(binaryName);
+      if (is == null) is = context.getAssets().open(binaryName);
       FileOutputStream os = new FileOutputStream(getScanBinaryPath(binaryName));
       StreamCopy.copyStream(is, os);
     }
+
+    /**
+     * Opens the binary built for the ABI of the device, these are packaged
+     * only if the NDK build is on.
+     * @return null if there is none and the prebuilt ARM one has to do
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private InputStream openAbiAsset(String binaryName) {
+      if (DataSource.get().getAndroidVersion() < 21 /* Lollipop */) return null;
+      for (String abi : Build.SUPPORTED_ABIS) {
+        try {
+          return context.getAssets().open(abi + "/" + binaryName);
+        } catch (IOException e) {
+          // not built for it
+        }
+      }
+      return null;
+    }
   }
 }
@@ -0,0 +1,542 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage.entity;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Entries kept in columns of primitive arrays instead of objects, about
+ * 20 bytes plus UTF-8 name per entry. Children of a directory are stored
+ * next to each other and the directory refers to them by the index of the
+ * first one and their count. Roots are at the start of the arrays.
+ * Objects for entries are created only when they are looked at, see
+ * {@link FileSystemCompactEntry}.
+ * The columns can be moved out of heap into a memory mapped file, see
+ * {@link MappedStore}. Mapped trees behind "<N files>" entries stay mapped
+ * when the entries are packed, the entries refer to them.
+ */
+public class CompactTree {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  // firstChild of a file
+  private static final int FILE = -1;
+  // firstChild of "<N files>" entry, childCount is the number of files then
+  private static final int SMALL = -2;
+
+  /**
+   * Finds the packed children hidden behind "<N files>" entry, to pack
+   * them in place of it.
+   */
+  public interface HiddenChildren {
+    CompactTree get(FileSystemEntrySmall entry);
+  }
+
+  private long[] sizes;
+  private int[] firstChild;
+  private int[] childCount;
+  private int[] nameEnd;
+  private byte[] names;
+  private int size;
+  private int namesSize;
+  private int rootCount;
+  // Columns in the same order as the arrays, non-null once they are mapped.
+  private ByteBuffer mapped;
+  // Mapped files of "<N files>" entries by index, null if there are none.
+  private HashMap<Integer, CompactTree> spilled;
+
+  private CompactTree(int capacity, int namesCapacity) {
+    sizes = new long[capacity];
+    firstChild = new int[capacity];
+    childCount = new int[capacity];
+    nameEnd = new int[capacity];
+    names = new byte[namesCapacity];
+  }
+
+  /**
+   * Packs the entries and all their descendants.
+   */
+  public static CompactTree pack(FileSystemEntry[] entries, HiddenChildren hidden) {
+    CompactTree tree = new CompactTree(entries.length * 2, entries.length * 32);
+    tree.rootCount = tree.addChildren(-1, entries, hidden);
+    tree.trim();
+    return tree;
+  }
+
+  /**
+   * Copy of the entry of other tree with all its descendants.
+   */
+  static CompactTree copyOf(CompactTree src, int index) {
+    CompactTree tree = new CompactTree(16, 256);
+    tree.rootCount = 1;
+    tree.reserve(1);
+    tree.copyEntry(0, src, index);
+    if (src.firstChildAt(index) >= 0) {
+      tree.addChildren(0, src, src.firstChildAt(index), src.childCountAt(index));
+    }
+    tree.trim();
+    return tree;
+  }
+
+  private int reserve(int count) {
+    int first = size;
+    size += count;
+    if (size > sizes.length) {
+      int capacity = Math.max(size, sizes.length * 2);
+      sizes = Arrays.copyOf(sizes, capacity);
+      firstChild = Arrays.copyOf(firstChild, capacity);
+      childCount = Arrays.copyOf(childCount, capacity);
+      nameEnd = Arrays.copyOf(nameEnd, capacity);
+    }
+    return first;
+  }
+
+  private void trim() {
+    sizes = Arrays.copyOf(sizes, size);
+    firstChild = Arrays.copyOf(firstChild, size);
+    childCount = Arrays.copyOf(childCount, size);
+    nameEnd = Arrays.copyOf(nameEnd, size);
+    names = Arrays.copyOf(names, namesSize);
+  }
+
+  // Names are appended in order of indices, entry i ends where i + 1 starts.
+  private void addName(int index, byte[] src, int start, int len) {
+    if (namesSize + len > names.length) {
+      names = Arrays.copyOf(names, Math.max(namesSize + len, names.length * 2));
+    }
+    System.arraycopy(src, start, names, namesSize, len);
+    namesSize += len;
+    nameEnd[index] = namesSize;
+  }
+
+  private int nameStart(int index) {
+    return index == 0 ? 0 : nameEndAt(index - 1);
+  }
+
+  private long sizeAt(int index) {
+    return mapped == null ? sizes[index] : mapped.getLong(index * 8);
+  }
+
+  private int firstChildAt(int index) {
+    return mapped == null ? firstChild[index] : mapped.getInt(size * 8 + index * 4);
+  }
+
+  private int childCountAt(int index) {
+    return mapped == null ? childCount[index] : mapped.getInt(size * 12 + index * 4);
+  }
+
+  private int nameEndAt(int index) {
+    return mapped == null ? nameEnd[index] : mapped.getInt(size * 16 + index * 4);
+  }
+
+  private byte[] getNameBytes(int index) {
+    int start = nameStart(index);
+    int len = nameEndAt(index) - start;
+    if (mapped == null) return Arrays.copyOfRange(names, start, start + len);
+    byte[] bytes = new byte[len];
+    for (int i = 0, pos = size * 20 + start; i < len; i++, pos++) {
+      bytes[i] = mapped.get(pos);
+    }
+    return bytes;
+  }
+
+  private void setEntry(int index, FileSystemEntry e) {
+    sizes[index] = e.encodedSize;
+    if (e instanceof FileSystemArenaEntry) {
+      FileSystemArenaEntry a = (FileSystemArenaEntry) e;
+      addName(index, a.chunk, a.nameOffset(), a.nameLength());
+    } else {
+      byte[] name = e.getName().getBytes(UTF8);
+      addName(index, name, 0, name.length);
+    }
+    if (e instanceof FileSystemEntrySmall) {
+      FileSystemEntrySmall small = (FileSystemEntrySmall) e;
+      firstChild[index] = SMALL;
+      childCount[index] = small.numFiles;
+      setSpilled(index, small.spilled);
+    } else {
+      firstChild[index] = FILE;
+    }
+  }
+
+  private void copyEntry(int index, CompactTree src, int srcIndex) {
+    sizes[index] = src.sizeAt(srcIndex);
+    if (src.mapped == null) {
+      int start = src.nameStart(srcIndex);
+      addName(index, src.names, start, src.nameEnd[srcIndex] - start);
+    } else {
+      byte[] name = src.getNameBytes(srcIndex);
+      addName(index, name, 0, name.length);
+    }
+    firstChild[index] = src.firstChildAt(srcIndex) == SMALL ? SMALL : FILE;
+    childCount[index] = src.childCountAt(srcIndex);
+    if (src.spilled != null) setSpilled(index, src.spilled.get(srcIndex));
+  }
+
+  private void setSpilled(int index, CompactTree tree) {
+    if (tree == null) return;
+    if (spilled == null) spilled = new HashMap<Integer, CompactTree>();
+    spilled.put(index, tree);
+  }
+
+  /**
+   * Adds the entries as children of parent, or as roots if parent is -1.
+   * A directory can have one "<N files>" entry, it is replaced by the
+   * packed entries hidden behind it if there are such.
+   * @return number of added children
+   */
+  private int addChildren(int parent, FileSystemEntry[] entries,
+      HiddenChildren hidden) {
+    CompactTree inlined = null;
+    int count = entries.length;
+    for (FileSystemEntry e : entries) {
+      if (e instanceof FileSystemEntrySmall) {
+        inlined = hidden.get((FileSystemEntrySmall) e);
+        if (inlined != null) count += inlined.rootCount - 1;
+      }
+    }
+    int first = reserve(count);
+    if (parent >= 0) {
+      firstChild[parent] = first;
+      childCount[parent] = count;
+    }
+    int pos = first;
+    for (FileSystemEntry e : entries) {
+      if (inlined != null && e instanceof FileSystemEntrySmall) continue;
+      setEntry(pos++, e);
+    }
+    if (inlined != null) {
+      for (int i = 0; i < inlined.rootCount; i++) {
+        copyEntry(pos++, inlined, i);
+      }
+    }
+    pos = first;
+    for (FileSystemEntry e : entries) {
+      if (inlined != null && e instanceof FileSystemEntrySmall) continue;
+      if (e.children != null) addChildren(pos, e.children, hidden);
+      pos++;
+    }
+    if (inlined != null) {
+      for (int i = 0; i < inlined.rootCount; i++, pos++) {
+        if (inlined.firstChildAt(i) < 0) continue;
+        addChildren(pos, inlined, inlined.firstChildAt(i), inlined.childCountAt(i));
+      }
+    }
+    return count;
+  }
+
+  private void addChildren(int parent, CompactTree src, int srcFirst, int count) {
+    int first = reserve(count);
+    firstChild[parent] = first;
+    childCount[parent] = count;
+    for (int i = 0; i < count; i++) {
+      copyEntry(first + i, src, srcFirst + i);
+    }
+    for (int i = 0; i < count; i++) {
+      int s = srcFirst + i;
+      if (src.firstChildAt(s) < 0) continue;
+      addChildren(first + i, src, src.firstChildAt(s), src.childCountAt(s));
+    }
+  }
+
+  public int getRootCount() {
+    return rootCount;
+  }
+
+  public int getNumEntries() {
+    return size;
+  }
+
+  /**
+   * Heap taken by the arrays, not counting the views.
+   */
+  public int getHeapSize() {
+    // entry of the map, key and the mapped tree
+    int spilledSize = spilled == null ? 0 : spilled.size() * (32 + 16 + 2 * 48);
+    if (mapped != null) return 2 * 48 + spilledSize;
+    return 5 * 16 + size * (8 + 4 + 4 + 4) + namesSize + spilledSize;
+  }
+
+  public boolean isMapped() {
+    return mapped != null;
+  }
+
+  /**
+   * Size of the columns in the mapped file.
+   */
+  int getMappedSize() {
+    return size * (8 + 4 + 4 + 4) + namesSize;
+  }
+
+  /**
+   * Copies the columns into the buffer, the returned tree reads them from
+   * there and this one can be dropped.
+   */
+  CompactTree mapTo(ByteBuffer buffer) {
+    buffer.order(ByteOrder.nativeOrder());
+    for (int i = 0; i < size; i++) buffer.putLong(sizes[i]);
+    for (int i = 0; i < size; i++) buffer.putInt(firstChild[i]);
+    for (int i = 0; i < size; i++) buffer.putInt(childCount[i]);
+    for (int i = 0; i < size; i++) buffer.putInt(nameEnd[i]);
+    buffer.put(names, 0, namesSize);
+    buffer.rewind();
+    CompactTree tree = new CompactTree(0, 0);
+    tree.size = size;
+    tree.namesSize = namesSize;
+    tree.rootCount = rootCount;
+    tree.mapped = buffer;
+    tree.spilled = spilled;
+    return tree;
+  }
+
+  String getName(int index) {
+    if (mapped != null) return new String(getNameBytes(index), UTF8);
+    int start = nameStart(index);
+    return new String(names, start, nameEnd[index] - start, UTF8);
+  }
+
+  boolean isDirectory(int index) {
+    return firstChildAt(index) >= 0;
+  }
+
+  FileSystemEntry makeView(FileSystemEntry parent, int index) {
+    FileSystemEntry e;
+    if (firstChildAt(index) == SMALL) {
+      FileSystemEntrySmall small =
+          FileSystemEntrySmall.makeNode(parent, getName(index), childCountAt(index));
+      if (spilled != null) small.setSpilled(spilled.get(index));
+      e = small;
+    } else {
+      e = new FileSystemCompactEntry(parent, this, index);
+    }
+    e.encodedSize = sizeAt(index);
+    return e;
+  }
+
+  private FileSystemEntry[] makeViews(FileSystemEntry parent, int first, int count) {
+    FileSystemEntry[] views = new FileSystemEntry[count];
+    FileSystemEntry smallFilesEntry = null;
+    for (int i = 0; i < count; i++) {
+      views[i] = makeView(parent, first + i);
+      if (views[i] instanceof FileSystemEntrySmall) smallFilesEntry = views[i];
+    }
+    // Keep small files last in the array, as the scanners do.
+    long smallFilesEntrySize = 0;
+    if (smallFilesEntry != null) {
+      smallFilesEntrySize = smallFilesEntry.encodedSize;
+      smallFilesEntry.encodedSize = -1;
+    }
+    Arrays.sort(views, FileSystemEntry.COMPARE);
+    if (smallFilesEntry != null) {
+      smallFilesEntry.encodedSize = smallFilesEntrySize;
+    }
+    return views;
+  }
+
+  /**
+   * Views of the roots, sorted as children of a directory.
+   */
+  public FileSystemEntry[] makeRootViews(FileSystemEntry parent) {
+    return makeViews(parent, 0, rootCount);
+  }
+
+  FileSystemEntry[] makeChildViews(FileSystemEntry parent, int index) {
+    return makeViews(parent, firstChildAt(index), childCountAt(index));
+  }
+
+  int getNumChildren(int index) {
+    return childCountAt(index);
+  }
+
+  /**
+   * Same as {@link FileSystemEntry#getNumFiles()} of the entry.
+   */
+  int getNumFiles(int index) {
+    int first = firstChildAt(index);
+    if (first == SMALL) return childCountAt(index);
+    if (first == FILE) return 1;
+    int numFiles = 0;
+    boolean hasFile = false;
+    for (int i = first; i < first + childCountAt(index); i++) {
+      if (firstChildAt(i) < 0) hasFile = true;
+      numFiles += getNumFiles(i);
+    }
+    if (hasFile) numFiles++;
+    return numFiles;
+  }
+
+  /**
+   * Same as {@link FileSystemEntry#filter(CharSequence, int)} of the entry,
+   * but matching entries are not copied, the views share this tree.
+   */
+  private FileSystemEntry filter(int index, CharSequence pattern, int blockSize) {
+    if (firstChildAt(index) == SMALL) return null;
+    if (getName(index).toLowerCase().contains(pattern)) {
+      return makeView(null, index);
+    }
+    return filterChildren(index, pattern, blockSize);
+  }
+
+  FileSystemEntry filterChildren(int index, CharSequence pattern, int blockSize) {
+    int first = firstChildAt(index);
+    if (first < 0 || Thread.currentThread().isInterrupted()) return null;
+    ArrayList<FileSystemEntry> filtered = new ArrayList<FileSystemEntry>();
+    for (int i = first; i < first + childCountAt(index); i++) {
+      FileSystemEntry child = filter(i, pattern, blockSize);
+      if (child != null) filtered.add(child);
+    }
+    if (filtered.size() == 0) return null;
+    FileSystemEntry[] children = filtered.toArray(new FileSystemEntry[filtered.size()]);
+    Arrays.sort(children, FileSystemEntry.COMPARE);
+    FileSystemEntry copy = makeView(null, index);
+    return copy.setChildren(children, blockSize);
+  }
+
+  /**
+   * Writes the entry with all its descendants, see {@link #read(ByteBuffer)}.
+   */
+  void write(DataOutputStream os, int index) throws IOException {
+    CompactTree tree = copyOf(this, index);
+    os.writeInt(tree.size);
+    os.writeInt(tree.namesSize);
+    for (int i = 0; i < tree.size; i++) os.writeLong(tree.sizes[i]);
+    for (int i = 0; i < tree.size; i++) os.writeInt(tree.firstChild[i]);
+    for (int i = 0; i < tree.size; i++) os.writeInt(tree.childCount[i]);
+    for (int i = 0; i < tree.size; i++) os.writeInt(tree.nameEnd[i]);
+    os.write(tree.names, 0, tree.namesSize);
+    tree.writeSpilled(os);
+  }
+
+  private void writeSpilled(DataOutputStream os) throws IOException {
+    if (spilled == null) {
+      os.writeInt(0);
+      return;
+    }
+    os.writeInt(spilled.size());
+    for (Map.Entry<Integer, CompactTree> e : spilled.entrySet()) {
+      os.writeInt(e.getKey());
+      e.getValue().writeMapped(os);
+    }
+  }
+
+  /**
+   * Writes all roots with the columns laid out as in a mapped file, so that
+   * {@link #readMapped(ByteBuffer)} uses them in place, off heap.
+   */
+  void writeMapped(DataOutputStream os) throws IOException {
+    os.writeInt(size);
+    os.writeInt(namesSize);
+    os.writeInt(rootCount);
+    ByteBuffer columns;
+    if (mapped != null) {
+      columns = mapped.duplicate();
+      columns.rewind();
+    } else {
+      columns = ByteBuffer.allocate(getMappedSize());
+      mapTo(columns);
+    }
+    byte[] chunk = new byte[65536];
+    for (int left = getMappedSize(); left > 0; ) {
+      int len = Math.min(left, chunk.length);
+      columns.get(chunk, 0, len);
+      os.write(chunk, 0, len);
+      left -= len;
+    }
+    writeSpilled(os);
+  }
+
+  private void readSpilled(ByteBuffer buffer) throws IOException {
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      int index = buffer.getInt();
+      if (index < 0 || index >= size || firstChildAt(index) != SMALL) {
+        throw new IOException("Snapshot is corrupted");
+      }
+      setSpilled(index, readMapped(buffer));
+    }
+  }
+
+  private void check() throws IOException {
+    for (int i = 0; i < size; i++) {
+      int first = firstChildAt(i);
+      int end = nameEndAt(i);
+      if (first < SMALL || (first >= 0 && first + childCountAt(i) > size)
+          || end > namesSize || end < nameStart(i)) {
+        throw new IOException("Snapshot is corrupted");
+      }
+    }
+  }
+
+  /**
+   * Reads tree written by {@link #writeMapped(DataOutputStream)}, it reads
+   * the columns from the buffer.
+   */
+  static CompactTree readMapped(ByteBuffer buffer) throws IOException {
+    int size = buffer.getInt();
+    int namesSize = buffer.getInt();
+    int rootCount = buffer.getInt();
+    if (size < 1 || namesSize < 0 || rootCount < 1 || rootCount > size
+        || (long) size * 20 + namesSize > buffer.remaining()) {
+      throw new IOException("Snapshot is corrupted");
+    }
+    CompactTree tree = new CompactTree(0, 0);
+    tree.size = size;
+    tree.namesSize = namesSize;
+    tree.rootCount = rootCount;
+    ByteBuffer columns = buffer.slice();
+    columns.limit(tree.getMappedSize());
+    columns.order(ByteOrder.nativeOrder());
+    buffer.position(buffer.position() + tree.getMappedSize());
+    tree.mapped = columns;
+    tree.check();
+    tree.readSpilled(buffer);
+    return tree;
+  }
+
+  /**
+   * Reads tree of one root written by {@link #write(DataOutputStream, int)}.
+   */
+  static CompactTree read(ByteBuffer buffer) throws IOException {
+    int size = buffer.getInt();
+    int namesSize = buffer.getInt();
+    if (size < 1 || namesSize < 0
+        || (long) size * 20 + namesSize > buffer.remaining()) {
+      throw new IOException("Snapshot is corrupted");
+    }
+    CompactTree tree = new CompactTree(size, namesSize);
+    tree.size = size;
+    tree.namesSize = namesSize;
+    tree.rootCount = 1;
+    for (int i = 0; i < size; i++) tree.sizes[i] = buffer.getLong();
+    for (int i = 0; i < size; i++) tree.firstChild[i] = buffer.getInt();
+    for (int i = 0; i < size; i++) tree.childCount[i] = buffer.getInt();
+    for (int i = 0; i < size; i++) tree.nameEnd[i] = buffer.getInt();
+    buffer.get(tree.names);
+    tree.check();
+    tree.readSpilled(buffer);
+    return tree;
+  }
+}
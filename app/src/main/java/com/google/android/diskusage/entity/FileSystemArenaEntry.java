@@ -0,0 +1,58 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage.entity;
+
+import java.nio.charset.Charset;
+
+/**
+ * File entry with the name in a chunk of {@link NameArena}, decoded on
+ * first {@link #getName()}.
+ */
+class FileSystemArenaEntry extends FileSystemFile {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  // NAME_MAX of Linux
+  static final int MAX_NAME_LENGTH = 255;
+
+  final byte[] chunk;
+  // offset in chunk << 8 | length
+  private final int slice;
+
+  FileSystemArenaEntry(FileSystemEntry parent, byte[] chunk, int offset, int len) {
+    super(parent, null);
+    this.chunk = chunk;
+    this.slice = offset << 8 | len;
+  }
+
+  final int nameOffset() {
+    return slice >>> 8;
+  }
+
+  final int nameLength() {
+    return slice & 0xff;
+  }
+
+  @Override
+  public String getName() {
+    if (name == null) {
+      name = new String(chunk, nameOffset(), nameLength(), UTF8);
+    }
+    return name;
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage.entity;
+
+/**
+ * View of an entry of {@link CompactTree}. Children of the view are created
+ * on first {@link #getChildren()} and then kept in children field, changes
+ * like deletion are done on them. Until then children field is null even
+ * for a directory. Name is decoded on first {@link #getName()}. Other
+ * threads than the render one use {@link #listChildren()}.
+ */
+public class FileSystemCompactEntry extends FileSystemEntry {
+  final CompactTree tree;
+  final int index;
+
+  FileSystemCompactEntry(FileSystemEntry parent, CompactTree tree, int index) {
+    super(parent, null);
+    this.tree = tree;
+    this.index = index;
+  }
+
+  @Override
+  public String getName() {
+    if (name == null) {
+      name = tree.getName(index);
+    }
+    return name;
+  }
+
+  /**
+   * The entry is a directory whose children are not created yet.
+   */
+  final boolean isPacked() {
+    return children == null && tree.isDirectory(index);
+  }
+
+  @Override
+  public boolean isDeletable() {
+    return true;
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return children != null || tree.isDirectory(index);
+  }
+
+  @Override
+  public FileSystemEntry[] getChildren() {
+    if (isPacked()) {
+      children = tree.makeChildViews(this, index);
+    }
+    return children;
+  }
+
+  @Override
+  public FileSystemEntry[] listChildren() {
+    if (isPacked()) {
+      return tree.makeChildViews(this, index);
+    }
+    return children;
+  }
+
+  @Override
+  public int getNumChildren() {
+    if (isPacked()) {
+      return tree.getNumChildren(index);
+    }
+    return super.getNumChildren();
+  }
+
+  @Override
+  public FileSystemEntry create() {
+    return new FileSystemCompactEntry(null, tree, index);
+  }
+
+  @Override
+  public FileSystemEntry filterChildren(CharSequence pattern, int blockSize) {
+    if (isPacked()) {
+      return tree.filterChildren(index, pattern, blockSize);
+    }
+    return super.filterChildren(pattern, blockSize);
+  }
+
+  @Override
+  public int getNumFiles() {
+    if (isPacked()) {
+      return tree.getNumFiles(index);
+    }
+    return super.getNumFiles();
+  }
+}
@@ -64,7 +64,7 @@ public class FileSystemEntry {
   public static FileSystemEntry deletedEntry;
 
   public boolean hasChildren() {
-    return children != null && children.length != 0;
+    return getNumChildren() != 0;
   }
 
   /**
@@ -139,7 +139,8 @@ public class FileSystemEntry {
   public long encodedSize;
   public FileSystemEntry parent;
   public FileSystemEntry[] children;
-  public String name;
+  // Use getName(), names of some entries are decoded on first use.
+  protected String name;
 //  public String sizeString;
   public DrawingCache drawingCache;
 
@@ -161,6 +162,8 @@ public class FileSystemEntry {
   // 16Mb block size on mobile device... probably in year 2020.
   // probably 32 bits for maximum number of block will break before ~2016
   public static final int blockOffset = 24;
+  // Children of empty directory, to tell it apart from a file.
+  public static final FileSystemEntry[] NO_CHILDREN = new FileSystemEntry[0];
   static final long blockMask = (1l << blockOffset) - 1;
 
   public long getSizeInBlocks() {
@@ -203,6 +206,24 @@ public class FileSystemEntry {
     return MULTIPLIER_GBYTES100 | (size >> 30);
   }
 
+  /**
+   * Size in bytes with the precision kept in encoded size, enough to
+   * encode it back to the same value.
+   */
+  public long getApproxSizeInBytes() {
+    long size = SIZE_MASK & (int)encodedSize;
+    switch (MULTIPLIER_MASK & (int)encodedSize) {
+    case MULTIPLIER_BYTES: return size;
+    case MULTIPLIER_KBYTES:
+    case MULTIPLIER_MBYTES:
+    case MULTIPLIER_MBYTES10: return size << 10;
+    case MULTIPLIER_MBYTES100:
+    case MULTIPLIER_GBYTES:
+    case MULTIPLIER_GBYTES10: return size << 20;
+    }
+    return size << 30;
+  }
+
   public boolean isDeletable() {
     return false;
   }
@@ -223,6 +244,50 @@ public class FileSystemEntry {
     return this;
   }
 
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Children of a directory, null for a file. Children of entries kept in
+   * {@link CompactTree} are created here, so use it instead of the field
+   * unless the entry was created by a scanner. Once the tree is shown, it
+   * changes the tree and should be called in render thread only.
+   */
+  public FileSystemEntry[] getChildren() {
+    return children;
+  }
+
+  /**
+   * Same as {@link #getChildren()}, but does not keep created children,
+   * for walking through the whole tree and for other threads.
+   */
+  public FileSystemEntry[] listChildren() {
+    return children;
+  }
+
+  /**
+   * Number of children, 0 for a file. Children are not created for it.
+   */
+  public int getNumChildren() {
+    return children == null ? 0 : children.length;
+  }
+
+  public boolean isDirectory() {
+    return children != null;
+  }
+
+  /**
+   * @return the entry is in the tree of the root, e.g. it was not deleted
+   * while it was scanned in another thread
+   */
+  public final boolean isAttachedTo(FileSystemEntry root) {
+    for (FileSystemEntry e = this; e != null; e = e.parent) {
+      if (e == root) return true;
+    }
+    return false;
+  }
+
   public FileSystemEntry setChildren(FileSystemEntry[] children, int blockSize) {
     this.children = children;
     long blocks = 0;
@@ -309,7 +374,7 @@ public class FileSystemEntry {
   public static Compare COMPARE = new Compare();
 
   public FileSystemEntry create() {
-    return new FileSystemEntry(null, this.name);
+    return new FileSystemEntry(null, getName());
   }
 
   public class SearchInterruptedException extends RuntimeException {
@@ -361,7 +426,7 @@ public class FileSystemEntry {
   }
 
   public FileSystemEntry filter(CharSequence pattern, int blockSize) {
-    if (name.toLowerCase().contains(pattern)) {
+    if (getName().toLowerCase().contains(pattern)) {
       return copy();
     }
     return filterChildren(pattern, blockSize);
@@ -614,13 +679,15 @@ public class FileSystemEntry {
 
             DrawingCache cache = c.getDrawingCache();
             String sizeString = cache.getSizeString();
-            int cliplen = fg2.breakText(c.name, true, elementWidth - 4, null);
-            String clippedName = c.name.substring(0, cliplen);
+            String cname = c.getName();
+            int cliplen = fg2.breakText(cname, true, elementWidth - 4, null);
+            String clippedName = cname.substring(0, cliplen);
             canvas.drawText(clippedName,  xoffset + 2, pos1, textPaintFolder);
             canvas.drawText(sizeString, xoffset + 2, pos2, textPaintFolder);
           } else if (bottom - top > fontSize0) {
-            int cliplen = fg2.breakText(c.name, true, elementWidth - 4, null);
-            String clippedName = c.name.substring(0, cliplen);
+            String cname = c.getName();
+            int cliplen = fg2.breakText(cname, true, elementWidth - 4, null);
+            String clippedName = cname.substring(0, cliplen);
             canvas.drawText(clippedName, xoffset + 2,
                 (top + bottom - ascent - descent) / 2,
                 c.children == null ? textPaintFile : textPaintFolder);
@@ -669,7 +736,7 @@ public class FileSystemEntry {
         return;
       }
 
-      FileSystemEntry[] cchildren = c.children;
+      FileSystemEntry[] cchildren = c.getChildren();
 
       if (cchildren != null)
         FileSystemEntry.paintGPU(c.getSizeForRendering(), cchildren, rt,
@@ -767,7 +834,7 @@ public class FileSystemEntry {
         return;
       }
 
-      FileSystemEntry[] cchildren = c.children;
+      FileSystemEntry[] cchildren = c.getChildren();
 
       if (cchildren != null)
         FileSystemEntry.paint(c.getSizeForRendering(), cchildren, canvas,
@@ -814,14 +881,16 @@ public class FileSystemEntry {
 
             DrawingCache cache = c.getDrawingCache();
             String sizeString = cache.getSizeString();
-            int cliplen = fg2.breakText(c.name, true, elementWidth - 4, null);
-            String clippedName = c.name.substring(0, cliplen);
+            String cname = c.getName();
+            int cliplen = fg2.breakText(cname, true, elementWidth - 4, null);
+            String clippedName = cname.substring(0, cliplen);
             Paint paint = c.children == null ? textPaintFile : textPaintFolder;
             canvas.drawText(clippedName,  xoffset + 2, pos1, paint);
             canvas.drawText(sizeString, xoffset + 2, pos2, paint);
           } else if (bottom - top > fontSize0) {
-            int cliplen = fg2.breakText(c.name, true, elementWidth - 4, null);
-            String clippedName = c.name.substring(0, cliplen);
+            String cname = c.getName();
+            int cliplen = fg2.breakText(cname, true, elementWidth - 4, null);
+            String clippedName = cname.substring(0, cliplen);
             Paint paint = c.children == null ? textPaintFile : textPaintFolder;
             canvas.drawText(clippedName, xoffset + 2, (top + bottom - ascent - descent) / 2, paint);
           }
@@ -970,12 +1039,13 @@ public class FileSystemEntry {
 
   public final String toTitleString() {
     String sizeString0 = sizeString();
-    if (children != null && children.length != 0)
-      return String.format(dir_name_size_num_dirs, name, sizeString0, children.length);
+    int numChildren = getNumChildren();
+    if (numChildren != 0)
+      return String.format(dir_name_size_num_dirs, getName(), sizeString0, numChildren);
     else if (getSizeInBlocks() == 0) {
-      return String.format(dir_empty, name);
+      return String.format(dir_empty, getName());
     } else {
-      return String.format(dir_name_size, name, sizeString0);
+      return String.format(dir_name_size, getName(), sizeString0);
     }
   }
 
@@ -983,7 +1053,7 @@ public class FileSystemEntry {
     ArrayList<String> pathElements = new ArrayList<String>();
     FileSystemEntry current = this;
     while (current != null) {
-      pathElements.add(current.name);
+      pathElements.add(current.getName());
       current = current.parent;
     }
     pathElements.remove(pathElements.size() - 1);
@@ -1006,7 +1076,10 @@ public class FileSystemEntry {
     if (this instanceof FileSystemRoot) {
       return ((FileSystemRoot)this).rootPath;
     }
-    return parent.absolutePath() + "/" + name;
+    FileSystemEntry dir = parent;
+    // expanded "<N files>" entry is not a directory on disk
+    if (dir instanceof FileSystemEntrySmall) dir = dir.parent;
+    return dir.absolutePath() + "/" + getName();
   }
 
   /**
@@ -1034,7 +1107,7 @@ public class FileSystemEntry {
   public final FileSystemEntry findEntry(int maxDepth, long offset) {
     long currOffset = 0;
     FileSystemEntry entry = this;
-    FileSystemEntry[] children0 = children;
+    FileSystemEntry[] children0 = getChildren();
     // Log.d("DiskUsage", "Starting entry search at " + entry.name);
 
     for (int depth = 0; depth < maxDepth; depth++) {
@@ -1050,7 +1123,7 @@ public class FileSystemEntry {
 
         // found entry
         entry = e;
-        children0 = e.children;
+        children0 = e.getChildren();
         if (children0 == null) return entry;
         break;
       }
@@ -1118,7 +1191,27 @@ public class FileSystemEntry {
     // throw new RuntimeException("child is not found: " + this);
   }
 
+  /**
+   * Puts the new entry in place of this one, sizes of parents are updated.
+   */
+  public final void replace(FileSystemEntry newEntry, int blockSize) {
+    FileSystemEntry[] children0 = parent.children;
+    for (int i = 0; i < children0.length; i++) {
+      if (children0[i] != this) continue;
+      children0[i] = newEntry;
+      newEntry.parent = parent;
+      long blocks = newEntry.getSizeInBlocks() - getSizeInBlocks();
+      for (FileSystemEntry parent0 = parent; parent0 != null; parent0 = parent0.parent) {
+        parent0.setSizeInBlocks(parent0.getSizeInBlocks() + blocks, blockSize);
+        parent0.clearDrawingCache();
+        Arrays.sort(parent0.children, FileSystemEntry.COMPARE);
+      }
+      return;
+    }
+  }
+
   public final void insert(FileSystemEntry newEntry, int blockSize) {
+    getChildren();
     FileSystemEntry[] children0 = new FileSystemEntry[children.length + 1];
     System.arraycopy(children, 0, children0, 0, children.length);
     children0[children.length] = newEntry;
@@ -1128,7 +1221,7 @@ public class FileSystemEntry {
     long blocks = newEntry.getSizeInBlocks();
 
     while (parent0 != null) {
-      java.util.Arrays.sort(children, COMPARE);
+      Arrays.sort(children, COMPARE);
       parent0.setSizeInBlocks(parent0.getSizeInBlocks() + blocks, blockSize);
       parent0.clearDrawingCache();
       parent0 = parent0.parent;
@@ -1147,13 +1240,13 @@ public class FileSystemEntry {
     outer:
       for (int i = 0; i < pathElements.length; i++) {
         String name = pathElements[i];
-        FileSystemEntry[] children = entry.children;
+        FileSystemEntry[] children = entry.getChildren();
         if (children == null) {
           return null;
         }
         for (int j = 0; j < children.length; j++) {
           entry = children[j];
-          if (name.equals(entry.name)) {
+          if (name.equals(entry.getName())) {
             continue outer;
           }
         }
@@ -1219,7 +1312,7 @@ public class FileSystemEntry {
   private void validateRecursive() {
     if (children == null) return;
     for (int i = 0; i < children.length; i++) {
-      if (children[i].parent != this) throw new RuntimeException("corrupted: " + this.path2() + " <> " + children[i].name);
+      if (children[i].parent != this) throw new RuntimeException("corrupted: " + this.path2() + " <> " + children[i].getName());
       children[i].validateRecursive();
     }
   }
@@ -1238,7 +1331,7 @@ public class FileSystemEntry {
     int numFiles = 0;
     boolean hasFile = false;
     for (FileSystemEntry entry : children) {
-      if (entry.children == null) hasFile = true;
+      if (!entry.isDirectory()) hasFile = true;
       numFiles += entry.getNumFiles();
     }
     if (hasFile) numFiles++;
@@ -21,6 +21,8 @@ package com.google.android.diskusage.entity;
 
 public class FileSystemEntrySmall extends FileSystemEntry {
   int numFiles;
+  // Files moved out of heap by the scan, created as children by expand().
+  CompactTree spilled;
   public FileSystemEntrySmall(FileSystemEntry parent, String name, int numFiles) {
     super(parent, name);
     this.numFiles = numFiles;
@@ -31,9 +33,50 @@ public class FileSystemEntrySmall extends FileSystemEntry {
     return new FileSystemEntrySmall(parent, name, numFiles);
   }
 
+  public void setSpilled(CompactTree spilled) {
+    this.spilled = spilled;
+  }
+
+  public boolean isSpilled() {
+    return spilled != null;
+  }
+
+  /**
+   * Takes off one of the files, which is gone. Its size is not known, the
+   * average one is taken off. The name keeps the count of the scan.
+   * @return blocks taken off
+   */
+  public long removeFile(int blockSize) {
+    long blocks = getSizeInBlocks() / numFiles;
+    numFiles--;
+    setSizeInBlocks(getSizeInBlocks() - blocks, blockSize);
+    return blocks;
+  }
+
+  /**
+   * Creates the spilled files as children, only their pages of the mapped
+   * file are loaded.
+   */
+  public void expand() {
+    if (spilled != null && children == null) {
+      children = spilled.makeRootViews(this);
+    }
+  }
+
+  /**
+   * Drops the children created by {@link #expand()}.
+   */
+  public void collapse() {
+    if (spilled != null) {
+      children = null;
+    }
+  }
+
   @Override
   public FileSystemEntry create() {
-    return new FileSystemEntrySmall(null, this.name, this.numFiles);
+    FileSystemEntrySmall copy = new FileSystemEntrySmall(null, this.name, this.numFiles);
+    copy.spilled = this.spilled;
+    return copy;
   }
 
   @Override
@@ -1,7 +1,7 @@
 package com.google.android.diskusage.entity;
 
 public class FileSystemFile extends FileSystemEntry {
-  private FileSystemFile(FileSystemEntry parent, String name) {
+  protected FileSystemFile(FileSystemEntry parent, String name) {
     super(parent, name);
   }
 
@@ -18,6 +18,6 @@ public class FileSystemFile extends FileSystemEntry {
 
   @Override
   public FileSystemEntry create() {
-    return new FileSystemFile(null, this.name);
+    return new FileSystemFile(null, getName());
   }
 }
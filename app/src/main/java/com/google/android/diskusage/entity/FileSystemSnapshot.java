@@ -0,0 +1,331 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage.entity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+import android.util.Log;
+
+/**
+ * Compact binary copy of a scanned tree, to show it right away on the next
+ * start instead of waiting for a scan.
+ * Layout: magic, version, nodes in pre-order and number of nodes. Every
+ * node is kind byte, encoded size, name, number of children (-1 if there
+ * is no children array) and extra fields of its kind. Directories kept in
+ * {@link CompactTree} are written as one node with their packed subtree.
+ * Files spilled out of heap behind "<N files>" entries are written as
+ * mapped columns, the read tree maps them from the snapshot.
+ */
+public class FileSystemSnapshot {
+  private static final int MAGIC = 0x44555331; // DUS1
+  private static final int VERSION = 6;
+
+  private static final byte KIND_ENTRY = 0;
+  private static final byte KIND_FILE = 1;
+  private static final byte KIND_SMALL = 2;
+  private static final byte KIND_PACKAGE = 3;
+  private static final byte KIND_ROOT = 4;
+  private static final byte KIND_SUPER_ROOT = 5;
+  private static final byte KIND_SPECIAL = 6;
+  private static final byte KIND_SYSTEM_SPACE = 7;
+  private static final byte KIND_FREE_SPACE = 8;
+  private static final byte KIND_COMPACT = 9;
+  private static final byte KIND_UNSCANNED = 10;
+  // Length written for a null string, e.g. name of the super root.
+  private static final int NULL_STRING = 0xffff;
+
+  private static class Frame {
+    final FileSystemEntry node;
+    int next;
+
+    Frame(FileSystemEntry node) {
+      this.node = node;
+    }
+  }
+
+  private static byte getKind(FileSystemEntry e) {
+    if (e instanceof FileSystemSuperRoot) return KIND_SUPER_ROOT;
+    if (e instanceof FileSystemSystemSpace) return KIND_SYSTEM_SPACE;
+    if (e instanceof FileSystemFreeSpace) return KIND_FREE_SPACE;
+    if (e instanceof FileSystemSpecial) return KIND_SPECIAL;
+    if (e instanceof FileSystemEntrySmall) return KIND_SMALL;
+    if (e instanceof FileSystemPackage) return KIND_PACKAGE;
+    if (e instanceof FileSystemCompactEntry) {
+      return ((FileSystemCompactEntry) e).isPacked() ? KIND_COMPACT : KIND_FILE;
+    }
+    if (e instanceof FileSystemRoot) return KIND_ROOT;
+    if (e instanceof FileSystemUnscanned) return KIND_UNSCANNED;
+    if (e instanceof FileSystemFile) return KIND_FILE;
+    return KIND_ENTRY;
+  }
+
+  // Children made by FileSystemEntrySmall.expand() are in its spilled tree.
+  private static FileSystemEntry[] childrenOf(FileSystemEntry e) {
+    if (e instanceof FileSystemEntrySmall && ((FileSystemEntrySmall) e).isSpilled()) {
+      return null;
+    }
+    return e.children;
+  }
+
+  private static void writeString(DataOutputStream os, String s) throws IOException {
+    if (s == null) {
+      os.writeShort(NULL_STRING);
+      return;
+    }
+    byte[] bytes = s.getBytes("UTF-8");
+    if (bytes.length >= NULL_STRING) throw new IOException("Too long name");
+    os.writeShort(bytes.length);
+    os.write(bytes);
+  }
+
+  private static void writeNode(DataOutputStream os, FileSystemEntry e)
+      throws IOException {
+    byte kind = getKind(e);
+    os.writeByte(kind);
+    os.writeLong(e.encodedSize);
+    writeString(os, e.getName());
+    FileSystemEntry[] children = childrenOf(e);
+    os.writeInt(children == null ? -1 : children.length);
+    switch (kind) {
+    case KIND_SMALL:
+      FileSystemEntrySmall small = (FileSystemEntrySmall) e;
+      os.writeInt(small.numFiles);
+      os.writeBoolean(small.spilled != null);
+      if (small.spilled != null) small.spilled.writeMapped(os);
+      break;
+    case KIND_PACKAGE:
+      FileSystemPackage pkg = (FileSystemPackage) e;
+      writeString(os, pkg.pkg);
+      os.writeLong(pkg.codeSize);
+      os.writeLong(pkg.dataSize);
+      os.writeLong(pkg.cacheSize);
+      os.writeInt(pkg.flags);
+      break;
+    case KIND_ROOT:
+      FileSystemRoot root = (FileSystemRoot) e;
+      writeString(os, root.rootPath);
+      os.writeBoolean(root.isDeletable());
+      break;
+    case KIND_SUPER_ROOT:
+      FileSystemSuperRoot superRoot = (FileSystemSuperRoot) e;
+      os.writeInt(superRoot.blockSize);
+      os.writeLong(superRoot.scanStartTime);
+      os.writeLong(superRoot.fullScanStartTime);
+      break;
+    case KIND_COMPACT:
+      FileSystemCompactEntry compact = (FileSystemCompactEntry) e;
+      compact.tree.write(os, compact.index);
+      break;
+    }
+  }
+
+  /**
+   * Writes the tree into temporary file and renames it over the snapshot,
+   * so a crash in the middle never leaves a broken snapshot.
+   */
+  public static void write(FileSystemSuperRoot root, File file) throws IOException {
+    long start = System.currentTimeMillis();
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream os = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+    int count = 1;
+    try {
+      os.writeInt(MAGIC);
+      os.writeInt(VERSION);
+      ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+      writeNode(os, root);
+      stack.push(new Frame(root));
+      while (!stack.isEmpty()) {
+        Frame f = stack.peek();
+        FileSystemEntry[] children = childrenOf(f.node);
+        if (children == null || f.next == children.length) {
+          stack.pop();
+          continue;
+        }
+        FileSystemEntry child = children[f.next++];
+        writeNode(os, child);
+        count++;
+        stack.push(new Frame(child));
+      }
+      os.writeInt(count);
+    } finally {
+      os.close();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Failed to rename snapshot " + tmp);
+    }
+    Log.d("diskusage", "snapshot of " + count + " nodes written in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private final ByteBuffer buffer;
+  private final byte[] stringBuffer = new byte[65536];
+
+  private FileSystemSnapshot(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  private String readString() throws IOException {
+    int len = buffer.getShort() & 0xffff;
+    if (len == NULL_STRING) return null;
+    buffer.get(stringBuffer, 0, len);
+    return new String(stringBuffer, 0, len, "UTF-8");
+  }
+
+  private FileSystemEntry readNode() throws IOException {
+    byte kind = buffer.get();
+    long encodedSize = buffer.getLong();
+    String name = readString();
+    int childCount = buffer.getInt();
+    FileSystemEntry e;
+    switch (kind) {
+    case KIND_ENTRY:
+      e = FileSystemEntry.makeNode(null, name);
+      break;
+    case KIND_FILE:
+      e = FileSystemFile.makeNode(null, name);
+      break;
+    case KIND_SMALL: {
+      FileSystemEntrySmall small =
+          FileSystemEntrySmall.makeNode(null, name, buffer.getInt());
+      if (buffer.get() != 0) small.setSpilled(CompactTree.readMapped(buffer));
+      e = small;
+      break;
+    }
+    case KIND_UNSCANNED:
+      e = FileSystemUnscanned.makeNode(null, name);
+      break;
+    case KIND_PACKAGE: {
+      String pkgName = readString();
+      long codeSize = buffer.getLong();
+      long dataSize = buffer.getLong();
+      long cacheSize = buffer.getLong();
+      int flags = buffer.getInt();
+      FileSystemPackage pkg = new FileSystemPackage(
+          name, pkgName, codeSize, dataSize, cacheSize, flags);
+      // constructor adjusts sizes, restore them as they were
+      pkg.codeSize = codeSize;
+      pkg.dataSize = dataSize;
+      pkg.cacheSize = cacheSize;
+      e = pkg;
+      break;
+    }
+    case KIND_ROOT: {
+      String rootPath = readString();
+      e = FileSystemRoot.makeNode(name, rootPath, buffer.get() != 0);
+      break;
+    }
+    case KIND_SUPER_ROOT: {
+      FileSystemSuperRoot superRoot = new FileSystemSuperRoot(buffer.getInt());
+      superRoot.scanStartTime = buffer.getLong();
+      superRoot.fullScanStartTime = buffer.getLong();
+      e = superRoot;
+      break;
+    }
+    case KIND_SPECIAL:
+      e = new FileSystemSpecial(name, 0, 512);
+      break;
+    case KIND_SYSTEM_SPACE:
+      e = new FileSystemSystemSpace(name, 0, 512);
+      break;
+    case KIND_FREE_SPACE:
+      e = new FileSystemFreeSpace(name, 0, 512);
+      break;
+    case KIND_COMPACT:
+      e = CompactTree.read(buffer).makeView(null, 0);
+      break;
+    default:
+      throw new IOException("Unknown node kind " + kind);
+    }
+    e.encodedSize = encodedSize;
+    if (childCount >= 0) {
+      e.children = new FileSystemEntry[childCount];
+    }
+    return e;
+  }
+
+  private FileSystemSuperRoot readTree() throws IOException {
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+    FileSystemEntry root = readNode();
+    if (!(root instanceof FileSystemSuperRoot)) {
+      throw new IOException("Snapshot has no root");
+    }
+    ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+    stack.push(new Frame(root));
+    int numNodes = 1;
+    while (!stack.isEmpty()) {
+      Frame f = stack.peek();
+      FileSystemEntry[] children = f.node.children;
+      if (children == null || f.next == children.length) {
+        stack.pop();
+        if (children != null && f.node instanceof FileSystemPackage) {
+          FileSystemPackage pkg = (FileSystemPackage) f.node;
+          for (FileSystemEntry c : children) {
+            if (c instanceof FileSystemRoot) pkg.publicChildren.add((FileSystemRoot) c);
+          }
+        }
+        continue;
+      }
+      FileSystemEntry child = readNode();
+      child.parent = f.node;
+      children[f.next++] = child;
+      numNodes++;
+      stack.push(new Frame(child));
+    }
+    if (buffer.getInt() != numNodes) throw new IOException("Snapshot is corrupted");
+    return (FileSystemSuperRoot) root;
+  }
+
+  /**
+   * Maps the snapshot into memory and rebuilds the tree from it.
+   * @return the tree or null if there is no usable snapshot
+   */
+  public static FileSystemSuperRoot read(File file) {
+    if (!file.isFile()) return null;
+    long start = System.currentTimeMillis();
+    try {
+      FileInputStream is = new FileInputStream(file);
+      try {
+        FileChannel channel = is.getChannel();
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        FileSystemSuperRoot root = new FileSystemSnapshot(buffer).readTree();
+        Log.d("diskusage", "snapshot loaded in "
+            + (System.currentTimeMillis() - start) + " ms");
+        return root;
+      } finally {
+        is.close();
+      }
+    } catch (IOException|RuntimeException e) {
+      // Broken snapshot, e.g. a bad length or kind in it.
+      Log.e("diskusage", "failed to load snapshot", e);
+      file.delete();
+      return null;
+    }
+  }
+}
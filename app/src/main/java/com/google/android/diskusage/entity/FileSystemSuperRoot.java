@@ -25,6 +25,12 @@ package com.google.android.diskusage.entity;
  */
 public class FileSystemSuperRoot extends FileSystemSpecial {
   final int blockSize;
+  /** Wall clock time the scan of this tree started at, 0 if unknown. */
+  public long scanStartTime;
+  /** Start time of the last full scan, later rescans were incremental. */
+  public long fullScanStartTime;
+  /** Some directories are not scanned yet, see ProgressiveScanner. */
+  public boolean partial;
 
   public FileSystemSuperRoot(int blockSize) {
     super(null, 0, blockSize);
@@ -37,7 +43,11 @@ public class FileSystemSuperRoot extends FileSystemSpecial {
 
   @Override
   public FileSystemEntry create() {
-    return new FileSystemSuperRoot(this.blockSize);
+    FileSystemSuperRoot copy = new FileSystemSuperRoot(this.blockSize);
+    copy.scanStartTime = this.scanStartTime;
+    copy.fullScanStartTime = this.fullScanStartTime;
+    copy.partial = this.partial;
+    return copy;
   }
 
   @Override
@@ -0,0 +1,54 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package com.google.android.diskusage.entity;
+
+/**
+ * Directory below the depth limit of the scan, only its total size is
+ * known. It is scanned when the user zooms into it.
+ */
+public class FileSystemUnscanned extends FileSystemFile {
+  private long estimatedBlocks;
+
+  private FileSystemUnscanned(FileSystemEntry parent, String name) {
+    super(parent, name);
+  }
+
+  public static FileSystemEntry makeNode(
+      FileSystemEntry parent, String name) {
+    return new FileSystemUnscanned(parent, name);
+  }
+
+  /**
+   * Expected size, to scan the largest directories first.
+   */
+  public long getEstimatedBlocks() {
+    return estimatedBlocks;
+  }
+
+  public void setEstimatedBlocks(long estimatedBlocks) {
+    this.estimatedBlocks = estimatedBlocks;
+  }
+
+  @Override
+  public FileSystemEntry create() {
+    return new FileSystemUnscanned(null, getName());
+  }
+}
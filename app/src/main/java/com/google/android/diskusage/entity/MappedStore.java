@@ -0,0 +1,104 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage.entity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Memory mapped files in cache dir for columns of {@link CompactTree}.
+ * Pages of a file are loaded only when the entries in them are looked at,
+ * and the kernel can drop them again, so the trees take no heap.
+ * Files are deleted right after they are mapped, the space is freed when
+ * the mappings are garbage collected, or by {@link #release()}.
+ */
+public class MappedStore {
+  private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private final File dir;
+  private ByteBuffer segment;
+  private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+  private long mappedSize;
+
+  public MappedStore(File dir) {
+    this.dir = dir;
+  }
+
+  private void mapSegment(int minSize) throws IOException {
+    File file = File.createTempFile("tree", null, dir);
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "rw");
+      int segmentSize = Math.max(SEGMENT_SIZE, minSize);
+      // The mapping stays valid after the file is closed and deleted.
+      segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      segments.add(segment);
+      mappedSize += segmentSize;
+    } finally {
+      if (raf != null) raf.close();
+      file.delete();
+    }
+  }
+
+  /**
+   * Moves the tree into the file.
+   * @return tree reading the columns from the file
+   */
+  public CompactTree map(CompactTree tree) throws IOException {
+    int len = (tree.getMappedSize() + 7) & ~7;
+    if (segment == null || segment.remaining() < len) {
+      mapSegment(len);
+    }
+    ByteBuffer buffer = segment.slice();
+    buffer.limit(len);
+    segment.position(segment.position() + len);
+    return tree.mapTo(buffer);
+  }
+
+  /**
+   * Size of the files, only pages in use take memory.
+   */
+  public long getMappedSize() {
+    return mappedSize;
+  }
+
+  /**
+   * Unmaps the files right away. Trees mapped by this store must not be
+   * used after it, their pages are gone.
+   */
+  public void release() {
+    for (ByteBuffer s : segments) {
+      try {
+        // Android only, elsewhere it is left to garbage collector.
+        Class.forName("java.nio.NioUtils")
+            .getMethod("freeDirectBuffer", ByteBuffer.class).invoke(null, s);
+      } catch (Exception e) {
+        break;
+      }
+    }
+    segments.clear();
+    segment = null;
+    mappedSize = 0;
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * DiskUsage - displays sdcard usage on android.
+ * Copyright (C) 2008-2011 Ivan Volosyuk
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.google.android.diskusage.entity;
+
+/**
+ * Append only storage of UTF-8 names of scanned entries. Names are decoded
+ * into Strings only when they are drawn, searched or compared, most of
+ * them never are.
+ */
+public class NameArena {
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private byte[] chunk = new byte[CHUNK_SIZE];
+  private int used;
+  private long size;
+
+  /**
+   * Makes file entry with the name copied from the buffer.
+   */
+  public FileSystemEntry makeNode(FileSystemEntry parent,
+      byte[] buffer, int offset, int len) {
+    if (len > FileSystemArenaEntry.MAX_NAME_LENGTH) {
+      // Not a name of the file system, keep it as is.
+      return FileSystemFile.makeNode(parent,
+          new String(buffer, offset, len, FileSystemArenaEntry.UTF8));
+    }
+    if (used + len > CHUNK_SIZE) {
+      chunk = new byte[CHUNK_SIZE];
+      used = 0;
+    }
+    System.arraycopy(buffer, offset, chunk, used, len);
+    FileSystemEntry e = new FileSystemArenaEntry(parent, chunk, used, len);
+    used += len;
+    size += len;
+    return e;
+  }
+
+  /**
+   * Heap taken by the names, not counting the entries.
+   */
+  public long getSize() {
+    return size;
+  }
+}
@@ -29,7 +29,7 @@ public class DrawingCache {
   
   public void drawText(RenderingThread rt, float x0, float y0, int elementWidth) {
     if (textPixels == null) {
-      textPixels = new TextPixels(entry.name);
+      textPixels = new TextPixels(entry.getName());
     }
     textPixels.draw(rt, x0, y0, elementWidth);
   }
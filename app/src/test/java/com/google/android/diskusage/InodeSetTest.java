@@ -0,0 +1,41 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InodeSetTest {
+  @Test
+  public void addsInodeOnce() {
+    InodeSet set = new InodeSet();
+    assertTrue(set.add(1, 100));
+    assertFalse(set.add(1, 100));
+  }
+
+  @Test
+  public void sameInodeOnOtherDeviceIsAnotherFile() {
+    InodeSet set = new InodeSet();
+    assertTrue(set.add(1, 100));
+    assertTrue(set.add(2, 100));
+    assertFalse(set.add(2, 100));
+  }
+
+  @Test
+  public void zeroInodeIsNeverKept() {
+    InodeSet set = new InodeSet();
+    assertTrue(set.add(1, 0));
+    assertTrue(set.add(1, 0));
+  }
+
+  @Test
+  public void keepsInodesWhenGrowing() {
+    InodeSet set = new InodeSet();
+    for (long ino = 1; ino <= 10000; ino++) {
+      assertTrue(set.add(ino % 3, ino * 4096));
+    }
+    for (long ino = 1; ino <= 10000; ino++) {
+      assertFalse(set.add(ino % 3, ino * 4096));
+    }
+  }
+}
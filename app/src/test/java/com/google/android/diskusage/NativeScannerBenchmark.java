@@ -0,0 +1,113 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.android.diskusage.NativeScannerTest.Output;
+import com.google.android.diskusage.entity.FileSystemEntry;
+
+/**
+ * Decodes the same tree in the text and in the binary protocol with
+ * NativeScanner. Runs only with DISKUSAGE_BENCH set. The streams are
+ * recorded from the scanner if DISKUSAGE_BENCH_STREAMS names a directory
+ * with the output of "scan <dir> 1" in text.out and of "scan <dir> 2" in
+ * binary.out, or else written in memory for a synthetic tree.
+ */
+public class NativeScannerBenchmark {
+  private static final int BLOCK_SIZE = 4096;
+  private static final int DIRS = 500;
+  private static final int FILES = 200;
+  private static final int WARMUP = 5;
+  private static final int RUNS = 10;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] synthetic(int protocol) {
+    Output out = new Output(protocol).entry('D', "/data", 8, 4096);
+    for (int d = 0; d < DIRS; d++) {
+      out.entry('D', "dir" + d, 8, 4096);
+      for (int f = 0; f < FILES; f++) {
+        out.entry('F', "IMG_" + (20000000 + d * FILES + f) + ".jpg",
+            f * 97 % 40000, f * 97 % 40000 * 512 - f % 512);
+      }
+      out.end();
+    }
+    return out.end().toByteArray();
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    InputStream is = new FileInputStream(file);
+    try {
+      int pos = 0;
+      while (pos < data.length) {
+        int n = is.read(data, pos, data.length - pos);
+        if (n < 0) throw new IOException("short read of " + file);
+        pos += n;
+      }
+    } finally {
+      is.close();
+    }
+    return data;
+  }
+
+  static long count(FileSystemEntry entry) {
+    long n = 1;
+    if (entry.children != null) {
+      for (FileSystemEntry c : entry.children) n += count(c);
+    }
+    return n;
+  }
+
+  /** @return time of decoding the stream into a tree, in ns */
+  private long decode(byte[] stream, long[] entries) throws IOException {
+    NativeScanner scanner = new NativeScanner(
+        null, folder.getRoot(), BLOCK_SIZE, 0, 1 << 28, 1);
+    long start = System.nanoTime();
+    FileSystemEntry root = scanner.scan(new ByteArrayInputStream(stream));
+    long time = System.nanoTime() - start;
+    entries[0] = count(root);
+    return time;
+  }
+
+  private static void report(String name, byte[] stream, long entries,
+      long best) {
+    System.out.printf("%-6s %9d bytes, %7d entries, best of %d: %5d ms,"
+        + " %6d ns/entry%n", name, stream.length, entries, RUNS,
+        best / 1000000, best / Math.max(entries, 1));
+  }
+
+  @Test
+  public void decoders() throws IOException {
+    assumeTrue(System.getenv("DISKUSAGE_BENCH") != null);
+    String recorded = System.getenv("DISKUSAGE_BENCH_STREAMS");
+    byte[] text = recorded != null
+        ? read(new File(recorded, "text.out")) : synthetic(1);
+    byte[] binary = recorded != null
+        ? read(new File(recorded, "binary.out")) : synthetic(2);
+    long[] textEntries = new long[1];
+    long[] binaryEntries = new long[1];
+    long textBest = Long.MAX_VALUE;
+    long binaryBest = Long.MAX_VALUE;
+    // Alternated, so that warmup and noise hit both alike.
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long textTime = decode(text, textEntries);
+      long binaryTime = decode(binary, binaryEntries);
+      if (run < WARMUP) continue;
+      textBest = Math.min(textBest, textTime);
+      binaryBest = Math.min(binaryBest, binaryTime);
+    }
+    report("text", text, textEntries[0], textBest);
+    report("binary", binary, binaryEntries[0], binaryBest);
+  }
+}
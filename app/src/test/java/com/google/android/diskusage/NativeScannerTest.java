@@ -0,0 +1,196 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.android.diskusage.entity.FileSystemEntry;
+
+public class NativeScannerTest {
+  private static final int BLOCK_SIZE = 4096;
+  // Sizes in 512 byte blocks as the scanner writes them, one of them
+  // needs a long varint.
+  private static final long ROOT_BLOCKS = 8;
+  private static final long FILE_BLOCKS = 16;
+  private static final long BIG_BLOCKS = 1L << 35;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Writes scanner output as jni/scan.c does. */
+  static class Output {
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    final boolean binary;
+
+    Output(int protocol) {
+      binary = protocol != 1;
+      os.write(0);
+      if (binary) {
+        os.write('V');
+        os.write(protocol);
+      }
+    }
+
+    void varint(long value) {
+      while ((value & ~0x7fL) != 0) {
+        os.write((int) (value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      os.write((int) value);
+    }
+
+    Output entry(char type, String name, long blocks, long bytes) {
+      os.write(type);
+      byte[] data = name.getBytes();
+      if (binary) {
+        varint(data.length);
+        os.write(data, 0, data.length);
+        varint(blocks);
+        varint(bytes);
+      } else {
+        os.write(data, 0, data.length);
+        os.write(0);
+        for (long value : new long[] { blocks, bytes }) {
+          byte[] number = Long.toString(value).getBytes();
+          os.write(number, 0, number.length);
+          os.write(0);
+        }
+      }
+      return this;
+    }
+
+    Output end() {
+      os.write('Z');
+      return this;
+    }
+
+    byte[] toByteArray() {
+      return os.toByteArray();
+    }
+  }
+
+  /** Stream which returns at most chunk bytes per read. */
+  private static InputStream chunked(byte[] data, final int chunk) {
+    return new ByteArrayInputStream(data) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, chunk));
+      }
+    };
+  }
+
+  private FileSystemEntry scan(InputStream is) throws IOException {
+    // No allocated blocks, nothing is folded into "<N files>".
+    return new NativeScanner(null, folder.getRoot(), BLOCK_SIZE, 0, 1 << 20, 1)
+        .scan(is);
+  }
+
+  private static Output rootEntry(Output out) {
+    return out.entry('D', "/data", ROOT_BLOCKS, 4096);
+  }
+
+  private static Output subtree(Output out) {
+    return out.entry('D', "sub", ROOT_BLOCKS, 4096)
+        .entry('F', "big", BIG_BLOCKS, BIG_BLOCKS * 512)
+        .end();
+  }
+
+  private static byte[] tree(int protocol) {
+    Output out = rootEntry(new Output(protocol))
+        .entry('F', "a", FILE_BLOCKS, 8000);
+    if (protocol != 1) out.entry('H', "link to a", FILE_BLOCKS, 8000);
+    return subtree(out).end().toByteArray();
+  }
+
+  private static void assertTree(FileSystemEntry root) {
+    assertEquals("/data", root.getName());
+    assertEquals(2, root.children.length);
+    FileSystemEntry sub = root.children[0];
+    FileSystemEntry a = root.children[1];
+    assertEquals("sub", sub.getName());
+    assertEquals("a", a.getName());
+    assertNull(a.children);
+    assertEquals(FILE_BLOCKS / 8, a.getSizeInBlocks());
+    assertEquals("big", sub.children[0].getName());
+    assertEquals(BIG_BLOCKS / 8, sub.children[0].getSizeInBlocks());
+    // Link to a is counted once.
+    assertEquals((ROOT_BLOCKS + FILE_BLOCKS + ROOT_BLOCKS + BIG_BLOCKS) / 8,
+        root.getSizeInBlocks());
+  }
+
+  @Test
+  public void readsBinaryProtocol() throws IOException {
+    assertTree(scan(new ByteArrayInputStream(tree(2))));
+  }
+
+  @Test
+  public void readsBinaryProtocolSplitAcrossReads() throws IOException {
+    // Every varint and name crosses a read, the decoder takes the per
+    // byte path.
+    assertTree(scan(chunked(tree(2), 1)));
+  }
+
+  @Test
+  public void readsTextProtocolOfOlderBinaries() throws IOException {
+    assertTree(scan(chunked(tree(1), 3)));
+  }
+
+  @Test
+  public void readsShardedProtocol() throws IOException {
+    Output shard0 = rootEntry(new Output(2)).entry('F', "a", FILE_BLOCKS, 8000);
+    Output shard1 = subtree(new Output(2));
+    Output out = new Output(3);
+    frame(out, 0, shard0.toByteArray(), 3);
+    // Subtree is spliced in before the rest of the root.
+    out.varint(0);
+    out.varint(0);
+    out.varint(1);
+    frame(out, 1, shard1.toByteArray(), 3);
+    out.varint(1);
+    out.varint(0);
+    out.varint(0);
+    frame(out, 0, new byte[] { 'Z' }, 0);
+    out.varint(0);
+    out.varint(0);
+    out.varint(0);
+    FileSystemEntry root = scan(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals("/data", root.getName());
+    assertEquals("sub", root.children[0].getName());
+    assertEquals((ROOT_BLOCKS + FILE_BLOCKS + ROOT_BLOCKS + BIG_BLOCKS) / 8,
+        root.getSizeInBlocks());
+  }
+
+  /** Writes the data without the header of the protocol it was made with. */
+  private static void frame(Output out, int shard, byte[] data, int skip) {
+    out.varint(shard);
+    out.varint(data.length - skip);
+    out.os.write(data, skip, data.length - skip);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void rejectsTooLongVarint() throws IOException {
+    Output out = new Output(2);
+    out.os.write('D');
+    for (int i = 0; i < 11; i++) out.os.write(0x80);
+    scan(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void failsAtEndOfData() throws IOException {
+    byte[] data = tree(2);
+    scan(new ByteArrayInputStream(data, 0, data.length - 1));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void rejectsUnknownProtocol() throws IOException {
+    scan(new ByteArrayInputStream(new byte[] { 0, 'V', 9 }));
+  }
+}
@@ -0,0 +1,73 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.android.diskusage.entity.FileSystemEntry;
+
+/**
+ * Throughput of Scanner and of ParallelScanner as the number of threads
+ * grows. Runs only with DISKUSAGE_BENCH set, on the tree named by
+ * DISKUSAGE_BENCH_TREE or else on a synthetic one.
+ */
+public class ParallelScannerBenchmark {
+  private static final int DIRS = 200;
+  private static final int FILES = 100;
+  private static final int RUNS = 5;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File makeTree() throws IOException {
+    File dir = folder.newFolder("tree");
+    for (int d = 0; d < DIRS; d++) {
+      for (int f = 0; f < FILES; f++) {
+        ScannerTest.write(
+            new File(dir, "d" + d + "/sub" + (f % 4) + "/f" + f), f);
+      }
+    }
+    return dir;
+  }
+
+  /** @return best time of a scan of the tree, in ns */
+  private static long best(File tree, int numThreads, long[] entries)
+      throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++) {
+      Scanner scanner = numThreads > 1
+          ? ScannerTest.makeParallelScanner(numThreads)
+          : ScannerTest.makeScanner();
+      long start = System.nanoTime();
+      FileSystemEntry root = scanner.scan(ScannerTest.root(tree));
+      best = Math.min(best, System.nanoTime() - start);
+      entries[0] = NativeScannerBenchmark.count(root);
+    }
+    return best;
+  }
+
+  @Test
+  public void threads() throws IOException {
+    assumeTrue(System.getenv("DISKUSAGE_BENCH") != null);
+    String path = System.getenv("DISKUSAGE_BENCH_TREE");
+    File tree = path != null ? new File(path) : makeTree();
+    long[] entries = new long[1];
+    // warmup
+    best(tree, 1, entries);
+    best(tree, 4, entries);
+    System.out.printf("%d processors%n",
+        Runtime.getRuntime().availableProcessors());
+    for (int numThreads : new int[] { 1, 2, 4, 8 }) {
+      long time = best(tree, numThreads, entries);
+      System.out.printf("%-8s %d threads: %7d entries, best of %d: %5d ms,"
+          + " %7d entries/s%n", numThreads > 1 ? "parallel" : "serial",
+          numThreads, entries[0], RUNS, time / 1000000,
+          entries[0] * 1000000000L / Math.max(time, 1));
+    }
+  }
+}
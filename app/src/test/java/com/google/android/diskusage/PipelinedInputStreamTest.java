@@ -0,0 +1,77 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.google.android.diskusage.datasource.fast.NativeScannerStream;
+
+public class PipelinedInputStreamTest {
+  private static Thread findReader() {
+    Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+    int n = Thread.enumerate(threads);
+    for (int i = 0; i < n; i++) {
+      if (threads[i].getName().equals("diskusage-reader")) return threads[i];
+    }
+    return null;
+  }
+
+  @Test
+  public void passesDataThrough() throws IOException {
+    byte[] data = new byte[1000000];
+    for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+    InputStream is = new PipelinedInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[7000];
+    int len;
+    while ((len = is.read(buffer, 0, buffer.length)) > 0) {
+      os.write(buffer, 0, len);
+    }
+    assertEquals(-1, is.read());
+    is.close();
+    assertArrayEquals(data, os.toByteArray());
+  }
+
+  @Test(timeout = 10000)
+  public void closeStopsReaderWaitingForFreeChunk() throws Exception {
+    // Endless data which nobody reads, the ring fills up.
+    InputStream source = new InputStream() {
+      @Override
+      public int read() {
+        return 0;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        return len;
+      }
+    };
+    PipelinedInputStream is = new PipelinedInputStream(source);
+    is.read();
+    Thread.sleep(100);
+    is.close();
+    Thread reader = findReader();
+    assertFalse(reader != null && reader.isAlive());
+  }
+
+  @Test(timeout = 10000)
+  public void closeKillsScannerWhichSendsNothing() throws Exception {
+    // Scanner stuck in a slow stat, the reader waits in read() on the pipe.
+    Process process = new ProcessBuilder("sh", "-c", "exec sleep 60").start();
+    PipelinedInputStream is = new PipelinedInputStream(
+        new NativeScannerStream(process.getInputStream(), process, null));
+    Thread.sleep(100);
+    is.close();
+    Thread reader = findReader();
+    assertFalse(reader != null && reader.isAlive());
+    // exits with a signal, throws if it still runs
+    process.exitValue();
+  }
+}
@@ -0,0 +1,89 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.system.ErrnoException;
+
+import com.google.android.diskusage.Scanner.FileStat;
+
+/**
+ * Time per entry of the one lstat on the parent relative path against
+ * what the scanner did before: stat of the canonical path, which resolves
+ * every component, and another stat for isFile(). The files are at depths
+ * of 5 to 20. Runs only with DISKUSAGE_BENCH set.
+ */
+public class ScannerBenchmark {
+  private static final int FILES = 2000;
+  private static final int RUNS = 10;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Scanner makeScanner(final boolean canonical) {
+    return new Scanner(30, 4096, 0, 1 << 24) {
+      @Override
+      FileStat lstat(String path) throws ErrnoException {
+        if (!canonical) return ScannerTest.stat(path, false);
+        File file = new File(path);
+        String canonicalPath;
+        try {
+          canonicalPath = file.getCanonicalPath();
+        } catch (IOException e) {
+          throw new ErrnoException("stat", 5 /* EIO */);
+        }
+        file.isFile();
+        return ScannerTest.stat(canonicalPath, true);
+      }
+
+      @Override
+      FileStat stat(String path) throws ErrnoException {
+        return ScannerTest.stat(path, true);
+      }
+    };
+  }
+
+  /** @return tree with FILES files at the given depth below it */
+  private File makeTree(int depth) throws IOException {
+    File root = folder.newFolder("depth" + depth);
+    File dir = root;
+    for (int i = 1; i < depth; i++) dir = new File(dir, "level" + i);
+    for (int f = 0; f < FILES; f++) {
+      ScannerTest.write(new File(dir, "f" + f), 0);
+    }
+    return root;
+  }
+
+  /** @return best time of a scan of the tree per entry, in ns */
+  private static long best(File tree, boolean canonical) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      makeScanner(canonical).scan(ScannerTest.root(tree));
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / FILES;
+  }
+
+  @Test
+  public void depths() throws IOException {
+    assumeTrue(System.getenv("DISKUSAGE_BENCH") != null);
+    // warmup
+    File shallow = makeTree(2);
+    best(shallow, true);
+    best(shallow, false);
+    for (int depth : new int[] { 5, 10, 15, 20 }) {
+      File tree = makeTree(depth);
+      long before = best(tree, true);
+      long after = best(tree, false);
+      System.out.printf("depth %2d: canonical stat %6d ns/entry,"
+          + " lstat %6d ns/entry%n", depth, before, after);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.system.ErrnoException;
+
+import com.google.android.diskusage.Scanner.FileStat;
+import com.google.android.diskusage.datasource.LegacyFile;
+import com.google.android.diskusage.entity.FileSystemEntry;
+
+public class ScannerTest {
+  private static final int BLOCK_SIZE = 4096;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** LegacyFile over java.io.File, as the one of DataSource. */
+  private static class TestFile implements LegacyFile {
+    private final File file;
+
+    TestFile(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public String getName() {
+      return file.getName();
+    }
+
+    @Override
+    public String getCannonicalPath() throws IOException {
+      return file.getCanonicalPath();
+    }
+
+    @Override
+    public String getPath() {
+      return file.getPath();
+    }
+
+    @Override
+    public boolean isLink() {
+      return Files.isSymbolicLink(file.toPath());
+    }
+
+    @Override
+    public boolean isFile() {
+      return file.isFile();
+    }
+
+    @Override
+    public long length() {
+      return file.length();
+    }
+
+    @Override
+    public LegacyFile[] listFiles() {
+      String[] names = file.list();
+      if (names == null) return null;
+      LegacyFile[] res = new LegacyFile[names.length];
+      for (int i = 0; i < names.length; i++) res[i] = getChild(names[i]);
+      return res;
+    }
+
+    @Override
+    public String[] list() {
+      return file.list();
+    }
+
+    @Override
+    public LegacyFile getChild(String childName) {
+      return new TestFile(new File(file, childName));
+    }
+  }
+
+  /**
+   * Stat through java.nio instead of android.system. It has no st_blocks,
+   * files take whole blocks of their size.
+   */
+  static FileStat stat(String path, boolean followLinks) throws ErrnoException {
+    Map<String, Object> attrs;
+    try {
+      attrs = Files.readAttributes(new File(path).toPath(), "unix:*",
+          followLinks ? new LinkOption[0] : new LinkOption[] { LinkOption.NOFOLLOW_LINKS });
+    } catch (NoSuchFileException e) {
+      throw new ErrnoException("lstat", 2 /* ENOENT */);
+    } catch (IOException e) {
+      throw new ErrnoException("lstat", 5 /* EIO */);
+    }
+    FileStat stat = new FileStat();
+    stat.dev = (Long) attrs.get("dev");
+    stat.ino = (Long) attrs.get("ino");
+    stat.nlink = (Integer) attrs.get("nlink");
+    stat.size = (Long) attrs.get("size");
+    stat.blocks = (stat.size + BLOCK_SIZE - 1) / BLOCK_SIZE * (BLOCK_SIZE / 512);
+    stat.changeTime = Math.max(((FileTime) attrs.get("lastModifiedTime")).toMillis(),
+        ((FileTime) attrs.get("ctime")).toMillis()) / 1000;
+    stat.isDirectory = (Boolean) attrs.get("isDirectory");
+    stat.isLink = (Boolean) attrs.get("isSymbolicLink");
+    return stat;
+  }
+
+  static Scanner makeScanner() {
+    // No allocated blocks, nothing is folded into "<N files>".
+    return new Scanner(20, BLOCK_SIZE, 0, 1 << 20) {
+      @Override
+      FileStat lstat(String path) throws ErrnoException {
+        return ScannerTest.stat(path, false);
+      }
+
+      @Override
+      FileStat stat(String path) throws ErrnoException {
+        return ScannerTest.stat(path, true);
+      }
+    };
+  }
+
+  static Scanner makeParallelScanner(int numThreads) {
+    return new ParallelScanner(20, BLOCK_SIZE, 0, 1 << 20, numThreads) {
+      @Override
+      FileStat lstat(String path) throws ErrnoException {
+        return ScannerTest.stat(path, false);
+      }
+
+      @Override
+      FileStat stat(String path) throws ErrnoException {
+        return ScannerTest.stat(path, true);
+      }
+    };
+  }
+
+  static LegacyFile root(File dir) {
+    return new TestFile(dir);
+  }
+
+  static void write(File file, int size) throws IOException {
+    file.getParentFile().mkdirs();
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(new byte[size]);
+    os.close();
+  }
+
+  static FileSystemEntry child(FileSystemEntry dir, String name) {
+    for (FileSystemEntry c : dir.children) {
+      if (c.getName().equals(name)) return c;
+    }
+    return null;
+  }
+
+  @Test
+  public void rescanStatsFilesOfUnchangedDirectories() throws IOException {
+    File dir = folder.newFolder("tree");
+    write(new File(dir, "docs/a"), 100);
+    write(new File(dir, "docs/b"), 100);
+    FileSystemEntry first = makeScanner().scan(root(dir));
+
+    // Rewritten in place, times of the directory stay as they were.
+    write(new File(dir, "docs/a"), 3 * BLOCK_SIZE);
+    // Directories look unchanged since a scan which started later.
+    Scanner scanner = makeScanner();
+    scanner.setPrevious(first, System.currentTimeMillis() + 60000);
+    FileSystemEntry second = scanner.scan(root(dir));
+
+    FileSystemEntry docs = child(second, "docs");
+    assertEquals(3, child(docs, "a").getSizeInBlocks());
+    assertEquals(1, child(docs, "b").getSizeInBlocks());
+  }
+
+  @Test
+  public void rescanTakesNamesOfUnchangedDirectories() throws IOException {
+    File dir = folder.newFolder("tree");
+    write(new File(dir, "docs/a"), 100);
+    FileSystemEntry first = makeScanner().scan(root(dir));
+
+    write(new File(dir, "docs/new"), 100);
+    Scanner scanner = makeScanner();
+    scanner.setPrevious(first, System.currentTimeMillis() + 60000);
+    FileSystemEntry docs = child(scanner.scan(root(dir)), "docs");
+    // Not listed, as the directory looks unchanged.
+    assertNull(child(docs, "new"));
+    assertEquals(1, docs.children.length);
+  }
+
+  @Test
+  public void rescanListsChangedDirectories() throws IOException {
+    File dir = folder.newFolder("tree");
+    write(new File(dir, "docs/a"), 100);
+    long scanStart = System.currentTimeMillis() - 60000;
+    FileSystemEntry first = makeScanner().scan(root(dir));
+
+    write(new File(dir, "docs/new"), 100);
+    Scanner scanner = makeScanner();
+    scanner.setPrevious(first, scanStart);
+    FileSystemEntry docs = child(scanner.scan(root(dir)), "docs");
+    assertEquals(2, docs.children.length);
+  }
+
+  private static void assertSameTree(FileSystemEntry expected, FileSystemEntry actual) {
+    assertEquals(expected.getClass(), actual.getClass());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.encodedSize, actual.encodedSize);
+    if (expected.children == null) {
+      assertNull(actual.children);
+      return;
+    }
+    assertEquals(expected.children.length, actual.children.length);
+    for (int i = 0; i < expected.children.length; i++) {
+      assertSameTree(expected.children[i], actual.children[i]);
+    }
+  }
+
+  @Test
+  public void parallelScanCountsSameHardlinks() throws IOException {
+    File dir = folder.newFolder("tree");
+    File shared = folder.newFile("shared");
+    write(shared, 2 * BLOCK_SIZE);
+    for (int i = 0; i < 20; i++) {
+      File sub = new File(dir, "dir" + i + "/sub");
+      sub.mkdirs();
+      Files.createLink(new File(sub, "link").toPath(), shared.toPath());
+      write(new File(sub, "own"), (i + 1) * BLOCK_SIZE);
+    }
+    // Only links inside the tree are left, any of them may be counted.
+    shared.delete();
+    FileSystemEntry serial = makeScanner().scan(root(dir));
+    for (int i = 0; i < 5; i++) {
+      assertSameTree(serial, makeParallelScanner(4).scan(root(dir)));
+    }
+    long linked = 0;
+    for (FileSystemEntry c : serial.children) {
+      linked += child(child(c, "sub"), "link").getSizeInBlocks();
+    }
+    assertEquals(2, linked);
+  }
+}
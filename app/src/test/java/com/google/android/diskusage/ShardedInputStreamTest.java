@@ -0,0 +1,121 @@
+package com.google.android.diskusage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedInputStreamTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Writes frames as jni/scan.c does: shard id, length, data or child. */
+  private static class Frames {
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+    private void varint(int value) {
+      while ((value & ~0x7f) != 0) {
+        os.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      os.write(value);
+    }
+
+    Frames data(int shard, byte[] data) {
+      varint(shard);
+      varint(data.length);
+      os.write(data, 0, data.length);
+      return this;
+    }
+
+    Frames data(int shard, String data) {
+      return data(shard, data.getBytes());
+    }
+
+    Frames child(int shard, int child) {
+      varint(shard);
+      varint(0);
+      varint(child);
+      return this;
+    }
+
+    Frames end(int shard) {
+      return child(shard, 0);
+    }
+
+    InputStream stream(File spillDir) {
+      return new ShardedInputStream(new ByteArrayInputStream(os.toByteArray()), spillDir);
+    }
+  }
+
+  private static byte[] readAll(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int len;
+    while ((len = is.read(buffer, 0, buffer.length)) > 0) {
+      os.write(buffer, 0, len);
+    }
+    is.close();
+    return os.toByteArray();
+  }
+
+  @Test
+  public void joinsShardsInTreeOrder() throws IOException {
+    Frames frames = new Frames()
+        .data(2, "d")
+        .data(0, "a")
+        .data(1, "b")
+        .child(0, 1)
+        .data(0, "e")
+        .child(1, 2)
+        .end(2)
+        .data(1, "c")
+        .end(1)
+        .end(0);
+    assertEquals("abdce", new String(readAll(frames.stream(null))));
+  }
+
+  @Test
+  public void readsEmptyShard() throws IOException {
+    Frames frames = new Frames().data(0, "a").child(0, 1).end(1).data(0, "b").end(0);
+    assertEquals("ab", new String(readAll(frames.stream(null))));
+  }
+
+  @Test
+  public void spillsShardsOverHeapLimit() throws IOException {
+    // Shard 1 comes in before shard 0 gets to it, most of it goes to the
+    // file. Each frame has its own fill so that order is checked.
+    int frameSize = 512 * 1024;
+    int numFrames = ShardedInputStream.MAX_BUFFERED / frameSize * 2;
+    Frames frames = new Frames();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write('x');
+    for (int i = 0; i < numFrames; i++) {
+      byte[] data = new byte[frameSize];
+      Arrays.fill(data, (byte) i);
+      frames.data(1, data);
+      expected.write(data, 0, data.length);
+    }
+    frames.end(1).data(0, "x").child(0, 1).data(0, "y").end(0);
+    expected.write('y');
+
+    File spillDir = folder.newFolder();
+    assertArrayEquals(expected.toByteArray(), readAll(frames.stream(spillDir)));
+    // temporary file is gone with its descriptor
+    assertEquals(0, spillDir.list().length);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void failsOnTruncatedStream() throws IOException {
+    readAll(new Frames().data(0, "a").stream(null));
+  }
+}
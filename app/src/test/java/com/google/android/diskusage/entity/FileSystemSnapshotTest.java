@@ -0,0 +1,174 @@
+package com.google.android.diskusage.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemSnapshotTest {
+  private static final int BLOCK_SIZE = 4096;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static FileSystemEntry file(String name, long bytes) {
+    return FileSystemFile.makeNode(null, name).initSizeInBytesAndBlocks(
+        bytes, (bytes + BLOCK_SIZE - 1) / BLOCK_SIZE, BLOCK_SIZE);
+  }
+
+  private static FileSystemEntry dir(String name, FileSystemEntry... children) {
+    FileSystemEntry dir = FileSystemEntry.makeNode(null, name);
+    for (FileSystemEntry c : children) c.parent = dir;
+    return dir.setChildren(children, BLOCK_SIZE);
+  }
+
+  private static FileSystemSuperRoot makeTree() {
+    FileSystemEntry small = FileSystemEntrySmall.makeNode(null, "<3 files>", 3)
+        .setChildren(null, BLOCK_SIZE);
+    small.setSizeInBlocks(3, BLOCK_SIZE);
+    FileSystemUnscanned unscanned =
+        (FileSystemUnscanned) FileSystemUnscanned.makeNode(null, "deep");
+    unscanned.setSizeInBlocks(100, BLOCK_SIZE);
+    FileSystemEntry storage = FileSystemRoot.makeNode("Storage", "/sdcard", true)
+        .setChildren(new FileSystemEntry[] {
+            dir("DCIM", file("IMG_0001.jpg", 3000000), file("\u0444\u043e\u0442\u043e.jpg", 100000)),
+            dir("empty"),
+            unscanned,
+            small,
+            new FileSystemFreeSpace("Free space", 1L << 30, BLOCK_SIZE),
+        }, BLOCK_SIZE);
+    FileSystemSuperRoot root = new FileSystemSuperRoot(BLOCK_SIZE);
+    root.setChildren(new FileSystemEntry[] { storage }, BLOCK_SIZE);
+    root.scanStartTime = 2000;
+    root.fullScanStartTime = 1000;
+    return root;
+  }
+
+  private static void assertSameTree(FileSystemEntry expected, FileSystemEntry actual) {
+    assertEquals(expected.getClass(), actual.getClass());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.encodedSize, actual.encodedSize);
+    if (expected.children == null) {
+      assertNull(actual.children);
+      return;
+    }
+    assertEquals(expected.children.length, actual.children.length);
+    for (int i = 0; i < expected.children.length; i++) {
+      assertTrue(actual.children[i].parent == actual);
+      assertSameTree(expected.children[i], actual.children[i]);
+    }
+  }
+
+  @Test
+  public void readsTreeAsWritten() throws IOException {
+    FileSystemSuperRoot root = makeTree();
+    File file = new File(folder.getRoot(), "snapshot");
+    FileSystemSnapshot.write(root, file);
+    FileSystemSuperRoot read = FileSystemSnapshot.read(file);
+
+    assertSameTree(root, read);
+    assertEquals(BLOCK_SIZE, read.getDisplayBlockSize());
+    assertEquals(2000, read.scanStartTime);
+    assertEquals(1000, read.fullScanStartTime);
+    assertEquals("/sdcard", ((FileSystemRoot) read.children[0]).rootPath);
+  }
+
+  @Test
+  public void dropsBrokenSnapshot() throws IOException {
+    File file = new File(folder.getRoot(), "snapshot");
+    FileSystemSnapshot.write(makeTree(), file);
+    // cut in the middle
+    byte[] data = new byte[(int) file.length() / 2];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    in.readFully(data);
+    in.close();
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(data);
+    os.close();
+
+    assertNull(FileSystemSnapshot.read(file));
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void missingSnapshotIsNull() {
+    assertNull(FileSystemSnapshot.read(new File(folder.getRoot(), "none")));
+  }
+
+  private static final CompactTree.HiddenChildren NO_HIDDEN =
+      new CompactTree.HiddenChildren() {
+        @Override
+        public CompactTree get(FileSystemEntrySmall entry) {
+          return null;
+        }
+      };
+
+  /** "<N files>" entry whose files are mapped out of heap, as by SmallLists. */
+  private FileSystemEntrySmall spilledSmall() throws IOException {
+    CompactTree tree = CompactTree.pack(new FileSystemEntry[] {
+        file("a.txt", 100), dir("sub", file("b.txt", 20000)) }, NO_HIDDEN);
+    FileSystemEntrySmall small = FileSystemEntrySmall.makeNode(null, "<3 files>", 3);
+    small.setSpilled(new MappedStore(folder.getRoot()).map(tree));
+    small.setSizeInBlocks(6, BLOCK_SIZE);
+    return small;
+  }
+
+  private static void assertSameFiles(FileSystemEntrySmall expected,
+      FileSystemEntrySmall actual) {
+    assertTrue(actual.isSpilled());
+    expected.expand();
+    actual.expand();
+    assertEquals(expected.children.length, actual.children.length);
+    for (int i = 0; i < expected.children.length; i++) {
+      FileSystemEntry e = expected.children[i];
+      FileSystemEntry a = actual.children[i];
+      assertEquals(e.getName(), a.getName());
+      assertEquals(e.encodedSize, a.encodedSize);
+      assertEquals(e.getNumFiles(), a.getNumFiles());
+    }
+  }
+
+  @Test
+  public void keepsSpilledFiles() throws IOException {
+    FileSystemEntrySmall small = spilledSmall();
+    FileSystemEntrySmall packedSmall = spilledSmall();
+    FileSystemEntry packed = CompactTree.pack(new FileSystemEntry[] {
+        dir("packed", file("c.txt", 300), packedSmall) }, NO_HIDDEN)
+        .makeRootViews(null)[0];
+    // Expanded when it was written, the files are in the spilled tree.
+    small.expand();
+    FileSystemEntry storage = FileSystemRoot.makeNode("Storage", "/sdcard", true)
+        .setChildren(new FileSystemEntry[] { packed, small }, BLOCK_SIZE);
+    FileSystemSuperRoot root = new FileSystemSuperRoot(BLOCK_SIZE);
+    root.setChildren(new FileSystemEntry[] { storage }, BLOCK_SIZE);
+    File file = new File(folder.getRoot(), "snapshot");
+    FileSystemSnapshot.write(root, file);
+    FileSystemSuperRoot read = FileSystemSnapshot.read(file);
+
+    FileSystemEntry readStorage = read.children[0];
+    assertEquals(2, readStorage.children.length);
+    FileSystemEntrySmall readSmall = null;
+    FileSystemEntry readPacked = null;
+    for (FileSystemEntry c : readStorage.children) {
+      if (c instanceof FileSystemEntrySmall) readSmall = (FileSystemEntrySmall) c;
+      else readPacked = c;
+    }
+    assertNull(readSmall.children);
+    assertSameFiles(small, readSmall);
+
+    FileSystemEntrySmall readPackedSmall = null;
+    for (FileSystemEntry c : readPacked.getChildren()) {
+      if (c instanceof FileSystemEntrySmall) readPackedSmall = (FileSystemEntrySmall) c;
+    }
+    assertSameFiles(packedSmall, readPackedSmall);
+  }
+}
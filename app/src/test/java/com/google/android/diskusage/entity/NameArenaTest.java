@@ -0,0 +1,61 @@
+package com.google.android.diskusage.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class NameArenaTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static FileSystemEntry makeNode(NameArena arena, String name) {
+    // name in the middle of a larger buffer, as in the scanner's one
+    byte[] bytes = name.getBytes(UTF8);
+    byte[] buffer = new byte[bytes.length + 10];
+    System.arraycopy(bytes, 0, buffer, 5, bytes.length);
+    return arena.makeNode(null, buffer, 5, bytes.length);
+  }
+
+  @Test
+  public void decodesNames() {
+    NameArena arena = new NameArena();
+    assertEquals("IMG_0001.jpg", makeNode(arena, "IMG_0001.jpg").getName());
+    assertEquals("\u0444\u043e\u0442\u043e.jpg", makeNode(arena, "\u0444\u043e\u0442\u043e.jpg").getName());
+    assertEquals("", makeNode(arena, "").getName());
+  }
+
+  @Test
+  public void namesSurviveNewChunks() {
+    NameArena arena = new NameArena();
+    FileSystemEntry[] entries = new FileSystemEntry[5000];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = makeNode(arena, "file_with_a_long_name_" + i);
+    }
+    for (int i = 0; i < entries.length; i++) {
+      assertEquals("file_with_a_long_name_" + i, entries[i].getName());
+    }
+  }
+
+  @Test
+  public void countsBytesOfNames() {
+    NameArena arena = new NameArena();
+    makeNode(arena, "abc");
+    makeNode(arena, "\u0444\u043e\u0442\u043e");
+    assertEquals(3 + 8, arena.getSize());
+  }
+
+  @Test
+  public void keepsTooLongNamesAsStrings() {
+    NameArena arena = new NameArena();
+    char[] chars = new char[FileSystemArenaEntry.MAX_NAME_LENGTH + 1];
+    Arrays.fill(chars, 'a');
+    String name = new String(chars);
+    FileSystemEntry e = makeNode(arena, name);
+    assertFalse(e instanceof FileSystemArenaEntry);
+    assertEquals(name, e.getName());
+    assertEquals(0, arena.getSize());
+  }
+}
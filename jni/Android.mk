@@ -14,9 +14,22 @@
 #
 LOCAL_PATH := $(call my-dir)
 
+# Lollipop and later run position independent executables only. The non-PIE
+# scan for older devices is prebuilt, current NDKs cannot make it.
 include $(CLEAR_VARS)
 
-LOCAL_MODULE    := scan
+LOCAL_MODULE    := scan5
 LOCAL_SRC_FILES := scan.c
+LOCAL_CFLAGS    := -fPIE
+LOCAL_LDFLAGS   := -fPIE -pie
 
 include $(BUILD_EXECUTABLE)
+
+# In-process scanner for InProcessScannerStream, goes to jniLibs.
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := scanjni
+LOCAL_SRC_FILES := scan.c
+LOCAL_CFLAGS    := -DSCAN_JNI
+
+include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,6 @@
+# Built by the ndkBuild task of app/build.gradle, the executables are
+# packaged as assets, libscanjni.so goes to jniLibs.
+APP_ABI      := armeabi-v7a arm64-v8a x86 x86_64
+# Lowest level of current NDKs, which have the io_uring and statx headers.
+# Devices without PIE support keep the prebuilt non-PIE scan asset.
+APP_PLATFORM := android-21
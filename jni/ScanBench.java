@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.android.diskusage.datasource.fast.InProcessScannerStream;
+
+/**
+ * Compares the scanner binary started the way the app does it, with the
+ * in-process scanner, on the host: time to the first entry, total time
+ * and bytes of output per entry. Run by jni/bench.sh -j.
+ *
+ * Usage: java ScanBench <scan binary> <directory> [runs]
+ */
+public class ScanBench {
+  private static final int PROTOCOL = 2;
+
+  /** Minimal protocol 2 reader, counts entries and notes the first one. */
+  private static class Reader {
+    final InputStream is;
+    final byte[] buffer = new byte[65536];
+    int pos;
+    int len;
+    long bytes;
+    long entries;
+    long firstEntry;
+
+    Reader(InputStream is) {
+      this.is = is;
+    }
+
+    int get() throws IOException {
+      if (pos == len) {
+        len = is.read(buffer, 0, buffer.length);
+        if (len <= 0) throw new IOException("no more data");
+        bytes += len;
+        pos = 0;
+      }
+      return buffer[pos++] & 0xff;
+    }
+
+    long varint() throws IOException {
+      long value = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = get();
+        value |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    void run(long start) throws IOException {
+      while (get() != 0);
+      if (get() != 'V' || get() != PROTOCOL) throw new IOException("bad header");
+      int depth = 0;
+      do {
+        int type = get();
+        if (type == 'Z') {
+          depth--;
+          continue;
+        }
+        if (entries++ == 0) firstEntry = System.nanoTime() - start;
+        long nameLength = varint();
+        for (long i = 0; i < nameLength; i++) get();
+        varint();
+        varint();
+        if (type == 'D') depth++;
+      } while (depth > 0);
+    }
+  }
+
+  /** Copies the binary into place and starts it, as the app does. */
+  private static InputStream spawn(String binary, File dir, String root)
+      throws IOException {
+    File copy = new File(dir, "scan");
+    copy.delete();
+    InputStream in = new FileInputStream(binary);
+    OutputStream out = new FileOutputStream(copy);
+    byte[] b = new byte[65536];
+    int n;
+    while ((n = in.read(b)) > 0) out.write(b, 0, n);
+    in.close();
+    out.close();
+    copy.setExecutable(true, true);
+    Process process = new ProcessBuilder(copy.getPath(), root,
+        String.valueOf(PROTOCOL), "1").start();
+    return process.getInputStream();
+  }
+
+  private static void report(String name, Reader reader, long start) {
+    long time = System.nanoTime() - start;
+    System.out.printf("%-10s first entry %6d us, %6d ms total, %d entries,"
+        + " %d bytes/entry%n", name,
+        reader.firstEntry / 1000, time / 1000000, reader.entries,
+        reader.bytes / reader.entries);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String binary = args[0];
+    String root = args[1];
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+    for (int run = 0; run < runs; run++) {
+      long start = System.nanoTime();
+      InputStream is = spawn(binary, dir, root);
+      Reader reader = new Reader(is);
+      reader.run(start);
+      is.close();
+      report("pipe", reader, start);
+
+      start = System.nanoTime();
+      is = InProcessScannerStream.start(root, PROTOCOL, 1, 0, false);
+      if (is == null) throw new IOException("no in-process scanner");
+      reader = new Reader(is);
+      reader.run(start);
+      is.close();
+      report("in-process", reader, start);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+#!/bin/sh
+# Compares the classic walker of the native scanner with the io_uring
+# statx engine at several queue depths on a synthetic tree: wall time,
+# syscall counts and that the output is the same. The walker stats
+# entries in inode order, "readdir" is a build which keeps readdir order.
+#
+# Usage: jni/bench.sh [-c] [-b] [-j] [dirs] [files per dir] [queue depths...]
+#   -c  cold cache: the tree is put on a loopback ext4 image and page
+#       caches are dropped before every run, needs root.
+#   -b  background mode: idle I/O priority and throttling.
+#   -j  instead compare the binary started as the app does it with the
+#       in-process scanner (ScanBench.java), needs JAVA_HOME.
+# Runs on the host, needs gcc and a kernel with io_uring.
+
+set -e
+
+COLD=
+BACKGROUND=0
+JNI=
+while [ $# -gt 0 ]; do
+  case "$1" in
+    -c) COLD=1 ;;
+    -b) BACKGROUND=1 ;;
+    -j) JNI=1 ;;
+    *) break ;;
+  esac
+  shift
+done
+DIRS=${1:-200}
+FILES=${2:-200}
+shift 2 2>/dev/null || shift $#
+DEPTHS=${*:-"8 32 128"}
+
+WORK=$(mktemp -d)
+cleanup() {
+  if [ -n "$COLD" ]; then umount "$WORK/tree" 2>/dev/null || true; fi
+  rm -rf "$WORK"
+}
+trap cleanup EXIT
+
+SRC="$(dirname "$0")/scan.c"
+gcc -O2 -o "$WORK/scan" "$SRC" -lpthread
+gcc -O2 -DSCAN_READDIR_ORDER -o "$WORK/scan-readdir" "$SRC" -lpthread
+
+TREE="$WORK/tree"
+mkdir "$TREE"
+if [ -n "$COLD" ]; then
+  truncate -s $((DIRS * FILES / 2000 + 64))M "$WORK/image"
+  mkfs.ext4 -q -F -N $((DIRS * (FILES + 2) + 1024)) "$WORK/image"
+  mount -o loop "$WORK/image" "$TREE"
+fi
+i=0
+while [ $i -lt "$DIRS" ]; do
+  mkdir -p "$TREE/d$i/sub"
+  i=$((i + 1))
+done
+# Files of a directory are created interleaved with the other ones, so
+# that their inodes are spread over the inode table.
+seq 1 "$FILES" | while read f; do
+  i=0
+  while [ $i -lt "$DIRS" ]; do
+    echo "$TREE/d$i/$f"
+    i=$((i + 1))
+  done
+done | xargs touch
+sync
+
+if [ -n "$JNI" ]; then
+  DIR="$(dirname "$0")"
+  gcc -O2 -fPIC -shared -DSCAN_JNI -I"$JAVA_HOME/include" \
+      -I"$JAVA_HOME/include/linux" -o "$WORK/libscanjni.so" "$SRC" -lpthread
+  mkdir "$WORK/classes" "$WORK/app"
+  javac -d "$WORK/classes" "$DIR/ScanBench.java" \
+      "$DIR/../app/src/main/java/com/google/android/diskusage/datasource/fast/InProcessScannerStream.java"
+  echo "$DIRS dirs, $FILES files each"
+  java -Djava.library.path="$WORK" -Djava.io.tmpdir="$WORK/app" \
+      -cp "$WORK/classes" ScanBench "$WORK/scan" "$TREE"
+  exit 0
+fi
+
+now() {
+  date +%s%N
+}
+
+# run <name> <binary> <queue depth>
+run() {
+  if [ -n "$COLD" ]; then
+    sync
+    echo 3 > /proc/sys/vm/drop_caches
+  fi
+  start=$(now)
+  SCAN_STATS=1 "$WORK/$2" "$TREE" 1 1 "$3" "$BACKGROUND" \
+      > "$WORK/$1.out" 2> "$WORK/$1.stats"
+  end=$(now)
+  printf "%-10s %6d ms  %s\n" "$1" $(((end - start) / 1000000)) \
+      "$(head -n 1 "$WORK/$1.stats")"
+  tail -n +2 "$WORK/$1.stats" | sed 's/^/                      /'
+}
+
+echo "$DIRS dirs, $FILES files each${COLD:+, cold cache}\
+$([ "$BACKGROUND" = 1 ] && echo ", background")"
+run readdir scan-readdir 0
+run classic scan 0
+for depth in $DEPTHS; do
+  run "qd$depth" scan "$depth"
+  if ! cmp -s "$WORK/classic.out" "$WORK/qd$depth.out"; then
+    echo "qd$depth: output differs from classic walker"
+    exit 1
+  fi
+done
@@ -6,10 +6,62 @@
 #include <string.h>
 #include <dirent.h>
 #include <stdlib.h>
+#include <pthread.h>
+#include <fcntl.h>
+#include <sys/syscall.h>
+#include <sys/sysmacros.h>
+#include <sys/resource.h>
+#include <time.h>
+#ifdef __ANDROID__
+#include <sys/system_properties.h>
+#endif
+#ifdef SCAN_JNI
+#include <jni.h>
+#endif
+#if defined(__has_include)
+#if __has_include(<linux/io_uring.h>) && defined(__NR_io_uring_setup) \
+    && defined(__NR_statx)
+#define SCAN_URING 1
+#include <linux/io_uring.h>
+#include <sys/mman.h>
+#endif
+#endif
 
 
 dev_t dev;
-static const int sep = 0;
+static const char sep = 0;
+
+/*
+ * Output protocol, requested by the optional second argument.
+ * 1: legacy text, every number is NUL terminated decimal.
+ * 2: binary, 'V' and version byte follow the initial NUL, then every entry
+ *    is a type byte, varint name length, UTF-8 name, varint block count
+ *    and varint byte count.
+ *    Type 'H' is a file with more than one link which was already seen
+ *    under another name, its blocks are not counted again.
+ * 3: sharded binary, subtrees are scanned by a pool of threads, number of
+ *    threads is the third argument. Each thread writes protocol 2 records
+ *    into its own shard, shard 0 is the root directory. Output is a
+ *    sequence of frames: varint shard and varint length followed by that
+ *    many bytes of shard data. Zero length frame is followed by a varint:
+ *    id of a shard which content goes at this place, or 0 for end of shard.
+ */
+#define PROTOCOL_TEXT 1
+#define PROTOCOL_BINARY 2
+#define PROTOCOL_SHARDED 3
+static int protocol = PROTOCOL_TEXT;
+
+#define SHARD_BUFFER_SIZE 65536
+
+struct Shard {
+  int id;
+  int len;
+  char data[SHARD_BUFFER_SIZE];
+};
+
+/* Output shard of current thread, NULL when writing directly to stdout. */
+static __thread struct Shard *shard;
+static pthread_mutex_t output_lock = PTHREAD_MUTEX_INITIALIZER;
 
 struct Entity {
   long long sizeInBlocks;
@@ -17,9 +69,39 @@ struct Entity {
   const char *name;
   struct Entity *next;
   char isdir;
+  char hardlink;
+};
+
+/* Scanner output, stdout of the executable or the ring buffer of the
+ * in-process scanner, see SCAN_JNI below. */
+#ifndef SCAN_JNI
+static void out_write(const char *data, int len) {
+  fwrite(data, 1, len, stdout);
+}
+
+static void out_flush() {
+  fflush(stdout);
+}
+#else
+static void out_write(const char *data, int len);
+static void out_flush();
+#endif
+
+/* Set to stop the scan early, the in-process scanner is stopped this way. */
+static volatile int stopped;
+
+/* Entry returned by getdents64, libc headers do not always have it. */
+struct linux_dirent64 {
+  unsigned long long d_ino;
+  long long d_off;
+  unsigned short d_reclen;
+  unsigned char d_type;
+  char d_name[];
 };
 
-void scan_dir(const char *path, struct Entity *entity);
+#define DIRENT_BUFFER_SIZE 65536
+
+void scan_dir(int fd, struct Entity *entity);
 
 const char *getName(const char *path) {
   return strrchr(path, '/') + 1;
@@ -27,147 +109,1162 @@ const char *getName(const char *path) {
 
 int nfiles = 0;
 
+/* Syscalls made, printed to stderr at exit if SCAN_STATS is set. */
+static long long num_getdents;
+static long long num_stat;
+static long long num_uring_enter;
+static long long num_uring_stat;
+
+static void count(long long *counter, long long n) {
+  __atomic_fetch_add(counter, n, __ATOMIC_RELAXED);
+}
+
+void write_varint(unsigned int value) {
+  char data[5];
+  int pos = 0;
+  while (value >= 0x80) {
+    data[pos++] = (value & 0x7f) | 0x80;
+    value >>= 7;
+  }
+  data[pos++] = value;
+  out_write(data, pos);
+}
+
+/* Writes buffered shard data, followed by a zero length frame with the
+ * marker if it is not negative. */
+void flush_shard(int marker) {
+  pthread_mutex_lock(&output_lock);
+  if (shard->len != 0) {
+    write_varint(shard->id);
+    write_varint(shard->len);
+    out_write(shard->data, shard->len);
+    shard->len = 0;
+  }
+  if (marker >= 0) {
+    write_varint(shard->id);
+    write_varint(0);
+    write_varint(marker);
+  }
+  out_flush();
+  pthread_mutex_unlock(&output_lock);
+}
+
+void put_bytes(const char *data, int len) {
+  if (shard == NULL) {
+    out_write(data, len);
+    return;
+  }
+  while (len > 0) {
+    int n = SHARD_BUFFER_SIZE - shard->len;
+    if (n == 0) {
+      flush_shard(-1);
+      continue;
+    }
+    if (n > len) n = len;
+    memcpy(shard->data + shard->len, data, n);
+    shard->len += n;
+    data += n;
+    len -= n;
+  }
+}
+
+void put_char(char c) {
+  put_bytes(&c, 1);
+}
+
+void put_varint(unsigned long long value) {
+  char data[10];
+  int pos = 0;
+  while (value >= 0x80) {
+    data[pos++] = (value & 0x7f) | 0x80;
+    value >>= 7;
+  }
+  data[pos++] = value;
+  put_bytes(data, pos);
+}
+
+void put_string(const char *str, const char *suffix) {
+  int len = strlen(str);
+  int suffixLen = strlen(suffix);
+  put_varint(len + suffixLen);
+  put_bytes(str, len);
+  put_bytes(suffix, suffixLen);
+}
+
+/* Decimal followed by the separator, for the text protocol. */
+void put_number(long long value) {
+  char data[24];
+  int len = snprintf(data, sizeof(data), "%lld", value);
+  put_bytes(data, len);
+  put_char(sep);
+}
+
+void dump_entry(char type, const char *name, const char *suffix,
+    long long sizeInBlocks, long long sizeInBytes) {
+  put_char(type);
+  if (protocol != PROTOCOL_TEXT) {
+    put_string(name, suffix);
+    put_varint(sizeInBlocks);
+    put_varint(sizeInBytes);
+    return;
+  }
+  put_bytes(name, strlen(name));
+  put_bytes(suffix, strlen(suffix));
+  put_char(sep);
+  put_number(sizeInBlocks);
+  put_number(sizeInBytes);
+}
+
 void dump_file(struct Entity *entity) {
-  if (entity->isdir) {
-    putchar('D');
-  } else {
-    putchar('F');
-  }
-  printf("%s", entity->name);
-  putchar(sep);
-  printf("%lld", entity->sizeInBlocks);
-  putchar(sep);
-  printf("%lld", entity->sizeInBytes);
-  putchar(sep);
+  dump_entry(entity->isdir ? 'D' : (entity->hardlink ? 'H' : 'F'), entity->name, "",
+      entity->sizeInBlocks, entity->sizeInBytes);
+  if (shard != NULL) return;
   nfiles++;
-  if (nfiles % 10 == 0) fflush(stdout);
+  if (nfiles % 10 == 0) out_flush();
 }
 
 void dump(char type) {
-  putchar(type);
+  put_char(type);
 }
 
 const char *get_error() {
   switch(errno) {
     case EACCES:
-      return "%c%s <No access>";
+      return " <No access>";
     case ENOENT:
     case ENOTDIR:
-      return "%c%s <deleted>";
+      return " <deleted>";
     default:
-      return "%c%s <error>";
+      return " <error>";
   }
 }
 
 void dump_error(char type, const char *path,
     long long sizeInBlocks, long long sizeInBytes) {
-  printf(get_error(), type, getName(path));
-  putchar(sep);
-  printf("%lld", sizeInBlocks);
-  putchar(sep);
-  printf("%lld", sizeInBytes);
-  putchar(sep);
+  dump_entry(type, getName(path), get_error(), sizeInBlocks, sizeInBytes);
+}
+
+/* (st_dev, st_ino) of files with several links seen so far. Open
+ * addressing with linear probing, zero inode marks a free slot. */
+struct Inode {
+  dev_t dev;
+  ino_t ino;
+};
+static struct Inode *inodes;
+static size_t inodes_capacity;
+static size_t inodes_count;
+static pthread_mutex_t inodes_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static size_t hash_inode(dev_t dev, ino_t ino) {
+  unsigned long long h = (unsigned long long) ino * 0x9E3779B97F4A7C15ULL;
+  h ^= dev;
+  return (size_t) (h ^ (h >> 32));
+}
+
+static void insert_inode(struct Inode *table, size_t capacity,
+    dev_t dev, ino_t ino) {
+  size_t i = hash_inode(dev, ino) & (capacity - 1);
+  while (table[i].ino != 0) i = (i + 1) & (capacity - 1);
+  table[i].dev = dev;
+  table[i].ino = ino;
+}
+
+/* Returns 1 if the file is seen for the first time. */
+int add_inode(dev_t dev, ino_t ino) {
+  size_t i;
+  int res = 1;
+  if (ino == 0) return 1;
+  pthread_mutex_lock(&inodes_lock);
+  if (inodes_count * 2 >= inodes_capacity) {
+    size_t capacity = inodes_capacity == 0 ? 1024 : inodes_capacity * 2;
+    struct Inode *table = calloc(capacity, sizeof(struct Inode));
+    for (i = 0; i < inodes_capacity; i++) {
+      if (inodes[i].ino != 0) {
+        insert_inode(table, capacity, inodes[i].dev, inodes[i].ino);
+      }
+    }
+    free(inodes);
+    inodes = table;
+    inodes_capacity = capacity;
+  }
+  for (i = hash_inode(dev, ino) & (inodes_capacity - 1); inodes[i].ino != 0;
+      i = (i + 1) & (inodes_capacity - 1)) {
+    if (inodes[i].ino == ino && inodes[i].dev == dev) {
+      res = 0;
+      break;
+    }
+  }
+  if (res) {
+    inodes[i].dev = dev;
+    inodes[i].ino = ino;
+    inodes_count++;
+  }
+  pthread_mutex_unlock(&inodes_lock);
+  return res;
+}
+
+/* What the scanner needs to know about an entry. */
+struct EntryStat {
+  dev_t dev;
+  ino_t ino;
+  unsigned int nlink;
+  mode_t mode;
+  long long blocks;
+  long long size;
+};
+
+void fill_from_stat(struct EntryStat *st, struct stat *stbuf) {
+  st->dev = stbuf->st_dev;
+  st->ino = stbuf->st_ino;
+  st->nlink = stbuf->st_nlink;
+  st->mode = stbuf->st_mode;
+  st->blocks = stbuf->st_blocks;
+  st->size = stbuf->st_size;
+}
+
+#ifdef __NR_statx
+/* Layout of struct statx from linux/stat.h, not every libc has it. */
+struct scan_statx_timestamp {
+  long long tv_sec;
+  unsigned int tv_nsec;
+  int reserved;
+};
+
+struct scan_statx {
+  unsigned int stx_mask;
+  unsigned int stx_blksize;
+  unsigned long long stx_attributes;
+  unsigned int stx_nlink;
+  unsigned int stx_uid;
+  unsigned int stx_gid;
+  unsigned short stx_mode;
+  unsigned short spare0;
+  unsigned long long stx_ino;
+  unsigned long long stx_size;
+  unsigned long long stx_blocks;
+  unsigned long long stx_attributes_mask;
+  struct scan_statx_timestamp stx_atime, stx_btime, stx_ctime, stx_mtime;
+  unsigned int stx_rdev_major;
+  unsigned int stx_rdev_minor;
+  unsigned int stx_dev_major;
+  unsigned int stx_dev_minor;
+  unsigned long long spare2[14];
+};
+
+#define SCAN_STATX_TYPE 0x1U
+#define SCAN_STATX_NLINK 0x4U
+#define SCAN_STATX_INO 0x100U
+#define SCAN_STATX_SIZE 0x200U
+#define SCAN_STATX_BLOCKS 0x400U
+/* Cached attributes are good enough, saves a round trip on FUSE. */
+#define SCAN_AT_STATX_DONT_SYNC 0x4000
+
+/* Set when statx can be used, older Android kills the process for it
+ * with seccomp instead of returning ENOSYS. */
+static int use_statx;
+
+void init_statx() {
+#ifdef __ANDROID__
+  char sdk[PROP_VALUE_MAX];
+  if (__system_property_get("ro.build.version.sdk", sdk) <= 0
+      || atoi(sdk) < 30 /* Android 11 */) {
+    return;
+  }
+#endif
+  use_statx = 1;
+}
+#else
+void init_statx() {
+}
+#endif
+
+/* lstat of the entry relative to the directory fd. */
+int stat_at(int dirfd, const char *name, struct EntryStat *st) {
+  struct stat stbuf;
+  count(&num_stat, 1);
+#ifdef __NR_statx
+  if (use_statx) {
+    struct scan_statx stx;
+    if (syscall(__NR_statx, dirfd, name,
+          AT_SYMLINK_NOFOLLOW | SCAN_AT_STATX_DONT_SYNC,
+          SCAN_STATX_TYPE | SCAN_STATX_NLINK | SCAN_STATX_INO
+          | SCAN_STATX_SIZE | SCAN_STATX_BLOCKS, &stx) == 0) {
+      st->dev = makedev(stx.stx_dev_major, stx.stx_dev_minor);
+      st->ino = stx.stx_ino;
+      st->nlink = stx.stx_nlink;
+      st->mode = stx.stx_mode;
+      st->blocks = stx.stx_blocks;
+      st->size = stx.stx_size;
+      return 0;
+    }
+    if (errno != ENOSYS) return -1;
+    use_statx = 0;
+  }
+#endif
+  if (fstatat(dirfd, name, &stbuf, AT_SYMLINK_NOFOLLOW) < 0) return -1;
+  fill_from_stat(st, &stbuf);
+  return 0;
 }
 
-struct Entity *make_entity_internal(
-    const char *path,
-    struct stat *stbuf) {
+struct Entity *make_entity_internal(const char *name, struct EntryStat *st) {
   struct Entity *e = malloc(sizeof(struct Entity));
-  e->name = strdup(getName(path));
-  e->sizeInBlocks = stbuf->st_blocks;
-  e->sizeInBytes = stbuf->st_size;
-  e->isdir = S_ISDIR(stbuf->st_mode);
+  e->name = strdup(name);
+  e->sizeInBlocks = st->blocks;
+  e->sizeInBytes = st->size;
+  e->isdir = S_ISDIR(st->mode);
+  /* Text protocol has no record for it. */
+  e->hardlink = protocol != PROTOCOL_TEXT && !e->isdir
+      && st->nlink > 1 && !add_inode(st->dev, st->ino);
   return e;
 }
 
-struct Entity *make_entity(const char *path) {
-  struct stat stbuf;
-  int res = lstat(path, &stbuf);
-  if (res < 0) {
+/*
+ * Background mode, requested by the optional fifth argument: the scanner
+ * runs at idle I/O priority and pauses while stat latency is well above
+ * its usual level, i.e. while something else keeps the storage busy.
+ * Same policy as in ScanThrottle.java. Stat latency and scan rate
+ * histograms are collected in any mode, printed with SCAN_STATS.
+ */
+#define NUM_BUCKETS 24
+/* Scan rate is measured over windows of this length, ns. */
+#define RATE_WINDOW 250000000LL
+/* Pause is considered after this many stats. */
+#define CHECK_INTERVAL 32
+/* Stats before the usual latency is known. */
+#define WARMUP 256
+/* Storage is busy when recent latency is this many times the usual one. */
+#define BUSY_RATIO 4
+/* ms */
+#define MAX_PAUSE 100
+
+#define SCAN_IOPRIO_WHO_PROCESS 1
+#define SCAN_IOPRIO_CLASS_IDLE 3
+#define SCAN_IOPRIO_CLASS_SHIFT 13
+
+static int background;
+/* Latencies in us, bucket i has the ones below 2^i. */
+static long long latencies[NUM_BUCKETS];
+/* Entries/s, bucket i has the rates below 2^i. */
+static long long rates[NUM_BUCKETS];
+static long long num_stats;
+static long long window_start;
+static long long window_stats;
+static long long num_pauses;
+static long long paused_time;
+pthread_mutex_t window_lock = PTHREAD_MUTEX_INITIALIZER;
+
+/* Moving averages of latency of the thread, ns. */
+static __thread long long recent;
+static __thread long long usual;
+static __thread long long thread_stats;
+static __thread long long pause_time;
+
+static long long now_ns() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static int bucket(long long value) {
+  int i = 0;
+  while (value > 0 && i < NUM_BUCKETS - 1) {
+    value >>= 1;
+    i++;
+  }
+  return i;
+}
+
+/* Inherited by the threads started later. */
+static void enter_background() {
+#ifdef __NR_ioprio_set
+  syscall(__NR_ioprio_set, SCAN_IOPRIO_WHO_PROCESS, 0,
+      SCAN_IOPRIO_CLASS_IDLE << SCAN_IOPRIO_CLASS_SHIFT);
+#endif
+  setpriority(PRIO_PROCESS, 0, 10);
+}
+
+static void throttle(int busy) {
+  struct timespec ts;
+  if (!busy) {
+    pause_time /= 2;
+    return;
+  }
+  pause_time = pause_time * 2 < 1 ? 1
+      : pause_time * 2 > MAX_PAUSE ? MAX_PAUSE : pause_time * 2;
+  count(&num_pauses, 1);
+  count(&paused_time, pause_time);
+  ts.tv_sec = 0;
+  ts.tv_nsec = pause_time * 1000000;
+  nanosleep(&ts, NULL);
+}
+
+/* Records n stats which took the time since start, may pause. */
+static void on_stats(long long start, int n) {
+  long long now = now_ns();
+  long long latency = (now - start) / n;
+  long long total;
+  int i;
+  count(&latencies[bucket(latency / 1000)], n);
+  total = __atomic_add_fetch(&num_stats, n, __ATOMIC_RELAXED);
+  if (now - __atomic_load_n(&window_start, __ATOMIC_RELAXED) >= RATE_WINDOW) {
+    pthread_mutex_lock(&window_lock);
+    if (now - window_start >= RATE_WINDOW) {
+      if (window_start != 0) {
+        rates[bucket((total - window_stats) * 1000000000LL
+            / (now - window_start))]++;
+      }
+      __atomic_store_n(&window_start, now, __ATOMIC_RELAXED);
+      window_stats = total;
+    }
+    pthread_mutex_unlock(&window_lock);
+  }
+  for (i = 0; i < n; i++) {
+    int busy;
+    thread_stats++;
+    recent += (latency - recent) >> 3;
+    busy = thread_stats > WARMUP && recent > usual * BUSY_RATIO;
+    /* Usual latency follows slowly while busy, so that the throttle gives
+     * up on storage which is just slow. */
+    usual += (latency - usual) >> (thread_stats < WARMUP ? 4 : busy ? 12 : 9);
+    if (background && thread_stats % CHECK_INTERVAL == 0) throttle(busy);
+  }
+}
+
+static void print_histogram(const char *name, long long *histogram) {
+  int i;
+  fprintf(stderr, "%s", name);
+  for (i = 0; i < NUM_BUCKETS; i++) {
+    if (histogram[i] == 0) continue;
+    fprintf(stderr, " <%lld:%lld", 1LL << i, histogram[i]);
+  }
+  fprintf(stderr, "\n");
+}
+
+struct Entity *make_entity(int dirfd, const char *name) {
+  struct EntryStat st;
+  long long start = now_ns();
+  if (stat_at(dirfd, name, &st) < 0) {
     return NULL;
   }
-  if (stbuf.st_dev != dev) {
+  on_stats(start, 1);
+  if (st.dev != dev) {
     return NULL;
   }
-  return make_entity_internal(path, &stbuf);
+  return make_entity_internal(name, &st);
 }
 
-char *makePath(const char *base, const char *name) {
-  int baseLen = strlen(base);
-  int nameLen = strlen(name);
-  char *res = (char*) malloc(baseLen + nameLen + 2);
-  strncpy(res, base, baseLen);
-  res[baseLen] = '/';
-  strncpy(res + baseLen + 1, name, nameLen);
-  res[baseLen + 1 + nameLen] = 0;
-  return res;
+void free_entity(struct Entity *e) {
+  free((void*)e->name);
+  free(e);
+}
+
+/*
+ * Optional engine which stats entries of a directory with statx requests
+ * submitted to io_uring in batches of queue depth size, one syscall per
+ * batch instead of one per entry. Requested by the optional fourth
+ * argument, the queue depth. Each thread has its own ring. If the kernel
+ * has no io_uring or no statx op in it, the synchronous path is used.
+ * getdents has no io_uring op, directories are still read synchronously.
+ */
+static int uring_depth;
+
+#ifdef SCAN_URING
+struct Ring {
+  int fd;
+  unsigned entries;
+  char *sq;
+  char *cq;
+  size_t sq_size;
+  size_t cq_size;
+  unsigned *sq_tail;
+  unsigned *sq_mask;
+  unsigned *sq_array;
+  unsigned *cq_head;
+  unsigned *cq_tail;
+  unsigned *cq_mask;
+  struct io_uring_sqe *sqes;
+  struct io_uring_cqe *cqes;
+  struct scan_statx *results;
+};
+
+static __thread struct Ring *ring;
+
+static struct Ring *setup_ring(unsigned depth) {
+  struct io_uring_params p;
+  struct Ring *r;
+  char *sq, *cq;
+  size_t sq_size, cq_size;
+  int fd;
+  memset(&p, 0, sizeof(p));
+  fd = syscall(__NR_io_uring_setup, depth, &p);
+  if (fd < 0) return NULL;
+  sq_size = p.sq_off.array + p.sq_entries * sizeof(unsigned);
+  cq_size = p.cq_off.cqes + p.cq_entries * sizeof(struct io_uring_cqe);
+  if ((p.features & IORING_FEAT_SINGLE_MMAP) && cq_size > sq_size) {
+    sq_size = cq_size;
+  }
+  sq = mmap(NULL, sq_size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE,
+      fd, IORING_OFF_SQ_RING);
+  if (sq == MAP_FAILED) {
+    close(fd);
+    return NULL;
+  }
+  cq = sq;
+  if (!(p.features & IORING_FEAT_SINGLE_MMAP)) {
+    cq = mmap(NULL, cq_size, PROT_READ | PROT_WRITE,
+        MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_CQ_RING);
+    if (cq == MAP_FAILED) {
+      munmap(sq, sq_size);
+      close(fd);
+      return NULL;
+    }
+  }
+  r = malloc(sizeof(struct Ring));
+  r->fd = fd;
+  r->entries = p.sq_entries;
+  r->sq = sq;
+  r->cq = cq;
+  r->sq_size = sq_size;
+  r->cq_size = cq_size;
+  r->sq_tail = (unsigned *) (sq + p.sq_off.tail);
+  r->sq_mask = (unsigned *) (sq + p.sq_off.ring_mask);
+  r->sq_array = (unsigned *) (sq + p.sq_off.array);
+  r->cq_head = (unsigned *) (cq + p.cq_off.head);
+  r->cq_tail = (unsigned *) (cq + p.cq_off.tail);
+  r->cq_mask = (unsigned *) (cq + p.cq_off.ring_mask);
+  r->cqes = (struct io_uring_cqe *) (cq + p.cq_off.cqes);
+  r->sqes = mmap(NULL, p.sq_entries * sizeof(struct io_uring_sqe),
+      PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_SQES);
+  if (r->sqes == MAP_FAILED) {
+    if (cq != sq) munmap(cq, cq_size);
+    munmap(sq, sq_size);
+    close(fd);
+    free(r);
+    return NULL;
+  }
+  r->results = malloc(p.sq_entries * sizeof(struct scan_statx));
+  return r;
+}
+
+/* Frees the ring of the current thread, when the thread is done. */
+static void release_ring() {
+  if (ring == NULL) return;
+  munmap(ring->sqes, ring->entries * sizeof(struct io_uring_sqe));
+  if (ring->cq != ring->sq) munmap(ring->cq, ring->cq_size);
+  munmap(ring->sq, ring->sq_size);
+  close(ring->fd);
+  free(ring->results);
+  free(ring);
+  ring = NULL;
+}
+
+/* Turns the engine off where io_uring may not be tried. The seccomp filter
+ * of apps lets io_uring through from Android 12 on, older ones kill the
+ * process as for statx, in the binary and in the app alike. */
+static void init_uring() {
+#ifdef __ANDROID__
+  char sdk[PROP_VALUE_MAX];
+  if (__system_property_get("ro.build.version.sdk", sdk) <= 0
+      || atoi(sdk) < 31 /* Android 12 */) {
+    uring_depth = 0;
+  }
+#endif
+  /* The ring stats with statx. */
+  if (!use_statx) uring_depth = 0;
+}
+
+/* Ring of the current thread, NULL if the engine is off or not supported.
+ * Once a thread turns the engine off, the others free their rings. */
+static struct Ring *get_ring() {
+  int depth = __atomic_load_n(&uring_depth, __ATOMIC_RELAXED);
+  if (depth == 0) {
+    release_ring();
+    return NULL;
+  }
+  if (ring != NULL) return ring;
+  ring = setup_ring(depth);
+  if (ring == NULL) __atomic_store_n(&uring_depth, 0, __ATOMIC_RELAXED);
+  return ring;
+}
+
+/* Submits statx of n <= r->entries names and waits for all of them,
+ * res[i] gets 0 or negative errno. Returns -1 if the ring failed. */
+static int ring_stat(struct Ring *r, int dirfd, const char **names, int n,
+    int *res) {
+  unsigned tail = *r->sq_tail;
+  unsigned head;
+  int i, done = 0, submit = n;
+  for (i = 0; i < n; i++) {
+    unsigned idx = tail & *r->sq_mask;
+    struct io_uring_sqe *sqe = &r->sqes[idx];
+    memset(sqe, 0, sizeof(*sqe));
+    sqe->opcode = IORING_OP_STATX;
+    sqe->fd = dirfd;
+    sqe->addr = (unsigned long) names[i];
+    sqe->len = SCAN_STATX_TYPE | SCAN_STATX_NLINK | SCAN_STATX_INO
+        | SCAN_STATX_SIZE | SCAN_STATX_BLOCKS;
+    sqe->off = (unsigned long) &r->results[i];
+    sqe->statx_flags = AT_SYMLINK_NOFOLLOW | SCAN_AT_STATX_DONT_SYNC;
+    sqe->user_data = i;
+    r->sq_array[idx] = idx;
+    tail++;
+  }
+  __atomic_store_n(r->sq_tail, tail, __ATOMIC_RELEASE);
+  while (done < n) {
+    int ret = syscall(__NR_io_uring_enter, r->fd, submit, n - done,
+        IORING_ENTER_GETEVENTS, NULL, 0);
+    count(&num_uring_enter, 1);
+    if (ret < 0) {
+      if (errno == EINTR) continue;
+      return -1;
+    }
+    submit = 0;
+    head = *r->cq_head;
+    while (head != __atomic_load_n(r->cq_tail, __ATOMIC_ACQUIRE)) {
+      struct io_uring_cqe *cqe = &r->cqes[head & *r->cq_mask];
+      res[cqe->user_data] = cqe->res;
+      head++;
+      done++;
+    }
+    __atomic_store_n(r->cq_head, head, __ATOMIC_RELEASE);
+  }
+  count(&num_uring_stat, n);
+  return 0;
+}
+
+/* Makes entities of the names like make_entity() does, NULL for the
+ * ones which are gone or on another device. Returns how many names are
+ * done, the rest is left to the synchronous path if io_uring cannot be
+ * used. */
+static int make_entities_batched(int dirfd, const char **names, int n,
+    struct Entity **out) {
+  struct Ring *r = get_ring();
+  int res[r == NULL ? 1 : r->entries];
+  int start, i;
+  if (r == NULL) return 0;
+  for (start = 0; start < n; start += r->entries) {
+    int batch = n - start < (int) r->entries ? n - start : (int) r->entries;
+    long long time = now_ns();
+    if (ring_stat(r, dirfd, names + start, batch, res) < 0) goto fail;
+    on_stats(time, batch);
+    for (i = 0; i < batch; i++) {
+      struct scan_statx *stx = &r->results[i];
+      struct EntryStat st;
+      out[start + i] = NULL;
+      if (res[i] == -EINVAL) {
+        /* no statx op in this kernel */
+        start += i;
+        goto fail;
+      }
+      if (res[i] < 0) continue;
+      st.dev = makedev(stx->stx_dev_major, stx->stx_dev_minor);
+      if (st.dev != dev) continue;
+      st.ino = stx->stx_ino;
+      st.nlink = stx->stx_nlink;
+      st.mode = stx->stx_mode;
+      st.blocks = stx->stx_blocks;
+      st.size = stx->stx_size;
+      out[start + i] = make_entity_internal(names[start + i], &st);
+    }
+  }
+  return n;
+fail:
+  /* Requests may be left in the ring, it is not used again. */
+  __atomic_store_n(&uring_depth, 0, __ATOMIC_RELAXED);
+  release_ring();
+  return start;
+}
+#else
+static int make_entities_batched(int dirfd, const char **names, int n,
+    struct Entity **out) {
+  return 0;
+}
+
+static void release_ring() {
+}
+#endif
+
+struct Job {
+  int shard;
+  int fd;
+  struct Entity *entity;
+  struct Job *next;
+};
+
+static int nthreads = 1;
+static pthread_mutex_t queue_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t queue_cond = PTHREAD_COND_INITIALIZER;
+static struct Job *queue_head;
+static struct Job **queue_tail = &queue_head;
+static int queued = 0;
+/* queued and running jobs */
+static int pending = 0;
+static int next_shard = 1;
+
+/* Hands the directory to another thread if some are idle, the subtree
+ * is then written into a new shard. Returns 0 if it should be scanned
+ * inline. */
+int spawn_job(int fd, struct Entity *entity) {
+  struct Job *job;
+  if (shard == NULL) return 0;
+  pthread_mutex_lock(&queue_lock);
+  /* Every thread runs or is about to run a job, a queued job would wait
+   * while its shard is buffered by the reader. */
+  if (pending >= nthreads) {
+    pthread_mutex_unlock(&queue_lock);
+    return 0;
+  }
+  job = malloc(sizeof(struct Job));
+  job->shard = next_shard++;
+  job->fd = fd;
+  job->entity = entity;
+  job->next = NULL;
+  /* Splice point must be in the parent shard before the job can finish. */
+  flush_shard(job->shard);
+  *queue_tail = job;
+  queue_tail = &job->next;
+  queued++;
+  pending++;
+  pthread_cond_signal(&queue_cond);
+  pthread_mutex_unlock(&queue_lock);
+  return 1;
+}
+
+void run_job(struct Job *job) {
+  struct Shard *jobShard = malloc(sizeof(struct Shard));
+  jobShard->id = job->shard;
+  jobShard->len = 0;
+  shard = jobShard;
+  scan_dir(job->fd, job->entity);
+  flush_shard(0);
+  shard = NULL;
+  free(jobShard);
+  free_entity(job->entity);
+  free(job);
+}
+
+void *worker(void *arg) {
+  pthread_mutex_lock(&queue_lock);
+  while (1) {
+    struct Job *job;
+    while (queue_head == NULL && pending > 0) {
+      pthread_cond_wait(&queue_cond, &queue_lock);
+    }
+    if (queue_head == NULL) break;
+    job = queue_head;
+    queue_head = job->next;
+    if (queue_head == NULL) queue_tail = &queue_head;
+    queued--;
+    pthread_mutex_unlock(&queue_lock);
+    run_job(job);
+    pthread_mutex_lock(&queue_lock);
+    pending--;
+    if (pending == 0) pthread_cond_broadcast(&queue_cond);
+  }
+  pthread_mutex_unlock(&queue_lock);
+  release_ring();
+  return NULL;
+}
+
+/* Opens the directory relative to its parent and scans it, on another
+ * thread if one is idle. Takes ownership of the entity. */
+void scan_subdir(int parentfd, struct Entity *e) {
+  int fd = openat(parentfd, e->name,
+      O_RDONLY | O_DIRECTORY | O_NOFOLLOW | O_CLOEXEC);
+  if (fd < 0) {
+    dump_entry('D', e->name, get_error(), e->sizeInBlocks, e->sizeInBytes);
+    dump('Z');
+    free_entity(e);
+    return;
+  }
+  if (spawn_job(fd, e)) return;
+  scan_dir(fd, e);
+  free_entity(e);
+}
+
+/* Entry of a getdents buffer. */
+struct DirName {
+  unsigned long long ino;
+  const char *name;
+};
+
+static int compare_ino(const void *a, const void *b) {
+  unsigned long long x = ((const struct DirName *) a)->ino;
+  unsigned long long y = ((const struct DirName *) b)->ino;
+  return x < y ? -1 : x > y;
+}
+
+/* Dumps the file, or appends the directory to the list to scan later. */
+static struct Entity **add_entity(struct Entity *e, struct Entity **last) {
+  if (e == NULL) return last;
+  if (!e->isdir) {
+    dump_file(e);
+    free_entity(e);
+    return last;
+  }
+  *last = e;
+  return &(e->next);
 }
 
-void scan_dir(const char *path, struct Entity *dirEntity) {
-  DIR *dir = opendir(path);
-  struct Entity *e;
+/* Scans the open directory and closes it. Children are stat'ed relative
+ * to the directory fd, so the kernel does not walk the whole path for
+ * every entry. */
+void scan_dir(int fd, struct Entity *dirEntity) {
   struct Entity *curr;
   struct Entity *prev;
   struct Entity *first;
   struct Entity **last = &first;
+  char *buf = malloc(DIRENT_BUFFER_SIZE);
+  /* Entries of the buffer, a dirent is at least 20 bytes. */
+  struct DirName *list = malloc(DIRENT_BUFFER_SIZE / 20 * sizeof(struct DirName));
+  const char **names = malloc(DIRENT_BUFFER_SIZE / 20 * sizeof(char *));
+  struct Entity **batch = NULL;
+  int i, done;
 
-  if (dir == NULL) {
-    dump_error('D', path, dirEntity->sizeInBlocks,
-        dirEntity->sizeInBytes);
-    dump('Z');
-    return;
-  }
   dump_file(dirEntity);
+  if (uring_depth != 0) {
+    batch = malloc(DIRENT_BUFFER_SIZE / 20 * sizeof(struct Entity *));
+  }
 
-  struct dirent *entity;
-  while ((entity = readdir(dir)) != NULL) {
-    if (entity->d_name[0] == 0 || (entity->d_name[0] == '.' && (
-          entity->d_name[1] == 0 || (
-            entity->d_name[1] == '.' && entity->d_name[2] == 0))
-        )) continue;
-    const char *entityPath = makePath(path, entity->d_name);
-    struct Entity *e = make_entity(entityPath);
-    free((void*)entityPath);
-    if (e == NULL) continue;
-    if (!e->isdir) {
-      dump_file(e);
-      free((void*)e->name);
-      free(e);
-      continue;
+  while (!stopped) {
+    int pos;
+    int n = 0;
+    int len = syscall(SYS_getdents64, fd, buf, DIRENT_BUFFER_SIZE);
+    count(&num_getdents, 1);
+    if (len <= 0) break;
+    for (pos = 0; pos < len;) {
+      struct linux_dirent64 *entity = (struct linux_dirent64 *) (buf + pos);
+      pos += entity->d_reclen;
+      if (entity->d_name[0] == 0 || (entity->d_name[0] == '.' && (
+            entity->d_name[1] == 0 || (
+              entity->d_name[1] == '.' && entity->d_name[2] == 0))
+          )) continue;
+      list[n].ino = entity->d_ino;
+      list[n].name = entity->d_name;
+      n++;
+    }
+    if (n == 0) continue;
+#ifndef SCAN_READDIR_ORDER
+    /* Readdir order is hash order on ext4 and f2fs, in inode order the
+     * inode table is read close to sequentially. */
+    qsort(list, n, sizeof(struct DirName), compare_ino);
+#endif
+    for (i = 0; i < n; i++) {
+      names[i] = list[i].name;
+    }
+    done = batch != NULL ? make_entities_batched(fd, names, n, batch) : 0;
+    for (i = 0; i < n; i++) {
+      last = add_entity(i < done ? batch[i] : make_entity(fd, names[i]), last);
     }
-    *last = e;
-    last = &(e->next);
   }
   *last = NULL;
-
-  closedir(dir);
+  free(buf);
+  free(list);
+  free(names);
+  free(batch);
 
   curr = first;
 
   while (curr != NULL) {
-    const char *entityPath = makePath(path, curr->name);
-    scan_dir(entityPath, curr);
-    free((void*)entityPath);
-    free((void*)curr->name);
     prev = curr;
     curr = curr->next;
-    free(prev);
+    scan_subdir(fd, prev);
   }
+  close(fd);
   dump('Z');
 }
 
+void scan_tree_sharded(int fd, struct Entity *rootEntity) {
+  pthread_t *threads = malloc(sizeof(pthread_t) * nthreads);
+  int i;
+  struct Job *job = malloc(sizeof(struct Job));
+  job->shard = 0;
+  job->fd = fd;
+  job->entity = rootEntity;
+  job->next = NULL;
+  queue_head = job;
+  queue_tail = &job->next;
+  queued = 1;
+  pending = 1;
+  out_flush();
+  for (i = 0; i < nthreads; i++) {
+    pthread_create(&threads[i], NULL, worker, NULL);
+  }
+  for (i = 0; i < nthreads; i++) {
+    pthread_join(threads[i], NULL);
+  }
+  free(threads);
+}
+
 void scan_tree(const char *path) {
   struct stat stbuf;
+  struct EntryStat st;
+  struct Entity *rootEntity;
+  struct Shard rootShard;
+  int fd;
   int res = lstat(path, &stbuf);
+  if (protocol == PROTOCOL_SHARDED) {
+    rootShard.id = 0;
+    rootShard.len = 0;
+    shard = &rootShard;
+  }
   if (res == -1) {
     dump_error('D', path, 1, 0);
     dump('Z');
-    return;
+  } else {
+    dev = stbuf.st_dev;
+    fill_from_stat(&st, &stbuf);
+    rootEntity = make_entity_internal(getName(path), &st);
+    fd = open(path, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (fd < 0) {
+      dump_error('D', path, rootEntity->sizeInBlocks, rootEntity->sizeInBytes);
+      dump('Z');
+    } else if (protocol == PROTOCOL_SHARDED) {
+      shard = NULL;
+      scan_tree_sharded(fd, rootEntity);
+      return;
+    } else {
+      scan_dir(fd, rootEntity);
+    }
+    free_entity(rootEntity);
+  }
+  if (shard != NULL) {
+    flush_shard(0);
+    shard = NULL;
+  }
+}
+
+/* Writes the header and the tree, options are already set. */
+static void run_scan(const char *path) {
+  char header[3];
+  init_statx();
+#ifdef SCAN_URING
+  init_uring();
+#else
+  uring_depth = 0;
+#endif
+  header[0] = 0;
+  header[1] = 'V';
+  header[2] = protocol;
+  out_write(header, protocol != PROTOCOL_TEXT ? 3 : 1);
+  scan_tree(path);
+  out_flush();
+  if (getenv("SCAN_STATS") != NULL) {
+    fprintf(stderr, "getdents %lld stat %lld io_uring_enter %lld"
+        " io_uring_stat %lld\n", num_getdents, num_stat, num_uring_enter,
+        num_uring_stat);
+    fprintf(stderr, "paused %lld times for %lld ms\n", num_pauses,
+        paused_time);
+    print_histogram("stat latency us", latencies);
+    print_histogram("entries/s", rates);
+  }
+}
+
+#ifdef SCAN_JNI
+/*
+ * In-process scanner, libscanjni.so built from this file with SCAN_JNI,
+ * used by InProcessScannerStream. The scan runs on its own thread and
+ * writes protocol 2 or 3 output into a ring in a direct ByteBuffer, which
+ * java reads without a pipe and without starting a process. The scanner
+ * state is global, so there is one scan at a time.
+ */
+struct Output {
+  char *data;
+  long long size;
+  /* Written by the scan thread, published to the reader on flush. */
+  long long written;
+  long long published;
+  long long consumed;
+  /* Reader or writer is waiting on cond. */
+  int waiting;
+  int done;
+  char *root;
+  pthread_t thread;
+  pthread_mutex_t lock;
+  pthread_cond_t cond;
+};
+
+static struct Output *output;
+static pthread_mutex_t running_lock = PTHREAD_MUTEX_INITIALIZER;
+static int running;
+
+/* Lock is taken only when the reader waits for data. */
+static void publish(struct Output *o) {
+  __atomic_store_n(&o->published, o->written, __ATOMIC_SEQ_CST);
+  if (__atomic_load_n(&o->waiting, __ATOMIC_SEQ_CST)) {
+    pthread_mutex_lock(&o->lock);
+    pthread_cond_broadcast(&o->cond);
+    pthread_mutex_unlock(&o->lock);
   }
-  dev = stbuf.st_dev;
-  scan_dir(path, make_entity_internal(path, &stbuf));
 }
 
+static void out_flush() {
+  publish(output);
+}
+
+static void out_write(const char *data, int len) {
+  struct Output *o = output;
+  while (len > 0 && !stopped) {
+    long long consumed = __atomic_load_n(&o->consumed, __ATOMIC_ACQUIRE);
+    long long space = o->size - (o->written - consumed);
+    long long pos = o->written % o->size;
+    int n = len;
+    if (space == 0) {
+      /* Ring is full, wait for the reader. */
+      publish(o);
+      pthread_mutex_lock(&o->lock);
+      __atomic_store_n(&o->waiting, 1, __ATOMIC_SEQ_CST);
+      while (o->written - __atomic_load_n(&o->consumed, __ATOMIC_SEQ_CST)
+          == o->size && !stopped) {
+        pthread_cond_wait(&o->cond, &o->lock);
+      }
+      __atomic_store_n(&o->waiting, 0, __ATOMIC_SEQ_CST);
+      pthread_mutex_unlock(&o->lock);
+      continue;
+    }
+    if (n > space) n = space;
+    if (n > o->size - pos) n = o->size - pos;
+    memcpy(o->data + pos, data, n);
+    o->written += n;
+    data += n;
+    len -= n;
+  }
+}
+
+/* Clears what the previous scan left in the global state. */
+static void reset_scan() {
+  stopped = 0;
+  nfiles = 0;
+  free(inodes);
+  inodes = NULL;
+  inodes_capacity = 0;
+  inodes_count = 0;
+  num_getdents = num_stat = num_uring_enter = num_uring_stat = 0;
+  memset(latencies, 0, sizeof(latencies));
+  memset(rates, 0, sizeof(rates));
+  num_stats = window_start = window_stats = num_pauses = paused_time = 0;
+  queue_head = NULL;
+  queue_tail = &queue_head;
+  queued = 0;
+  pending = 0;
+  next_shard = 1;
+}
+
+static void *scan_thread(void *arg) {
+  struct Output *o = arg;
+  /* Applies to this thread and the pool threads it starts. */
+  if (background) enter_background();
+  run_scan(o->root);
+  release_ring();
+  pthread_mutex_lock(&o->lock);
+  __atomic_store_n(&o->published, o->written, __ATOMIC_RELEASE);
+  o->done = 1;
+  pthread_cond_broadcast(&o->cond);
+  pthread_mutex_unlock(&o->lock);
+  return NULL;
+}
+
+/* Starts the scan, returns 0 if another one is running. */
+JNIEXPORT jlong JNICALL
+Java_com_google_android_diskusage_datasource_fast_InProcessScannerStream_start(
+    JNIEnv *env, jclass cls, jstring root, jint requestedProtocol,
+    jint numThreads, jint queueDepth, jboolean inBackground, jobject buffer) {
+  struct Output *o;
+  const char *path;
+  pthread_mutex_lock(&running_lock);
+  if (running) {
+    pthread_mutex_unlock(&running_lock);
+    return 0;
+  }
+  running = 1;
+  pthread_mutex_unlock(&running_lock);
+
+  o = calloc(1, sizeof(struct Output));
+  o->data = (*env)->GetDirectBufferAddress(env, buffer);
+  o->size = (*env)->GetDirectBufferCapacity(env, buffer);
+  path = (*env)->GetStringUTFChars(env, root, NULL);
+  o->root = strdup(path);
+  (*env)->ReleaseStringUTFChars(env, root, path);
+  pthread_mutex_init(&o->lock, NULL);
+  pthread_cond_init(&o->cond, NULL);
+
+  reset_scan();
+  protocol = PROTOCOL_BINARY;
+  nthreads = 1;
+  if (requestedProtocol >= PROTOCOL_SHARDED && numThreads > 1) {
+    protocol = PROTOCOL_SHARDED;
+    nthreads = numThreads;
+  }
+  uring_depth = queueDepth;
+  background = inBackground;
+  output = o;
+  if (pthread_create(&o->thread, NULL, scan_thread, o) != 0) {
+    free(o->root);
+    free(o);
+    output = NULL;
+    pthread_mutex_lock(&running_lock);
+    running = 0;
+    pthread_mutex_unlock(&running_lock);
+    return 0;
+  }
+  return (jlong) (intptr_t) o;
+}
+
+/* Takes the read position of the reader and waits for data after it.
+ * Returns number of bytes available, -1 at the end of the scan. */
+JNIEXPORT jint JNICALL
+Java_com_google_android_diskusage_datasource_fast_InProcessScannerStream_await(
+    JNIEnv *env, jclass cls, jlong handle, jlong consumed) {
+  struct Output *o = (struct Output *) (intptr_t) handle;
+  long long available;
+  __atomic_store_n(&o->consumed, consumed, __ATOMIC_SEQ_CST);
+  available = __atomic_load_n(&o->published, __ATOMIC_ACQUIRE) - consumed;
+  if (available > 0 && !__atomic_load_n(&o->waiting, __ATOMIC_SEQ_CST)) {
+    return (jint) available;
+  }
+  pthread_mutex_lock(&o->lock);
+  /* Wakes the writer waiting for space. */
+  pthread_cond_broadcast(&o->cond);
+  __atomic_store_n(&o->waiting, 1, __ATOMIC_SEQ_CST);
+  while (__atomic_load_n(&o->published, __ATOMIC_SEQ_CST) == consumed
+      && !o->done) {
+    pthread_cond_wait(&o->cond, &o->lock);
+  }
+  __atomic_store_n(&o->waiting, 0, __ATOMIC_SEQ_CST);
+  available = __atomic_load_n(&o->published, __ATOMIC_ACQUIRE) - consumed;
+  pthread_mutex_unlock(&o->lock);
+  return available == 0 ? -1 : (jint) available;
+}
+
+/* Makes the scan finish early, can be called from any thread. */
+JNIEXPORT void JNICALL
+Java_com_google_android_diskusage_datasource_fast_InProcessScannerStream_stop(
+    JNIEnv *env, jclass cls, jlong handle) {
+  struct Output *o = (struct Output *) (intptr_t) handle;
+  pthread_mutex_lock(&o->lock);
+  stopped = 1;
+  pthread_cond_broadcast(&o->cond);
+  pthread_mutex_unlock(&o->lock);
+}
+
+/* Stops the scan if it is still running and frees it. */
+JNIEXPORT void JNICALL
+Java_com_google_android_diskusage_datasource_fast_InProcessScannerStream_release(
+    JNIEnv *env, jclass cls, jlong handle) {
+  struct Output *o = (struct Output *) (intptr_t) handle;
+  Java_com_google_android_diskusage_datasource_fast_InProcessScannerStream_stop(
+      env, cls, handle);
+  pthread_join(o->thread, NULL);
+  pthread_mutex_destroy(&o->lock);
+  pthread_cond_destroy(&o->cond);
+  free(o->root);
+  free(o);
+  output = NULL;
+  pthread_mutex_lock(&running_lock);
+  running = 0;
+  pthread_mutex_unlock(&running_lock);
+}
+#else
 int main(int argc, char **argv) {
   if (argv[1] == 0) {
     printf("Need directory argument\n");
@@ -177,6 +1274,22 @@ int main(int argc, char **argv) {
     printf("Need absolute path\n");
     exit(1);
   }
-  putchar(0);
-  scan_tree(argv[1]);
+  if (argv[2] != 0 && atoi(argv[2]) >= PROTOCOL_BINARY) {
+    protocol = PROTOCOL_BINARY;
+    if (atoi(argv[2]) >= PROTOCOL_SHARDED && argv[3] != 0
+        && atoi(argv[3]) > 1) {
+      protocol = PROTOCOL_SHARDED;
+      nthreads = atoi(argv[3]);
+    }
+  }
+  if (argv[2] != 0 && argv[3] != 0 && argv[4] != 0) {
+    uring_depth = atoi(argv[4]);
+    if (argv[5] != 0 && atoi(argv[5]) != 0) {
+      background = 1;
+      enter_background();
+    }
+  }
+  run_scan(argv[1]);
+  return 0;
 }
+#endif